@@ -0,0 +1,461 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Autosave.java
+// Keeps an on-disk journal of every edit to the current board so work survives
+// a crash. Edits are encoded on the EDT, which is O(edit size). A background
+// thread appends them: whatever has queued up is copied into one buffer of up
+// to BUFFER_SIZE, written with one call and covered by one fsync. Once the
+// journal passes COMPACT_BYTES it is compacted: a full snapshot is written and
+// a fresh journal starts on top of it. The EDT only copies what the snapshot
+// stores out of the board (see DpvWriter.Contents); encoding and writing it
+// happen on the writer thread.
+//
+// A lazily opened board is not compacted, as the snapshot would page in the
+// whole diagram. Its journal keeps growing until the board is fully loaded
+// or saved; compaction is retried after every further COMPACT_BYTES.
+//
+// Each running instance holds a slot of the autosave directory, one whose
+// lock no other instance holds, and only ever recovers, writes or deletes
+// that slot's files: slot 0 has session.lock, journal.dpvj, plus
+// snapshot-<generation>.dpv when the journal's base is a compacted snapshot;
+// slot n has session-n.lock, journal-n.dpvj and snapshot-n-<generation>.dpv.
+class Autosave {
+    static final boolean ENABLED = !"false".equals(System.getProperty("dpv.autosave"));
+    static final long COMPACT_BYTES = Long.getLong("dpv.autosave.compactBytes", 4L * 1024 * 1024);
+
+    private static final int SLOTS = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Ends the writer thread
+    private static final Task STOP = () -> { };
+    // Lock files this process holds: closing another channel to one would
+    // release its lock on some systems, so they are never opened twice
+    private static final Set<Path> HELD = new HashSet<>();
+
+    private final Path dir;
+    // "" for slot 0, "-n" for slot n
+    private final String slot;
+    private final Path journalPath;
+    private final Path lockPath;
+    private final FileChannel lockChannel;
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    // EDT side
+    private Board board;
+    private long journalBytes;
+    // Journal length at which compaction is next tried
+    private long compactAt = COMPACT_BYTES;
+    private long generation;
+    private int resumeLength = -1;
+    private final BoardListener recorder = new BoardListener() {
+        @Override
+        public void boxAdded(DrawableBox box) {
+            append(EditJournal.addBox(box));
+        }
+
+        @Override
+        public void boxRemoved(DrawableBox box) {
+            append(EditJournal.removeLastBox());
+        }
+
+        @Override
+        public void boxMoved(DrawableBox box, int oldX, int oldY) {
+            append(EditJournal.moveBox(box));
+        }
+
+        @Override
+        public void boxRenamed(DrawableBox box, String oldName) {
+            append(EditJournal.renameBox(box));
+        }
+
+        @Override
+        public void decoratorAdded(DrawableBox box, Decorator decorator) {
+            append(EditJournal.addDecorator(box, decorator));
+        }
+
+        @Override
+        public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+            append(EditJournal.removeLastDecorator(box));
+        }
+
+        @Override
+        public void connectionAdded(Connection connection) {
+            boolean appended = connection.getIndex() == board.getConnections().size() - 1;
+            append(appended ? EditJournal.addConnection(connection) : EditJournal.insertConnection(connection));
+        }
+
+        @Override
+        public void connectionRemoved(Connection connection) {
+            append(EditJournal.removeConnection(connection));
+        }
+
+        @Override
+        public void decoratorsConnected(Decorator first, Decorator second) {
+            append(EditJournal.connectDecorators(first, second));
+        }
+
+        @Override
+        public void decoratorsDisconnected(Decorator first, Decorator second) {
+            append(EditJournal.disconnectDecorators(first, second));
+        }
+    };
+
+    // Writer side
+    private FileChannel journal;
+    // Records queued since the last write
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private volatile boolean failed;
+    private volatile Consumer<IOException> failureHandler;
+
+    private Autosave(Path dir, String slot, Path lockPath, FileChannel lockChannel) {
+        this.dir = dir;
+        this.slot = slot;
+        this.journalPath = dir.resolve("journal" + slot + ".dpvj");
+        this.lockPath = lockPath;
+        this.lockChannel = lockChannel;
+        this.writer = new Thread(this::writeLoop, "autosave");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Autosave in a slot of dir no other instance holds, which stays held
+    // until discard or a failed write; null if all SLOTS are held. Slots left
+    // with a journal, by a crash, are taken first, so they are offered for
+    // recovery whichever slot the crashed instance had.
+    static Autosave open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        for (int pass = 0; pass < 2 * SLOTS; pass++) {
+            int n = pass % SLOTS;
+            String slot = n == 0 ? "" : "-" + n;
+            if (pass < SLOTS && !Files.exists(dir.resolve("journal" + slot + ".dpvj"))) {
+                continue;
+            }
+            Path lockPath = dir.resolve("session" + slot + ".lock").toAbsolutePath();
+            synchronized (HELD) {
+                if (HELD.contains(lockPath)) {
+                    continue;
+                }
+                FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException ex) {
+                    lock = null;
+                } catch (IOException | RuntimeException ex) {
+                    channel.close();
+                    throw ex;
+                }
+                if (lock == null) {
+                    channel.close();
+                    continue;
+                }
+                HELD.add(lockPath);
+                return new Autosave(dir, slot, lockPath, channel);
+            }
+        }
+        return null;
+    }
+
+    // Told, on the writer thread, why autosave stopped after a failed write
+    public void setFailureHandler(Consumer<IOException> handler) {
+        this.failureHandler = handler;
+    }
+
+    static Path defaultDirectory() {
+        String configured = System.getProperty("dpv.autosave.dir");
+        return configured != null ? Paths.get(configured)
+                : Paths.get(System.getProperty("user.home"), ".dpv", "autosave");
+    }
+
+    // True if the last session in this slot ended with edits that were never saved
+    public boolean hasRecoverableSession() {
+        try {
+            byte[] bytes = Files.readAllBytes(journalPath);
+            EditJournal.Header header = EditJournal.readHeader(ByteBuffer.wrap(bytes));
+            return bytes.length > header.length || header.baseKind == EditJournal.BASE_SNAPSHOT;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // Rebuilds the last session's board from its base and journal. Call
+    // resume(board) afterwards to keep journaling onto the same files.
+    public Board recover() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        EditJournal.Header header = EditJournal.readHeader(in);
+        Board recovered;
+        if (header.baseKind == EditJournal.BASE_SNAPSHOT) {
+            recovered = DiagramIO.load(snapshotPath(header.generation).toFile());
+        } else if (header.baseKind == EditJournal.BASE_FILE) {
+            recovered = DiagramIO.open(new File(header.basePath));
+        } else {
+            recovered = new Board();
+        }
+        resumeLength = EditJournal.replay(in, recovered);
+        generation = header.generation;
+        return recovered;
+    }
+
+    // Continues the recovered journal, dropping any torn record at its end
+    public void resume(Board recovered) {
+        attach(recovered);
+        int length = resumeLength;
+        journalBytes = length;
+        compactAt = COMPACT_BYTES;
+        queue.add(() -> {
+            closeJournal();
+            journal = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+            journal.truncate(length);
+            journal.position(length);
+        });
+    }
+
+    // Starts a fresh journal for board on top of the diagram file it was opened
+    // from or saved to, or on top of an empty board when base is null
+    public void track(Board board, File base) {
+        attach(board);
+        journalBytes = 0;
+        compactAt = COMPACT_BYTES;
+        byte[] header = base != null
+                ? EditJournal.header(EditJournal.BASE_FILE, 0, base.getAbsolutePath())
+                : EditJournal.header(EditJournal.BASE_EMPTY, 0, null);
+        queue.add(() -> startJournal(header, null, -1));
+    }
+
+    // Waits until every record appended so far is written and forced to disk,
+    // e.g. for a check that then reads the journal back. False on timeout, or
+    // if autosave has stopped.
+    boolean awaitWritten(long millis) throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        queue.add(() -> {
+            if (journal != null) {
+                writePending();
+                journal.force(false);
+            }
+            written.countDown();
+        });
+        return written.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // Called on a clean exit: nothing is left to recover
+    public void discard() {
+        detach();
+        queue.add(() -> {
+            closeJournal();
+            Files.deleteIfExists(journalPath);
+            deleteSnapshotsExcept(-1);
+        });
+        queue.add(STOP);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void attach(Board board) {
+        detach();
+        this.board = board;
+        board.addBoardListener(recorder);
+    }
+
+    private void detach() {
+        if (board != null) {
+            board.removeBoardListener(recorder);
+            board = null;
+        }
+    }
+
+    private void append(byte[] record) {
+        if (failed) {
+            return;
+        }
+        queue.add(() -> buffer(record));
+        journalBytes += record.length;
+        if (journalBytes > compactAt) {
+            compact();
+        }
+    }
+
+    // The board's contents are copied here on the EDT so the snapshot matches
+    // the queued records exactly; the writer thread encodes and writes it. A
+    // board still paged in from its file is left alone rather than loaded in full.
+    private void compact() {
+        compactAt = journalBytes + COMPACT_BYTES;
+        if (!board.isFullyLoaded()) {
+            return;
+        }
+        DpvWriter.Contents contents;
+        try {
+            contents = DpvWriter.Contents.of(board);
+        } catch (IOException ex) {
+            return;
+        }
+        compactAt = COMPACT_BYTES;
+        long next = ++generation;
+        byte[] header = EditJournal.header(EditJournal.BASE_SNAPSHOT, next, null);
+        journalBytes = 0;
+        queue.add(() -> {
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            new DpvWriter(Channels.newChannel(snapshot)).writeCompact(contents);
+            startJournal(header, snapshot.toByteArray(), next);
+        });
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private void writeLoop() {
+        List<Task> batch = new ArrayList<>();
+        boolean stopped = false;
+        try {
+            while (!stopped) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                try {
+                    for (Task task : batch) {
+                        if (task == STOP) {
+                            stopped = true;
+                            break;
+                        }
+                        task.run();
+                    }
+                } finally {
+                    // One fsync covers every record written in this round
+                    if (journal != null) {
+                        writePending();
+                        journal.force(false);
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // shutting down
+        } catch (IOException ex) {
+            failed = true;
+            queue.clear();
+            Consumer<IOException> handler = failureHandler;
+            if (handler != null) {
+                handler.accept(ex);
+            }
+        } finally {
+            try {
+                closeJournal();
+            } catch (IOException ignored) {
+                // nothing more to save
+            }
+            release();
+        }
+    }
+
+    // Lets another instance have the slot
+    private void release() {
+        try {
+            lockChannel.close();
+        } catch (IOException ignored) {
+            // closing releases the lock either way
+        }
+        synchronized (HELD) {
+            HELD.remove(lockPath);
+        }
+    }
+
+    private void buffer(byte[] record) throws IOException {
+        if (pending.remaining() < record.length) {
+            writePending();
+            if (pending.capacity() < record.length) {
+                pending = ByteBuffer.allocate(record.length);
+            }
+        }
+        pending.put(record);
+    }
+
+    private void writePending() throws IOException {
+        pending.flip();
+        while (journal != null && pending.hasRemaining()) {
+            journal.write(pending);
+        }
+        pending.clear();
+    }
+
+    // Writes the snapshot (if any), then atomically swaps in a new journal that
+    // names it. Until the swap the old journal and its base stay intact, so a
+    // crash at any point recovers one consistent state.
+    private void startJournal(byte[] header, byte[] snapshot, long snapshotGeneration) throws IOException {
+        Files.createDirectories(dir);
+        if (snapshot != null) {
+            writeDurably(snapshotPath(snapshotGeneration), snapshot);
+        }
+        closeJournal();
+        writeDurably(journalPath, header);
+        journal = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        deleteSnapshotsExcept(snapshotGeneration);
+    }
+
+    private void writeDurably(Path target, byte[] bytes) throws IOException {
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteSnapshotsExcept(long keep) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        // "snapshot-*.dpv" would take in other slots' snapshots too
+        String prefix = "snapshot" + slot + "-";
+        try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(dir, prefix + "*.dpv")) {
+            for (Path p : snapshots) {
+                String name = p.getFileName().toString();
+                if (name.substring(prefix.length(), name.length() - 4).matches("[0-9]+")
+                        && !p.equals(snapshotPath(keep))) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    // Writes the records still buffered for the journal first
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            writePending();
+            journal.close();
+            journal = null;
+        }
+        pending.clear();
+    }
+
+    private Path snapshotPath(long gen) {
+        return dir.resolve("snapshot" + slot + "-" + gen + ".dpv");
+    }
+}
@@ -1,28 +1,326 @@
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 class Board implements Serializable {
 	private List<DrawableBox> boxes;
 	private List<Connection> connections;
 	private static final long serialVersionUID = 1L;
+	private static final int CONNECTION_PAD = 2;
+	// Connections are long and thin; coarser cells keep the cells per line low
+	static final int CONNECTION_CELL_SIZE = 512;
+
+	// Derived from the box and connection lists, so rebuilt rather than serialized
+	private transient BoxStore geometry;
+	private transient SpatialGrid boxIndex;
+	// Built on the first viewport query, so loading and headless use never pay for it.
+	// Its ids are grid ids (see Connection.getGridId), so inserting or removing a
+	// connection re-indexes that connection only, not every one after it.
+	private transient SpatialGrid connectionIndex;
+	// Connection of each grid id, null where the id is free
+	private transient List<Connection> gridConnections;
+	private transient SpatialGrid.IntBag freeGridIds;
+	// Box-to-connection adjacency keyed by identity: box names are not unique
+	private transient Map<DrawableBox, List<Connection>> outgoing;
+	private transient Map<DrawableBox, List<Connection>> incoming;
+	// Connections ending on a decorator circle, keyed by the circle's box
+	private transient Map<DrawableBox, List<Connection>> decoratorEnds;
+	private transient List<BoardListener> listeners;
+	private transient PagedList<DrawableBox> boxSlots;
+	private transient PagedList<Connection> connectionSlots;
+	// Reused by the queries, which never nest, so repainting and hit testing do
+	// not allocate. Paging in never touches these two; it has its own below.
+	private transient SpatialGrid.IntBag queryIds;
+	private transient SpatialGrid.IntBag storedIds;
+	// Reused while paging in: links of one box at a time (resolveLinks is
+	// drained iteratively), and connections of one box at a time
+	private transient SpatialGrid.IntBag linkIds;
+	private transient SpatialGrid.IntBag adjacencyIds;
+	private transient Rectangle paddedArea;
+
+	// Lazily opened boards page boxes and connections in from here on first use.
+	// The in-memory indexes cover only what has been paged in; the file's own
+	// indexes cover the rest, whose geometry cannot have changed yet. Paged-in
+	// boxes and connections stay in memory for the life of the board: the undo
+	// history, selection, generator and validator all hold on to them by identity.
+	private transient MappedDiagram source;
+	// Boxes whose stored connections have all been paged in
+	private transient BitSet adjacencyLoaded;
+	// Paged-in boxes whose decorator links are still to be resolved
+	private transient ArrayDeque<DrawableBox> pendingLinks;
+	private transient boolean resolvingLinks;
 
 	public Board() {
-		this.boxes = new ArrayList<>();
-		this.connections = new ArrayList<>();
+		this.boxes = new PagedList<>();
+		this.connections = new PagedList<>();
+		initTransientState();
+	}
+
+	// Board over an indexed diagram file; nothing is materialized up front
+	Board(MappedDiagram source) {
+		this.source = source;
+		this.boxes = new PagedList<>(source.getBoxCount(), this::loadBox);
+		this.connections = new PagedList<>(source.getConnectionCount(), this::loadConnection);
+		initTransientState();
+		adjacencyLoaded = new BitSet();
+		pendingLinks = new ArrayDeque<>();
+		// The file's line index does not model decorator endpoints, so these
+		// (rare) connections are kept in memory from the start
+		SpatialGrid.IntBag ids = queryIds;
+		source.readDecoratorConnections(ids);
+		for (int i = 0; i < ids.size(); i++) {
+			connections.get(ids.get(i));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void initTransientState() {
+		boxSlots = boxes instanceof PagedList ? (PagedList<DrawableBox>) boxes : new PagedList<>(boxes);
+		connectionSlots = connections instanceof PagedList
+				? (PagedList<Connection>) connections : new PagedList<>(connections);
+		boxes = boxSlots;
+		connections = connectionSlots;
+		geometry = new BoxStore();
+		boxIndex = new SpatialGrid();
+		connectionIndex = null;
+		gridConnections = new ArrayList<>();
+		freeGridIds = new SpatialGrid.IntBag();
+		outgoing = new IdentityHashMap<>();
+		incoming = new IdentityHashMap<>();
+		decoratorEnds = new IdentityHashMap<>();
+		listeners = new ArrayList<>();
+		queryIds = new SpatialGrid.IntBag();
+		storedIds = new SpatialGrid.IntBag();
+		linkIds = new SpatialGrid.IntBag();
+		adjacencyIds = new SpatialGrid.IntBag();
+		paddedArea = new Rectangle();
+	}
+
+	public void addBoardListener(BoardListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeBoardListener(BoardListener listener) {
+		listeners.remove(listener);
 	}
 
 	public void addBox(int x, int y) {
-		boxes.add(new DrawableBox(x, y));
+		addBox(new DrawableBox(x, y));
+	}
+
+	// Adds an already built box, e.g. one read from a diagram file
+	void addBox(DrawableBox box) {
+		box.attach(this, boxes.size());
+		boxes.add(box);
+		boxIndex.insert(box.getIndex(), box.getBounds());
+		for (BoardListener l : listeners) {
+			l.boxAdded(box);
+		}
+	}
+
+	// Removes the most recently added box, e.g. when undoing its addition.
+	// Its connections must already be gone.
+	void removeLastBox() {
+		if (boxes.isEmpty()) {
+			return;
+		}
+		int index = boxes.size() - 1;
+		DrawableBox box = boxes.get(index);
+		boxIndex.remove(index, box.getBounds());
+		boxes.remove(index);
+		outgoing.remove(box);
+		incoming.remove(box);
+		decoratorEnds.remove(box);
+		box.detach();
+		for (BoardListener l : listeners) {
+			l.boxRemoved(box);
+		}
 	}
 
 	public DrawableBox getBoxAt(int x, int y) {
-		for (DrawableBox box : boxes) {
-			if (box.contains(x, y)) {
-				return box;
+		Object hit = getObjectAt(x, y);
+		return hit instanceof DrawableBox ? (DrawableBox) hit : null;
+	}
+
+	// Topmost box or decorator circle under (x, y) in paint order, or null.
+	// Later boxes paint over earlier ones, so the highest index wins.
+	public Object getObjectAt(int x, int y) {
+		SpatialGrid.IntBag candidates = boxIndex.idsAt(x, y);
+		int top = -1;
+		Object hit = null;
+		for (int i = 0; i < candidates.size(); i++) {
+			int index = candidates.get(i);
+			if (index <= top || !geometry.contains(index, x, y)) {
+				continue;
+			}
+			DrawableBox box = boxes.get(index);
+			Object candidate = box.contains(x, y) ? box : box.getDecoratorAt(x, y);
+			if (candidate != null) {
+				top = index;
+				hit = candidate;
+			}
+		}
+		if (source != null) {
+			SpatialGrid.IntBag stored = storedIds;
+			source.boxIdsAt(x, y, stored);
+			for (int i = stored.size() - 1; i >= 0; i--) {
+				int index = stored.get(i);
+				if (index <= top) {
+					break;
+				}
+				if (boxSlots.isLoaded(index) || !source.boxContains(index, x, y)) {
+					continue;
+				}
+				DrawableBox box = boxes.get(index);
+				Object candidate = box.contains(x, y) ? box : box.getDecoratorAt(x, y);
+				if (candidate != null) {
+					return candidate;
+				}
+			}
+		}
+		return hit;
+	}
+
+	// Boxes whose bounds intersect area, in paint order
+	public List<DrawableBox> getBoxesIn(Rectangle area) {
+		List<DrawableBox> result = new ArrayList<>();
+		getBoxesIn(area, result);
+		return result;
+	}
+
+	// Same as getBoxesIn(area), but fills out (after clearing it) so a caller
+	// painting every frame can keep reusing one list
+	void getBoxesIn(Rectangle area, List<DrawableBox> out) {
+		out.clear();
+		SpatialGrid.IntBag ids = queryIds;
+		if (source == null && boxIndex.cellsSpanned(area) > boxIndex.occupiedCells()) {
+			// Most of the board is in view: one pass over the coordinate arrays
+			// beats gathering and sorting the ids of every cell
+			geometry.scan(boxes.size(), area, ids);
+		} else {
+			boxIndex.query(area, ids);
+		}
+		if (source != null) {
+			SpatialGrid.IntBag stored = storedIds;
+			source.queryBoxes(area, stored);
+			for (int i = 0; i < stored.size(); i++) {
+				int index = stored.get(i);
+				if (!boxSlots.isLoaded(index) && source.boxIntersects(index, area)) {
+					ids.add(index);
+				}
+			}
+			ids.sortUnique();
+		}
+		for (int i = 0; i < ids.size(); i++) {
+			int index = ids.get(i);
+			// Ids taken from the file were already checked against its geometry
+			if (!boxSlots.isLoaded(index) || geometry.intersects(index, area)) {
+				out.add(boxes.get(index));
+			}
+		}
+	}
+
+	// Index and top-left corner of every box whose bounds intersect area, as
+	// (index, x, y) triples in out. Unlike getBoxesIn this creates no boxes, so
+	// a lazily opened board stays lazy with the whole diagram in view.
+	void getBoxPositions(Rectangle area, SpatialGrid.IntBag out) {
+		out.clear();
+		SpatialGrid.IntBag ids = queryIds;
+		if (source == null && boxIndex.cellsSpanned(area) > boxIndex.occupiedCells()) {
+			geometry.scan(boxes.size(), area, ids);
+		} else {
+			boxIndex.query(area, ids);
+		}
+		for (int i = 0; i < ids.size(); i++) {
+			int index = ids.get(i);
+			if (boxSlots.isLoaded(index) && geometry.intersects(index, area)) {
+				out.add(index);
+				out.add(geometry.getX(index));
+				out.add(geometry.getY(index));
+			}
+		}
+		if (source != null) {
+			source.queryBoxes(area, ids);
+			for (int i = 0; i < ids.size(); i++) {
+				int index = ids.get(i);
+				if (!boxSlots.isLoaded(index) && source.boxIntersects(index, area)) {
+					out.add(index);
+					out.add(source.getBoxX(index));
+					out.add(source.getBoxY(index));
+				}
+			}
+		}
+	}
+
+	// Boxes with at least one decorator of the given kind, in index order. On a
+	// lazily opened board this pages in every box.
+	public List<DrawableBox> getBoxesWith(DecoratorType kind) {
+		loadAll();
+		SpatialGrid.IntBag ids = queryIds;
+		geometry.scanKinds(boxes.size(), kind.bit(), ids);
+		List<DrawableBox> result = new ArrayList<>(ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			result.add(boxes.get(ids.get(i)));
+		}
+		return result;
+	}
+
+	// Connections whose line passes through area, in paint order
+	public List<Connection> getConnectionsIn(Rectangle area) {
+		List<Connection> result = new ArrayList<>();
+		getConnectionsIn(area, result);
+		return result;
+	}
+
+	// Same as getConnectionsIn(area), but fills out (after clearing it)
+	void getConnectionsIn(Rectangle area, List<Connection> out) {
+		out.clear();
+		// Lines are indexed by their centre line; widen the area by the stroke half-width
+		Rectangle padded = paddedArea;
+		padded.setBounds(area);
+		padded.grow(CONNECTION_PAD, CONNECTION_PAD);
+		SpatialGrid.IntBag ids = queryIds;
+		SpatialGrid.IntBag stored = storedIds;
+		if (connectionIndex == null) {
+			connectionIndex = new SpatialGrid(CONNECTION_CELL_SIZE);
+			for (Connection conn : gridConnections) {
+				if (conn != null) {
+					insertLine(conn.getGridId(), conn.getIndexedLine());
+				}
+			}
+		}
+		connectionIndex.query(padded, stored);
+		ids.clear();
+		for (int i = 0; i < stored.size(); i++) {
+			ids.add(gridConnections.get(stored.get(i)).getIndex());
+		}
+		if (source != null) {
+			source.queryConnections(padded, stored);
+			for (int i = 0; i < stored.size(); i++) {
+				int index = stored.get(i);
+				if (!connectionSlots.isLoaded(index) && source.connectionIntersects(index, padded)) {
+					ids.add(index);
+				}
+			}
+		}
+		// Grid ids follow no particular order; paint order is list order
+		ids.sortUnique();
+		for (int i = 0; i < ids.size(); i++) {
+			Connection conn = connections.get(ids.get(i));
+			Line2D line = conn.getIndexedLine();
+			if (line != null && line.intersects(padded)) {
+				out.add(conn);
 			}
 		}
-		return null;
 	}
 
 	public void handleClick(int x, int y) {
@@ -30,18 +328,239 @@ class Board implements Serializable {
 				y - DrawableBox.BOX_SIZE / 2);
 	}
 
-	public void addConnection(Object source, Object target, boolean isDecoratorConnection) {
-		connections.add(new Connection(source, target, isDecoratorConnection));
+	public void addConnection(Object source, Object target, boolean isDecoratorConnection, ConnectionKind kind) {
+		Connection conn = new Connection(source, target, isDecoratorConnection, kind);
+		indexConnection(conn, connections.size());
+		connections.add(conn);
+		for (BoardListener l : listeners) {
+			l.connectionAdded(conn);
+		}
+	}
+
+	// Puts a connection back at a given slot, e.g. when undoing its removal;
+	// later connections shift up one slot
+	void insertConnection(Connection conn, int index) {
+		if (index < 0 || index > connections.size()) {
+			return;
+		}
+		connections.add(index, conn);
+		for (int i = connections.size() - 1; i > index; i--) {
+			connections.get(i).setIndex(i);
+		}
+		indexConnection(conn, index);
+		for (BoardListener l : listeners) {
+			l.connectionAdded(conn);
+		}
+	}
+
+	public void removeConnection(Connection conn) {
+		int index = conn.getIndex();
+		if (index < 0 || index >= connections.size() || connections.get(index) != conn) {
+			return;
+		}
+		removeLine(conn.getGridId(), conn.getIndexedLine());
+		gridConnections.set(conn.getGridId(), null);
+		freeGridIds.add(conn.getGridId());
+		conn.setGridId(-1);
+		unlink(outgoing, conn.getSource(), conn);
+		unlink(incoming, conn.getTarget(), conn);
+		unlink(decoratorEnds, ownerOf(conn.getSource()), conn);
+		unlink(decoratorEnds, ownerOf(conn.getTarget()), conn);
+		countRealization(conn, -1);
+		connections.remove(index);
+		conn.setIndexedLine(null);
+		// Later connections shift down one slot; their grid ids stay
+		for (int i = index; i < connections.size(); i++) {
+			connections.get(i).setIndex(i);
+		}
+		for (BoardListener l : listeners) {
+			l.connectionRemoved(conn);
+		}
+		conn.setIndex(-1);
+	}
+
+	// Connections whose source is box, in creation order
+	public List<Connection> getOutgoingConnections(DrawableBox box) {
+		loadAdjacency(box);
+		List<Connection> list = outgoing.get(box);
+		return list != null ? Collections.unmodifiableList(list) : Collections.<Connection>emptyList();
+	}
+
+	// Connections whose target is box, in creation order
+	public List<Connection> getIncomingConnections(DrawableBox box) {
+		loadAdjacency(box);
+		List<Connection> list = incoming.get(box);
+		return list != null ? Collections.unmodifiableList(list) : Collections.<Connection>emptyList();
+	}
+
+	// Whether a realization from another box ends on box, which CodeGenerator
+	// then generates as an interface
+	boolean isRealized(DrawableBox box) {
+		loadAdjacency(box);
+		return box.getRealizations() > 0;
+	}
+
+	// Connections attached to one of box's decorator circles, which move with it
+	List<Connection> getDecoratorConnections(DrawableBox box) {
+		List<Connection> list = decoratorEnds.get(box);
+		return list != null ? Collections.unmodifiableList(list) : Collections.<Connection>emptyList();
+	}
+
+	public void connectDecorators(Decorator first, Decorator second) {
+		first.addConnectedDecorator(second);
+		second.addConnectedDecorator(first);
+		for (BoardListener l : listeners) {
+			l.decoratorsConnected(first, second);
+		}
+	}
+
+	public void disconnectDecorators(Decorator first, Decorator second) {
+		first.removeConnectedDecorator(second);
+		second.removeConnectedDecorator(first);
+		for (BoardListener l : listeners) {
+			l.decoratorsDisconnected(first, second);
+		}
 	}
 
 	public void updateConnections(DrawableBox movedBox) {
-		for (Connection conn : connections) {
-			if (conn.containsBox(movedBox)) {
-				conn.updateEndpoints(movedBox);
+		// Stored lines of paged-out connections would go stale once the box moves
+		loadAdjacency(movedBox);
+		List<Connection> out = outgoing.get(movedBox);
+		if (out != null) {
+			for (Connection conn : out) {
+				refreshConnection(conn, movedBox);
 			}
 		}
+		List<Connection> in = incoming.get(movedBox);
+		if (in != null) {
+			for (Connection conn : in) {
+				// Self-connections are already handled through the outgoing list
+				if (conn.getSource() != movedBox) {
+					refreshConnection(conn, movedBox);
+				}
+			}
+		}
+		List<Connection> viaDecorators = decoratorEnds.get(movedBox);
+		if (viaDecorators != null) {
+			for (Connection conn : viaDecorators) {
+				refreshConnection(conn, movedBox);
+			}
+		}
+	}
+
+	private void refreshConnection(Connection conn, DrawableBox movedBox) {
+		conn.updateEndpoints(movedBox);
+		int gridId = conn.getGridId();
+		Line2D line = conn.getLine();
+		removeLine(gridId, conn.getIndexedLine());
+		insertLine(gridId, line);
+		conn.setIndexedLine(line);
+	}
+
+	private void indexConnection(Connection conn, int index) {
+		Line2D line = conn.getLine();
+		conn.setIndex(index);
+		conn.setIndexedLine(line);
+		int gridId = freeGridIds.size() > 0 ? freeGridIds.pop() : gridConnections.size();
+		if (gridId == gridConnections.size()) {
+			gridConnections.add(conn);
+		} else {
+			gridConnections.set(gridId, conn);
+		}
+		conn.setGridId(gridId);
+		insertLine(gridId, line);
+		link(outgoing, conn.getSource(), conn);
+		link(incoming, conn.getTarget(), conn);
+		link(decoratorEnds, ownerOf(conn.getSource()), conn);
+		link(decoratorEnds, ownerOf(conn.getTarget()), conn);
+		countRealization(conn, 1);
+	}
+
+	private static void countRealization(Connection conn, int delta) {
+		if (conn.getKind() == ConnectionKind.REALIZATION && conn.getSource() instanceof DrawableBox
+				&& conn.getTarget() instanceof DrawableBox) {
+			((DrawableBox) conn.getTarget()).addRealizations(delta);
+		}
+	}
+
+	private static DrawableBox ownerOf(Object end) {
+		return end instanceof Decorator ? ((Decorator) end).getOwner() : null;
+	}
+
+	private void insertLine(int gridId, Line2D line) {
+		if (line != null && connectionIndex != null) {
+			connectionIndex.insertSegment(gridId, (int) line.getX1(), (int) line.getY1(),
+					(int) line.getX2(), (int) line.getY2());
+		}
+	}
+
+	private void removeLine(int gridId, Line2D line) {
+		if (line != null && connectionIndex != null) {
+			connectionIndex.removeSegment(gridId, (int) line.getX1(), (int) line.getY1(),
+					(int) line.getX2(), (int) line.getY2());
+		}
+	}
+
+	// Keeps each list in creation order even when connections are paged in out of order
+	private static void link(Map<DrawableBox, List<Connection>> adjacency, Object end, Connection conn) {
+		if (end instanceof DrawableBox) {
+			List<Connection> list = adjacency.computeIfAbsent((DrawableBox) end, k -> new ArrayList<>(2));
+			int i = list.size();
+			while (i > 0 && list.get(i - 1).getIndex() > conn.getIndex()) {
+				i--;
+			}
+			list.add(i, conn);
+		}
+	}
+
+	private static void unlink(Map<DrawableBox, List<Connection>> adjacency, Object end, Connection conn) {
+		List<Connection> list = adjacency.get(end);
+		if (list != null) {
+			list.remove(conn);
+			if (list.isEmpty()) {
+				adjacency.remove(end);
+			}
+		}
+	}
+
+	// Positions and decorator kinds of the attached boxes, by box index
+	BoxStore getGeometry() {
+		return geometry;
+	}
+
+	// Called by DrawableBox whenever its position or decorator row changes
+	void boxBoundsChanged(DrawableBox box, Rectangle oldBounds) {
+		boxIndex.update(box.getIndex(), oldBounds, box.getBounds());
+		if (oldBounds.x != box.getX() || oldBounds.y != box.getY()) {
+			updateConnections(box);
+		}
+	}
+
+	void fireBoxMoved(DrawableBox box, int oldX, int oldY) {
+		for (BoardListener l : listeners) {
+			l.boxMoved(box, oldX, oldY);
+		}
+	}
+
+	void fireBoxRenamed(DrawableBox box, String oldName) {
+		for (BoardListener l : listeners) {
+			l.boxRenamed(box, oldName);
+		}
 	}
 
+	void fireDecoratorAdded(DrawableBox box, Decorator decorator) {
+		for (BoardListener l : listeners) {
+			l.decoratorAdded(box, decorator);
+		}
+	}
+
+	void fireDecoratorRemoved(DrawableBox box, Decorator decorator) {
+		for (BoardListener l : listeners) {
+			l.decoratorRemoved(box, decorator);
+		}
+	}
+
+	// Every box; on a lazily opened board, iterating pages everything in
 	public List<DrawableBox> getBoxes() {
 		return boxes;
 	}
@@ -49,4 +568,117 @@ class Board implements Serializable {
 	public List<Connection> getConnections() {
 		return connections;
 	}
-}
\ No newline at end of file
+
+	public boolean isFullyLoaded() {
+		return source == null;
+	}
+
+	// File the board is still paging in from, or null once fully loaded
+	MappedDiagram getSource() {
+		return source;
+	}
+
+	// False for a box that is still only in the file. Such a box has not been
+	// edited, nor has any connection from or to it.
+	boolean isBoxLoaded(int index) {
+		return source == null || boxSlots.isLoaded(index);
+	}
+
+	// Pages in whatever is still only in the backing file and lets go of it
+	public void loadAll() {
+		if (source == null) {
+			return;
+		}
+		for (int i = 0; i < boxes.size(); i++) {
+			boxes.get(i);
+		}
+		for (int i = 0; i < connections.size(); i++) {
+			connections.get(i);
+		}
+		source = null;
+		adjacencyLoaded = null;
+	}
+
+	private DrawableBox loadBox(int index) {
+		DrawableBox box = source.readBox(index);
+		box.attach(this, index);
+		// Stored before resolving links, which may lead back to this box
+		boxSlots.store(index, box);
+		boxIndex.insert(index, box.getBounds());
+		pendingLinks.add(box);
+		if (!resolvingLinks) {
+			// Drained iteratively: a long chain of links would otherwise recurse box by box
+			resolvingLinks = true;
+			try {
+				DrawableBox next;
+				while ((next = pendingLinks.poll()) != null) {
+					resolveLinks(next);
+				}
+			} finally {
+				resolvingLinks = false;
+			}
+		}
+		return box;
+	}
+
+	private void resolveLinks(DrawableBox box) {
+		List<Decorator> decorators = box.getDecorators();
+		int base = source.getDecoratorBase(box.getIndex());
+		SpatialGrid.IntBag ids = linkIds;
+		for (int k = 0; k < decorators.size(); k++) {
+			source.readLinks(base + k, ids);
+			for (int i = 0; i < ids.size(); i++) {
+				decorators.get(k).addConnectedDecorator(storedDecorator(ids.get(i)));
+			}
+		}
+	}
+
+	private Decorator storedDecorator(int global) {
+		int owner = source.findDecoratorOwner(global);
+		return boxes.get(owner).getDecorators().get(global - source.getDecoratorBase(owner));
+	}
+
+	private Connection loadConnection(int index) {
+		int flags = source.getConnectionFlags(index);
+		Object from = (flags & DpvFormat.FLAG_SOURCE_DECORATOR) != 0
+				? storedDecorator(source.getConnectionSource(index)) : boxes.get(source.getConnectionSource(index));
+		Object to = (flags & DpvFormat.FLAG_TARGET_DECORATOR) != 0
+				? storedDecorator(source.getConnectionTarget(index)) : boxes.get(source.getConnectionTarget(index));
+		Connection conn = new Connection(from, to, (flags & DpvFormat.FLAG_DECORATOR_CONNECTION) != 0,
+				DpvFormat.kindOf(flags));
+		connectionSlots.store(index, conn);
+		indexConnection(conn, index);
+		return conn;
+	}
+
+	// Pages in every stored connection of box so its adjacency lists are complete
+	private void loadAdjacency(DrawableBox box) {
+		int index = box.getIndex();
+		if (source == null || index < 0 || index >= source.getBoxCount() || adjacencyLoaded.get(index)) {
+			return;
+		}
+		adjacencyLoaded.set(index);
+		SpatialGrid.IntBag ids = adjacencyIds;
+		source.readOutgoing(index, ids);
+		for (int i = 0; i < ids.size(); i++) {
+			connections.get(ids.get(i));
+		}
+		source.readIncoming(index, ids);
+		for (int i = 0; i < ids.size(); i++) {
+			connections.get(ids.get(i));
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initTransientState();
+		for (int i = 0; i < boxes.size(); i++) {
+			DrawableBox box = boxes.get(i);
+			box.attach(this, i);
+			boxIndex.insert(i, box.getBounds());
+		}
+		for (int i = 0; i < connections.size(); i++) {
+			indexConnection(connections.get(i), i);
+		}
+	}
+}
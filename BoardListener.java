@@ -0,0 +1,27 @@
+// BoardListener.java
+// Receives model edits made through Board and its boxes. Every callback is
+// invoked after the change has been applied.
+interface BoardListener {
+    default void boxAdded(DrawableBox box) {}
+
+    // box.getIndex() is already -1; it was the last box on the board
+    default void boxRemoved(DrawableBox box) {}
+
+    default void boxMoved(DrawableBox box, int oldX, int oldY) {}
+
+    default void boxRenamed(DrawableBox box, String oldName) {}
+
+    default void decoratorAdded(DrawableBox box, Decorator decorator) {}
+
+    // decorator was the last one on box
+    default void decoratorRemoved(DrawableBox box, Decorator decorator) {}
+
+    default void connectionAdded(Connection connection) {}
+
+    // connection.getIndex() still reports the slot it was removed from
+    default void connectionRemoved(Connection connection) {}
+
+    default void decoratorsConnected(Decorator first, Decorator second) {}
+
+    default void decoratorsDisconnected(Decorator first, Decorator second) {}
+}
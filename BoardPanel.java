@@ -1,7 +1,10 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.Map;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
 
 class BoardPanel extends JPanel {
     private Board board;
@@ -9,13 +12,115 @@ class BoardPanel extends JPanel {
     private Object selectedFirstObject = null;
     private int dragOffsetX, dragOffsetY;
     private boolean connectionMode = false;
-    private String currentConnectorType = "Association";
+    private ConnectionKind currentConnectorKind = ConnectionKind.ASSOCIATION;
     private CodeViewer codeViewer;
+    private CodeGenerator codeGenerator;
+    private DiagramValidator validator;
+    private final CodeGenerationService codeGeneration;
+    private boolean parallelCodeGeneration;
+    private UndoHistory history;
+
+    // Offscreen copy of everything except the live (dragged) boxes, rebuilt only on model changes
+    private BufferedImage staticLayer;
+    private Rectangle layerArea;
+    private boolean layerDirty = true;
+    private final List<DrawableBox> liveBoxes = new ArrayList<>();
+    private final List<Connection> liveConnections = new ArrayList<>();
+    private final BoardRenderer renderer = new BoardRenderer();
+    // Reused every frame instead of asking Swing for fresh rectangles
+    private final Rectangle visibleArea = new Rectangle();
+    private final Rectangle boardArea = new Rectangle();
+    private final Rectangle clipArea = new Rectangle();
+
+    // Zoom and pan; mouse positions are mapped through it before hit-testing
+    private final Viewport viewport = new Viewport();
+    private static final int WHEEL_SCROLL_PIXELS = 40;
+    private Point panPoint;
+
+    // Drag motion is coalesced: events only record the target, the frame timer applies it
+    private static final int FRAME_MILLIS = 16;
+    private final Timer dragFrameTimer = new Timer(FRAME_MILLIS, e -> applyPendingDrag());
+    private Point pendingDragPoint;
+    private final MetricsOverlay metricsOverlay = new MetricsOverlay();
+    // Lazily opened boards: once painting settles, page in the ring around the viewport
+    private static final int PREFETCH_DELAY_MILLIS = 100;
+    private final Timer prefetchTimer = new Timer(PREFETCH_DELAY_MILLIS, e -> prefetchAroundViewport());
+    private final BoardListener layerInvalidator = new BoardListener() {
+        @Override
+        public void boxAdded(DrawableBox box) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void boxRemoved(DrawableBox box) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void boxMoved(DrawableBox box, int oldX, int oldY) {
+            // Live boxes are painted over the layer, so moving them leaves it valid
+            if (!liveBoxes.contains(box)) {
+                invalidateLayer();
+            }
+        }
+
+        @Override
+        public void boxRenamed(DrawableBox box, String oldName) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void decoratorAdded(DrawableBox box, Decorator decorator) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void connectionAdded(Connection connection) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void connectionRemoved(Connection connection) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void decoratorsConnected(Decorator first, Decorator second) {
+            invalidateLayer();
+        }
+
+        @Override
+        public void decoratorsDisconnected(Decorator first, Decorator second) {
+            invalidateLayer();
+        }
+    };
 
     public BoardPanel(Board board) {
         this.board = board;
         setPreferredSize(new Dimension(800, 600));
+        board.addBoardListener(layerInvalidator);
+        codeGenerator = new CodeGenerator(board, true);
+        validator = new DiagramValidator(board);
+        renderer.setValidator(validator);
+        history = new UndoHistory(board);
+        codeGeneration = new CodeGenerationService(codeGenerator, files -> {
+            if (codeViewer != null) {
+                codeViewer.updateGeneratedCode(files);
+            }
+        });
+        prefetchTimer.setRepeats(false);
         setupMouseListeners();
+        // Nothing else is laid out on the board; the overlay keeps its own size
+        setLayout(null);
+        metricsOverlay.setLocation(8, 8);
+        add(metricsOverlay);
+        // Registers with the tooltip manager; the text comes from getToolTipText(MouseEvent)
+        setToolTipText("");
     }
 
     public void setCodeViewer(CodeViewer viewer) {
@@ -26,6 +131,23 @@ class BoardPanel extends JPanel {
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
+                long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+                pressed(e);
+                recordInput(start, allocated);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+                released(e);
+                recordInput(start, allocated);
+            }
+
+            private void pressed(MouseEvent e) {
+                if (SwingUtilities.isMiddleMouseButton(e)) {
+                    panPoint = e.getPoint();
+                    return;
+                }
                 Object clickedObject = getClickedObject(e.getX(), e.getY());
                 if (SwingUtilities.isRightMouseButton(e)) {
                     handleRightClick(e, clickedObject);
@@ -34,11 +156,16 @@ class BoardPanel extends JPanel {
                 }
             }
 
-            @Override
-            public void mouseReleased(MouseEvent e) {
+            private void released(MouseEvent e) {
+                if (SwingUtilities.isMiddleMouseButton(e)) {
+                    panPoint = null;
+                }
                 if (draggedBox != null) {
-                    board.updateConnections(draggedBox);
+                    applyPendingDrag();
+                    dragFrameTimer.stop();
                     draggedBox = null;
+                    history.endCompound();
+                    endLiveDrag();
                 }
             }
         });
@@ -46,33 +173,109 @@ class BoardPanel extends JPanel {
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (draggedBox != null) {
-                    draggedBox.move(e.getX() - dragOffsetX, e.getY() - dragOffsetY);
-                    board.updateConnections(draggedBox);
-                    repaint();
+                long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+                if (panPoint != null) {
+                    viewport.panBy(panPoint.x - e.getX(), panPoint.y - e.getY());
+                    panPoint = e.getPoint();
+                    viewChanged();
+                } else if (draggedBox != null) {
+                    pendingDragPoint = e.getPoint();
+                    if (!dragFrameTimer.isRunning()) {
+                        dragFrameTimer.start();
+                    }
+                }
+                recordInput(start, allocated);
+            }
+        });
+
+        // Ctrl+wheel zooms around the pointer, the wheel alone scrolls (sideways with Shift)
+        addMouseWheelListener(e -> {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            int rotation = e.getWheelRotation();
+            if (e.isControlDown() || e.isMetaDown()) {
+                if (viewport.zoomBy(-rotation, e.getX(), e.getY())) {
+                    viewChanged();
                 }
+            } else if (e.isShiftDown()) {
+                viewport.panBy(rotation * WHEEL_SCROLL_PIXELS, 0);
+                viewChanged();
+            } else {
+                viewport.panBy(0, rotation * WHEEL_SCROLL_PIXELS);
+                viewChanged();
             }
+            recordInput(start, allocated);
         });
     }
 
+    // Event handling only; the repaints it asks for are counted as frames
+    private static void recordInput(long start, long allocated) {
+        Metrics.INPUT.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
+    }
+
     private Object getClickedObject(int clickX, int clickY) {
-        DrawableBox box = board.getBoxAt(clickX, clickY);
-        if (box != null) {
-            // Check decorators first
-            for (Decorator decorator : box.getDecorators()) {
-                int decoratorScreenX = clickX - (box.getX() + DrawableBox.BOX_SIZE + 10);
-                int decoratorScreenY = clickY - (box.getY() + (DrawableBox.BOX_SIZE - Decorator.CIRCLE_SIZE) / 2);
-                if (decorator.contains(decoratorScreenX, decoratorScreenY)) {
-                    return decorator;
-                }
+        // Board resolves decorators before their box and returns the topmost hit
+        Point p = viewport.toBoard(clickX, clickY);
+        long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+        Object hit = board.getObjectAt(p.x, p.y);
+        Metrics.HIT_TEST.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
+        return hit;
+    }
+
+    // Problems the validator found with the box under the pointer, if any
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        Point p = viewport.toBoard(e.getX(), e.getY());
+        Object hit = board.getObjectAt(p.x, p.y);
+        DrawableBox box = hit instanceof Decorator ? ((Decorator) hit).getOwner() : (DrawableBox) hit;
+        if (box == null || !validator.hasProblems(box)) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder("<html>");
+        for (String message : validator.describe(box)) {
+            if (text.length() > "<html>".length()) {
+                text.append("<br>");
             }
-            return box;
+            text.append(message.replace("&", "&amp;").replace("<", "&lt;"));
         }
-        return null;
+        return text.append("</html>").toString();
+    }
+
+    public void setMetricsOverlayVisible(boolean visible) {
+        metricsOverlay.setVisible(visible);
+    }
+
+    public void zoomIn() {
+        zoomAroundCentre(1);
     }
 
+    public void zoomOut() {
+        zoomAroundCentre(-1);
+    }
+
+    // Back to 100% with the board origin in the top-left corner
+    public void resetView() {
+        viewport.reset();
+        viewChanged();
+    }
+
+    private void zoomAroundCentre(int steps) {
+        if (viewport.zoomBy(steps, getWidth() / 2, getHeight() / 2)) {
+            viewChanged();
+        }
+    }
+
+    private void viewChanged() {
+        renderer.setZoom(viewport.getZoom());
+        invalidateLayer();
+    }
+
+    // connectorType is a Connectors menu entry, i.e. a ConnectionKind display name
     public void setConnectorMode(String connectorType) {
-        this.currentConnectorType = connectorType;
+        ConnectionKind kind = ConnectionKind.of(connectorType);
+        if (kind == null) {
+            throw new IllegalArgumentException("Unknown connector type: " + connectorType);
+        }
+        this.currentConnectorKind = kind;
         this.connectionMode = true;
         this.selectedFirstObject = null;
     }
@@ -86,12 +289,12 @@ class BoardPanel extends JPanel {
                     // Connect the two decorators
                     Decorator firstDecorator = (Decorator) selectedFirstObject;
                     Decorator secondDecorator = (Decorator) clickedObject;
-                    firstDecorator.addConnectedDecorator(secondDecorator);
-                    secondDecorator.addConnectedDecorator(firstDecorator);
+                    board.connectDecorators(firstDecorator, secondDecorator);
                     repaint();
                 } else if (selectedFirstObject instanceof DrawableBox && clickedObject instanceof DrawableBox) {
-                    // Connect the two boxes as before
-                    board.addConnection(selectedFirstObject, clickedObject, false);
+                    // Connect the two boxes with the chosen kind of relationship
+                    board.addConnection(selectedFirstObject, clickedObject, false, currentConnectorKind);
+                    updateCodeGeneration();
                     repaint();
                 }
                 selectedFirstObject = null;
@@ -100,12 +303,16 @@ class BoardPanel extends JPanel {
             return;
         }
 
+        Point p = viewport.toBoard(e.getX(), e.getY());
         if (clickedObject instanceof DrawableBox) {
             draggedBox = (DrawableBox) clickedObject;
-            dragOffsetX = e.getX() - draggedBox.getX();
-            dragOffsetY = e.getY() - draggedBox.getY();
+            dragOffsetX = p.x - draggedBox.getX();
+            dragOffsetY = p.y - draggedBox.getY();
+            // The whole drag becomes one undo step
+            history.beginCompound();
+            beginLiveDrag(draggedBox);
         } else if (clickedObject == null) {
-            board.handleClick(e.getX(), e.getY());
+            board.handleClick(p.x, p.y);
             repaint();
         }
     }
@@ -155,25 +362,233 @@ class BoardPanel extends JPanel {
 
     private void updateCodeGeneration() {
         if (codeViewer != null) {
-            CodeGenerator generator = new CodeGenerator(board);
-            Map<String, String> generatedFiles = generator.generateProjectCode();
-            codeViewer.updateGeneratedCode(generatedFiles);
+            // Runs in the background; the incremental generator only re-renders touched boxes
+            codeGeneration.request();
+        }
+    }
+
+    public void setParallelCodeGeneration(boolean parallel) {
+        parallelCodeGeneration = parallel;
+        codeGenerator.setMode(parallel ? CodeGenerator.Mode.PARALLEL : CodeGenerator.Mode.SEQUENTIAL);
+    }
+
+    public void undo() {
+        if (draggedBox == null && history.canUndo()) {
+            history.undo();
+            updateCodeGeneration();
         }
     }
 
+    public void redo() {
+        if (draggedBox == null && history.canRedo()) {
+            history.redo();
+            updateCodeGeneration();
+        }
+    }
+
+    // Regenerates immediately (still off the EDT), e.g. for Tools > Generate Code
+    public void generateCodeNow() {
+        codeGeneration.runNow();
+    }
+
+    // Moves a box and everything drawn relative to it out of the static layer
+    private void beginLiveDrag(DrawableBox box) {
+        liveBoxes.clear();
+        liveConnections.clear();
+        liveBoxes.add(box);
+        // Decorator links are drawn by both ends, so linked boxes must be live too
+        for (Decorator decorator : box.getDecorators()) {
+            for (Decorator linked : decorator.getConnectedDecorators()) {
+                DrawableBox other = linked.getOwner();
+                if (other != null && !liveBoxes.contains(other)) {
+                    liveBoxes.add(other);
+                }
+            }
+        }
+        for (DrawableBox live : liveBoxes) {
+            addLiveConnections(board.getOutgoingConnections(live));
+            addLiveConnections(board.getIncomingConnections(live));
+            addLiveConnections(board.getDecoratorConnections(live));
+        }
+        invalidateLayer();
+    }
+
+    private void addLiveConnections(List<Connection> connections) {
+        for (Connection conn : connections) {
+            if (!liveConnections.contains(conn)) {
+                liveConnections.add(conn);
+            }
+        }
+    }
+
+    private void applyPendingDrag() {
+        if (draggedBox == null || pendingDragPoint == null) {
+            return;
+        }
+        Rectangle dirty = liveRegion();
+        // Board keeps its indexes and connection bounds current on move
+        Point p = viewport.toBoard(pendingDragPoint.x, pendingDragPoint.y);
+        draggedBox.move(p.x - dragOffsetX, p.y - dragOffsetY);
+        pendingDragPoint = null;
+        dirty.add(liveRegion());
+        viewport.toPanel(dirty, dirty).grow(2, 2);
+        repaint(dirty);
+    }
+
+    // Board area covered by the live boxes, their labels, decorator links and connections
+    private Rectangle liveRegion() {
+        Rectangle region = null;
+        FontMetrics fm = getFontMetrics(getFont());
+        for (DrawableBox box : liveBoxes) {
+            Rectangle bounds = box.getBounds();
+            // Long names are centred and may overhang the box
+            int overhang = (fm.stringWidth(box.getName()) - DrawableBox.BOX_SIZE) / 2;
+            if (overhang > 0) {
+                bounds.add(new Rectangle(box.getX() - overhang, box.getY(),
+                        DrawableBox.BOX_SIZE + 2 * overhang, DrawableBox.BOX_SIZE));
+            }
+            region = union(region, bounds);
+            for (Decorator decorator : box.getDecorators()) {
+                for (Decorator linked : decorator.getConnectedDecorators()) {
+                    Rectangle line = new Rectangle(decorator.getX(), decorator.getY(), 0, 0);
+                    line.add(linked.getX(), linked.getY());
+                    region = union(region, line);
+                }
+            }
+        }
+        for (Connection conn : liveConnections) {
+            region = union(region, conn.getBounds());
+        }
+        if (region == null) {
+            return new Rectangle();
+        }
+        region.grow(2, 2);
+        return region;
+    }
+
+    private static Rectangle union(Rectangle region, Rectangle r) {
+        if (region == null) {
+            return new Rectangle(r);
+        }
+        region.add(r);
+        return region;
+    }
+
+    private void endLiveDrag() {
+        liveBoxes.clear();
+        liveConnections.clear();
+        invalidateLayer();
+        repaint();
+    }
+
+    private void invalidateLayer() {
+        layerDirty = true;
+        repaint();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
+        long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
         super.paintComponent(g);
-        for (Connection conn : board.getConnections()) {
-            conn.draw(g);
+        Rectangle visible = visibleArea;
+        computeVisibleRect(visible);
+        if (visible.isEmpty()) {
+            return;
         }
-        for (DrawableBox box : board.getBoxes()) {
-            box.draw(g);
+        if (layerDirty || staticLayer == null || !visible.equals(layerArea)) {
+            rebuildLayer(visible);
+        }
+        g.drawImage(staticLayer, visible.x, visible.y, null);
+
+        if (!liveBoxes.isEmpty() || !liveConnections.isEmpty()) {
+            Graphics2D g2 = (Graphics2D) g;
+            AffineTransform panelTransform = g2.getTransform();
+            g2.transform(viewport.getTransform());
+            // In board coordinates now; left as the visible board area when there is no clip
+            clipArea.setBounds(viewport.toBoard(visible, boardArea));
+            Rectangle clip = g2.getClipBounds(clipArea);
+            renderer.paintConnections(g2, liveConnections, clip);
+            for (int i = 0; i < liveBoxes.size(); i++) {
+                renderer.paintBox(g2, liveBoxes.get(i));
+            }
+            g2.setTransform(panelTransform);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = Metrics.allocatedBytes() - allocated;
+        Metrics.FRAME.record(nanos, allocated);
+        if (draggedBox != null) {
+            Metrics.DRAG_FRAME.record(nanos, allocated);
         }
     }
 
+    private void rebuildLayer(Rectangle visible) {
+        if (staticLayer == null || staticLayer.getWidth() != visible.width
+                || staticLayer.getHeight() != visible.height) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            staticLayer = gc != null
+                    ? gc.createCompatibleImage(visible.width, visible.height)
+                    : new BufferedImage(visible.width, visible.height, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D lg = staticLayer.createGraphics();
+        try {
+            lg.setColor(getBackground());
+            lg.fillRect(0, 0, visible.width, visible.height);
+            lg.setFont(getFont());
+            lg.translate(-visible.x, -visible.y);
+            lg.transform(viewport.getTransform());
+            // Only what intersects the viewport is drawn
+            renderer.paint(lg, board, viewport.toBoard(visible, boardArea), liveBoxes, liveConnections);
+        } finally {
+            lg.dispose();
+        }
+        if (layerArea == null) {
+            layerArea = new Rectangle();
+        }
+        layerArea.setBounds(visible);
+        layerDirty = false;
+        if (!board.isFullyLoaded()) {
+            prefetchTimer.restart();
+        }
+    }
+
+    private void prefetchAroundViewport() {
+        Rectangle around = getVisibleRect();
+        if (around.isEmpty() || board.isFullyLoaded()
+                || viewport.getZoom() < BoardRenderer.CLUSTER_BELOW) {
+            // Zoomed far out, painting reads positions only; loading would page in most of the file
+            return;
+        }
+        viewport.toBoard(around, around);
+        // One viewport in every direction, so scrolling finds the neighbours ready
+        around.grow(around.width, around.height);
+        board.getBoxesIn(around);
+        board.getConnectionsIn(around);
+    }
+
     public void setBoard(Board board) {
+        this.board.removeBoardListener(layerInvalidator);
         this.board = board;
-        repaint();
+        board.addBoardListener(layerInvalidator);
+        codeGenerator.dispose();
+        codeGenerator = new CodeGenerator(board, true);
+        validator.dispose();
+        validator = new DiagramValidator(board);
+        renderer.setValidator(validator);
+        history.dispose();
+        history = new UndoHistory(board);
+        setParallelCodeGeneration(parallelCodeGeneration);
+        codeGeneration.setGenerator(codeGenerator);
+        dragFrameTimer.stop();
+        prefetchTimer.stop();
+        pendingDragPoint = null;
+        draggedBox = null;
+        liveBoxes.clear();
+        liveConnections.clear();
+        panPoint = null;
+        // Sprites of the old board's boxes would only age out slowly
+        renderer.getSprites().clear();
+        renderer.detach();
+        viewport.reset();
+        viewChanged();
     }
 }
\ No newline at end of file
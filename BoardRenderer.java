@@ -0,0 +1,157 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// BoardRenderer.java
+// Paints the part of a board inside an area: connections first, then boxes in
+// index order. The query result lists are kept between calls and every stroke,
+// colour and label layout comes from a shared cache, so painting a frame does
+// not allocate anything of its own. Box squares and names are copied from
+// pre-rendered tiles; see SpriteCache. Connection lines are kept between
+// frames while none of them moves, and zoomed out drawn with one call per
+// line style; see ConnectionBatch.
+//
+// Detail drops with the zoom level so a frame's cost stays bounded however much
+// of the board is in view. Below FLAT_BELOW boxes are flat rects and connections
+// hairlines. Below CLUSTER_BELOW boxes are counted into blocks of CLUSTER_BLOCK
+// panel pixels, each filled once and darker the more boxes it holds, and
+// connections are left out.
+//
+// Boxes the DiagramValidator finds a problem with are outlined in red at
+// every level but the clusters.
+class BoardRenderer {
+    static final double FLAT_BELOW = 0.5;
+    static final double CLUSTER_BELOW = 0.15;
+    static final int CLUSTER_BLOCK = 4;
+    // Block fill by number of boxes: 1, 2, 3-4, 5 or more
+    private static final Color[] CLUSTER_SHADES = {
+            new Color(136, 136, 136), new Color(112, 112, 112), new Color(88, 88, 88), Color.DARK_GRAY
+    };
+    private static final Color PROBLEM = new Color(220, 50, 47);
+
+    private final SpriteCache sprites = new SpriteCache();
+    private final List<DrawableBox> boxes = new ArrayList<>();
+    private final ConnectionBatch connections = new ConnectionBatch();
+    private final ConnectionBatch liveConnections = new ConnectionBatch();
+    private final SpatialGrid.IntBag positions = new SpatialGrid.IntBag();
+    private int[] blocks = new int[0];
+    private double zoom = 1;
+    private DiagramValidator validator;
+
+    // Zoom level of the Graphics passed in, which picks the level of detail
+    public void setZoom(double zoom) {
+        this.zoom = zoom;
+    }
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    // Source of the problem outlines, or null for none
+    void setValidator(DiagramValidator validator) {
+        this.validator = validator;
+    }
+
+    // Leaves out skipBoxes and skipConnections, e.g. because they are painted live on top
+    void paint(Graphics2D g, Board board, Rectangle area,
+               List<DrawableBox> skipBoxes, List<Connection> skipConnections) {
+        sprites.nextFrame();
+        if (zoom < CLUSTER_BELOW) {
+            paintClusters(g, board, area, skipBoxes);
+            return;
+        }
+        connections.update(board, area, skipConnections);
+        connections.paint(g, zoom < FLAT_BELOW, zoom);
+        board.getBoxesIn(area, boxes);
+        for (int i = 0; i < boxes.size(); i++) {
+            DrawableBox box = boxes.get(i);
+            if (!skipBoxes.contains(box)) {
+                paintBox(g, box);
+            }
+        }
+        // Keep the capacity, not the references to a board that may be replaced
+        boxes.clear();
+    }
+
+    void paintBox(Graphics2D g, DrawableBox box) {
+        if (zoom < FLAT_BELOW) {
+            box.drawFlat(g);
+        } else {
+            sprites.paint(g, box);
+        }
+        if (validator != null && validator.hasProblems(box)) {
+            // Inside the square, so the box's bounds still cover everything painted
+            g.setColor(PROBLEM);
+            g.setStroke(PaintResources.LINE);
+            g.drawRect(box.getX() + 1, box.getY() + 1, DrawableBox.BOX_SIZE - 2, DrawableBox.BOX_SIZE - 2);
+        }
+        if (zoom >= FLAT_BELOW) {
+            box.drawLinks(g);
+        }
+    }
+
+    // Paints the listed connections that intersect area, e.g. those moving with a drag
+    void paintConnections(Graphics2D g, List<Connection> list, Rectangle area) {
+        if (zoom < CLUSTER_BELOW) {
+            return;
+        }
+        liveConnections.set(list, area);
+        liveConnections.paint(g, zoom < FLAT_BELOW, zoom);
+    }
+
+    // Stops tracking the board painted last, e.g. before it is replaced
+    void detach() {
+        connections.detach();
+    }
+
+    SpriteCache getSprites() {
+        return sprites;
+    }
+
+    // Reads box positions only, so a lazily opened board loads nothing here
+    private void paintClusters(Graphics2D g, Board board, Rectangle area, List<DrawableBox> skipBoxes) {
+        // Whole board units, so block edges stay put on the board while panning
+        int block = (int) Math.ceil(CLUSTER_BLOCK / zoom);
+        int x0 = Math.floorDiv(area.x, block), y0 = Math.floorDiv(area.y, block);
+        int cols = Math.floorDiv(area.x + area.width, block) - x0 + 1;
+        int rows = Math.floorDiv(area.y + area.height, block) - y0 + 1;
+        if (blocks.length < cols * rows) {
+            blocks = new int[cols * rows];
+        } else {
+            Arrays.fill(blocks, 0, cols * rows, 0);
+        }
+        board.getBoxPositions(area, positions);
+        for (int i = 0; i < positions.size(); i += 3) {
+            if (!skipBoxes.isEmpty() && isSkipped(positions.get(i), skipBoxes)) {
+                continue;
+            }
+            // A box counts towards the block holding its centre
+            int col = Math.floorDiv(positions.get(i + 1) + DrawableBox.BOX_SIZE / 2, block) - x0;
+            int row = Math.floorDiv(positions.get(i + 2) + DrawableBox.BOX_SIZE / 2, block) - y0;
+            if (col >= 0 && col < cols && row >= 0 && row < rows) {
+                blocks[row * cols + col]++;
+            }
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int count = blocks[row * cols + col];
+                if (count > 0) {
+                    g.setColor(CLUSTER_SHADES[count >= 5 ? 3 : count >= 3 ? 2 : count - 1]);
+                    g.fillRect((x0 + col) * block, (y0 + row) * block, block, block);
+                }
+            }
+        }
+    }
+
+    private static boolean isSkipped(int index, List<DrawableBox> skipBoxes) {
+        for (int i = 0; i < skipBoxes.size(); i++) {
+            if (skipBoxes.get(i).getIndex() == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,17 @@
+import java.util.Collections;
+import java.util.List;
+
+// BoardSnapshot.java
+// Point-in-time copy of the generation inputs of every box, in board order.
+// Taken on the EDT and rendered anywhere.
+final class BoardSnapshot {
+    private final List<ClassSpec> classes;
+
+    BoardSnapshot(List<ClassSpec> classes) {
+        this.classes = Collections.unmodifiableList(classes);
+    }
+
+    public List<ClassSpec> getClasses() {
+        return classes;
+    }
+}
@@ -0,0 +1,101 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+// BoxStore.java
+// Geometry of a board's boxes in parallel primitive arrays indexed by box index:
+// position, decorator count (which fixes the width) and the set of decorator
+// kinds as one bit per DecoratorType. Hit-testing, culling and kind queries scan
+// these arrays instead of dereferencing every DrawableBox.
+//
+// Slots of boxes not yet paged in from a backing file hold zeros.
+final class BoxStore {
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private int[] decoratorCounts = new int[16];
+    private long[] kinds = new long[16];
+
+    void put(int index, int x, int y, int decoratorCount, long kindMask) {
+        ensureCapacity(index + 1);
+        xs[index] = x;
+        ys[index] = y;
+        decoratorCounts[index] = decoratorCount;
+        kinds[index] = kindMask;
+    }
+
+    void setPosition(int index, int x, int y) {
+        xs[index] = x;
+        ys[index] = y;
+    }
+
+    void setDecorators(int index, int decoratorCount, long kindMask) {
+        decoratorCounts[index] = decoratorCount;
+        kinds[index] = kindMask;
+    }
+
+    int getX(int index) {
+        return xs[index];
+    }
+
+    int getY(int index) {
+        return ys[index];
+    }
+
+    int getDecoratorCount(int index) {
+        return decoratorCounts[index];
+    }
+
+    int getWidth(int index) {
+        return DrawableBox.widthFor(decoratorCounts[index]);
+    }
+
+    // DecoratorType.bit() of every decorator on the box, or-ed together
+    long getKinds(int index) {
+        return kinds[index];
+    }
+
+    // Same test as getBounds().intersects(area), without building the Rectangle
+    boolean intersects(int index, Rectangle area) {
+        if (area.width <= 0 || area.height <= 0) {
+            return false;
+        }
+        long x = xs[index], y = ys[index];
+        return x + getWidth(index) > area.x && y + DrawableBox.BOX_SIZE > area.y
+                && x < (long) area.x + area.width && y < (long) area.y + area.height;
+    }
+
+    // Whether (px, py) lies on the box or its decorator row, edges included
+    boolean contains(int index, int px, int py) {
+        int x = xs[index], y = ys[index];
+        return px >= x && px <= x + getWidth(index) && py >= y && py <= y + DrawableBox.BOX_SIZE;
+    }
+
+    // Indices below count whose bounds intersect area, in ascending order
+    void scan(int count, Rectangle area, SpatialGrid.IntBag out) {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            if (intersects(i, area)) {
+                out.add(i);
+            }
+        }
+    }
+
+    // Indices below count with at least one decorator of any kind in mask
+    void scanKinds(int count, long mask, SpatialGrid.IntBag out) {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            if ((kinds[i] & mask) != 0) {
+                out.add(i);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > xs.length) {
+            int grown = Math.max(capacity, xs.length + (xs.length >> 1));
+            xs = Arrays.copyOf(xs, grown);
+            ys = Arrays.copyOf(ys, grown);
+            decoratorCounts = Arrays.copyOf(decoratorCounts, grown);
+            kinds = Arrays.copyOf(kinds, grown);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// ClassSpec.java
+// Immutable snapshot of everything CodeGenerator needs to render one box.
+// Safe to hand to a background thread; the rendered code is memoized so a
+// spec reused across runs is only rendered once.
+final class ClassSpec {
+    private final String name;
+    private final List<String> decoratorTypes;
+    private final DecoratorType[] kinds;
+    private final long kindMask;
+    private final String superclass;
+    private final ConnectionKind[] targetKinds;
+    private final List<String> targetNames;
+    private final int targetKindMask;
+    private final boolean isInterface;
+    private final Set<String> interfaceTargets;
+    private volatile String code;
+
+    ClassSpec(String name, List<String> decoratorTypes, DecoratorType[] kinds, String superclass,
+              ConnectionKind[] targetKinds, List<String> targetNames,
+              boolean isInterface, Set<String> interfaceTargets) {
+        this.name = name;
+        this.decoratorTypes = Collections.unmodifiableList(new ArrayList<>(decoratorTypes));
+        this.kinds = kinds.clone();
+        long mask = 0;
+        for (DecoratorType kind : kinds) {
+            mask |= kind.bit();
+        }
+        this.kindMask = mask;
+        this.superclass = superclass;
+        this.targetKinds = targetKinds.clone();
+        this.targetNames = Collections.unmodifiableList(new ArrayList<>(targetNames));
+        int targetMask = 0;
+        for (ConnectionKind kind : targetKinds) {
+            targetMask |= kind.bit();
+        }
+        this.targetKindMask = targetMask;
+        this.isInterface = isInterface;
+        this.interfaceTargets = interfaceTargets.isEmpty() ? Collections.<String>emptySet()
+                : Collections.unmodifiableSet(new HashSet<>(interfaceTargets));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFileName() {
+        return name + ".java";
+    }
+
+    public List<String> getDecoratorTypes() {
+        return decoratorTypes;
+    }
+
+    // Resolved kind of each decorator, parallel to getDecoratorTypes(); do not modify
+    DecoratorType[] getKinds() {
+        return kinds;
+    }
+
+    public boolean has(DecoratorType kind) {
+        return (kindMask & kind.bit()) != 0;
+    }
+
+    // Name of the class this one extends, or null
+    public String getSuperclass() {
+        return superclass;
+    }
+
+    // Names of the classes the box's connections lead to, in creation order
+    public List<String> getTargetNames() {
+        return targetNames;
+    }
+
+    // Kind of each of those connections, parallel to getTargetNames(); do not modify
+    ConnectionKind[] getTargetKinds() {
+        return targetKinds;
+    }
+
+    public boolean has(ConnectionKind kind) {
+        return (targetKindMask & kind.bit()) != 0;
+    }
+
+    // Whether the box is generated as an interface, as something realizes it
+    public boolean isInterface() {
+        return isInterface;
+    }
+
+    // Whether the target of that name is generated as an interface
+    public boolean isInterface(String targetName) {
+        return interfaceTargets.contains(targetName);
+    }
+
+    // Code if it has already been rendered, otherwise null
+    public String getRenderedCode() {
+        return code;
+    }
+
+    // Code rendered for an identical spec before, e.g. read back from CodeCache
+    void setRenderedCode(String code) {
+        this.code = code;
+    }
+
+    public String getCode() {
+        String result = code;
+        if (result == null) {
+            result = CodeGenerator.render(this);
+            code = result;
+        }
+        return result;
+    }
+}
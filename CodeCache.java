@@ -0,0 +1,721 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// CodeCache.java
+// Generated code kept on disk across sessions, keyed by a 128-bit hash of
+// everything a class's code depends on: its spec, the content of the
+// templates its decorators use and CodeGenerator.OUTPUT_VERSION. Reopening a
+// diagram then renders only the classes that changed since it was last
+// generated; the rest are read back. The hash is MurmurHash3, as SHA-256
+// alone takes longer than rendering a class.
+//
+// Off unless run with -Ddpv.codeCache=true: with the built-in templates,
+// reading a class back costs more than rendering it (see the
+// generateProjectCode.cached benchmark). It pays off for templates that are
+// slow to render, or if rendering becomes so.
+//
+// code.dat holds the records, appended as classes are rendered: the 16-byte
+// key, the length and CRC-32 of the code's UTF-8 bytes, then the bytes.
+// code.idx lists the live ones, least recently used first, in 24 bytes each.
+// It is rewritten whole through a temporary file and an atomic rename, at
+// most every FLUSH_MILLIS while in use and on exit; records appended after it
+// was last written are dropped when the cache is next opened.
+//
+// Bounded by record bytes: past maxBytes the least recently used records are
+// dropped, and once dropped ones take more room than live ones code.dat is
+// rewritten without them. A record is only used if its key and CRC match, so
+// an index that outlived a rewrite or a damaged file costs misses, not wrong
+// code.
+//
+// One process uses a directory at a time (cache.lock); another runs without a
+// cache. An I/O error turns the cache off for the rest of the session, as all
+// it does is save time.
+class CodeCache {
+    static final boolean ENABLED = Boolean.getBoolean("dpv.codeCache");
+    static final long DEFAULT_MAX_BYTES = Long.getLong("dpv.codeCache.maxBytes", 64L * 1024 * 1024);
+
+    private static final String DATA = "code.dat";
+    private static final String INDEX = "code.idx";
+    private static final String LOCK = "cache.lock";
+    private static final int DATA_MAGIC = 0x44505643; // "DPVC"
+    private static final int INDEX_MAGIC = 0x44505649; // "DPVI"
+    private static final int FORMAT_VERSION = 1;
+    private static final int DATA_HEADER = 8;
+    private static final int INDEX_HEADER = 16;
+    private static final int INDEX_ENTRY = 24;
+    private static final int RECORD_HEADER = 24;
+    // Offsets are stored as ints
+    private static final long MAX_DATA_BYTES = Integer.MAX_VALUE;
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+    private static final long FLUSH_MILLIS = 10_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Hasher> HASHER = ThreadLocal.withInitial(Hasher::new);
+
+    private static CodeCache shared;
+    private static boolean sharedOpened;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final FileChannel lockChannel;
+    private FileChannel data;
+    private long dataLength;
+    // Live records, least recently used first; each entry is its own key
+    private final LinkedHashMap<Entry, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Entry probe = new Entry(0, 0);
+    private long liveBytes, deadBytes;
+    // Records added or dropped, or only reordered by hits, since code.idx was written
+    private boolean indexStale, orderStale;
+    private long lastFlush;
+    private volatile boolean closed;
+    // The part of code.dat read last, so records read in file order cost one read per buffer
+    private final ByteBuffer window = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long windowStart = -1;
+
+    private static final class Entry {
+        long hi, lo;
+        // Of the record in code.dat
+        int offset;
+        // Of the code, in UTF-8 bytes
+        int length;
+
+        Entry(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        long recordBytes() {
+            return RECORD_HEADER + (long) length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).hi == hi && ((Entry) o).lo == lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hi;
+        }
+    }
+
+    // Specs a load found no code for, with their keys, to store once rendered
+    static final class Misses {
+        private final List<ClassSpec> specs = new ArrayList<>();
+        private long[] keys = new long[32];
+
+        private void add(ClassSpec spec, long hi, long lo) {
+            int i = specs.size();
+            if (2 * i + 2 > keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[2 * i] = hi;
+            keys[2 * i + 1] = lo;
+            specs.add(spec);
+        }
+
+        int size() {
+            return specs.size();
+        }
+    }
+
+    private CodeCache(Path dir, long maxBytes, FileChannel lockChannel) throws IOException {
+        this.dir = dir;
+        this.maxBytes = Math.min(maxBytes, MAX_DATA_BYTES / 4);
+        this.lockChannel = lockChannel;
+        data = FileChannel.open(dir.resolve(DATA), CREATE, READ, WRITE);
+        try {
+            if (!readIndex()) {
+                reset();
+            }
+        } catch (IOException | RuntimeException ex) {
+            data.close();
+            throw ex;
+        }
+        lastFlush = System.nanoTime();
+    }
+
+    // Opens or creates the cache in dir; null if another process is using it
+    static CodeCache open(Path dir, long maxBytes) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel lockChannel = FileChannel.open(dir.resolve(LOCK), CREATE, WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                // Open in this process already
+                lock = null;
+            }
+            if (lock == null) {
+                lockChannel.close();
+                return null;
+            }
+            return new CodeCache(dir, maxBytes, lockChannel);
+        } catch (IOException | RuntimeException ex) {
+            // Closing the channel releases the lock
+            lockChannel.close();
+            throw ex;
+        }
+    }
+
+    // The cache in defaultDirectory(), opened on first use and written back on
+    // exit; null unless turned on with -Ddpv.codeCache=true, or if in use by
+    // another process or not usable
+    static synchronized CodeCache shared() {
+        if (!sharedOpened) {
+            sharedOpened = true;
+            if (ENABLED) {
+                try {
+                    shared = open(defaultDirectory(), DEFAULT_MAX_BYTES);
+                } catch (IOException | RuntimeException ex) {
+                    // E.g. a dpv.codeCache.dir that is not a valid path
+                    shared = null;
+                }
+                if (shared != null) {
+                    Runtime.getRuntime().addShutdownHook(new Thread(shared::close, "code-cache"));
+                }
+            }
+        }
+        return shared;
+    }
+
+    static Path defaultDirectory() {
+        String configured = System.getProperty("dpv.codeCache.dir");
+        return configured != null ? Paths.get(configured)
+                : Paths.get(System.getProperty("user.home"), ".dpv", "cache");
+    }
+
+    // Gives every spec not yet rendered the code stored for it, if any, and
+    // returns those without, to store once rendered. Keys are hashed before
+    // the cache is locked.
+    Misses load(List<ClassSpec> classes) {
+        Misses misses = new Misses();
+        if (closed) {
+            return misses;
+        }
+        long[] key = new long[2];
+        for (int i = 0; i < classes.size(); i++) {
+            ClassSpec spec = classes.get(i);
+            if (spec.getRenderedCode() == null) {
+                keyOf(spec, key);
+                misses.add(spec, key[0], key[1]);
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                return misses;
+            }
+            int kept = 0;
+            for (int i = 0; i < misses.specs.size(); i++) {
+                String code = read(misses.keys[2 * i], misses.keys[2 * i + 1]);
+                if (code != null) {
+                    misses.specs.get(i).setRenderedCode(code);
+                } else {
+                    misses.specs.set(kept, misses.specs.get(i));
+                    misses.keys[2 * kept] = misses.keys[2 * i];
+                    misses.keys[2 * kept + 1] = misses.keys[2 * i + 1];
+                    kept++;
+                }
+            }
+            misses.specs.subList(kept, misses.specs.size()).clear();
+            flushIfDue();
+        }
+        return misses;
+    }
+
+    // Appends the code of the specs load missed that have been rendered since
+    synchronized void store(Misses misses) {
+        if (closed || misses.size() == 0) {
+            return;
+        }
+        try {
+            ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = dataLength;
+            for (int i = 0; i < misses.specs.size(); i++) {
+                String code = misses.specs.get(i).getRenderedCode();
+                Entry entry = new Entry(misses.keys[2 * i], misses.keys[2 * i + 1]);
+                // Listed twice if two boxes are alike
+                if (code == null || entries.containsKey(entry)) {
+                    continue;
+                }
+                byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+                entry.length = bytes.length;
+                if (entry.recordBytes() > maxBytes) {
+                    continue;
+                }
+                // position is where out starts in code.dat
+                long offset = position + out.position();
+                if (offset + entry.recordBytes() > MAX_DATA_BYTES) {
+                    break;
+                }
+                entry.offset = (int) offset;
+                if (out.remaining() < RECORD_HEADER) {
+                    position = drain(data, out, position);
+                }
+                crc.reset();
+                crc.update(bytes, 0, bytes.length);
+                out.putLong(entry.hi).putLong(entry.lo).putInt(entry.length).putInt((int) crc.getValue());
+                for (int from = 0; from < bytes.length; ) {
+                    if (!out.hasRemaining()) {
+                        position = drain(data, out, position);
+                    }
+                    int n = Math.min(out.remaining(), bytes.length - from);
+                    out.put(bytes, from, n);
+                    from += n;
+                }
+                entries.put(entry, entry);
+                liveBytes += entry.recordBytes();
+                indexStale = true;
+                evict();
+            }
+            dataLength = drain(data, out, position);
+            if (deadBytes > liveBytes && deadBytes > MIN_COMPACT_BYTES) {
+                compact();
+            }
+            flushIfDue();
+        } catch (IOException ex) {
+            release();
+        }
+    }
+
+    // Writes code.idx if anything changed since it was last written
+    synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (indexStale || orderStale) {
+                writeIndex();
+            }
+        } catch (IOException ex) {
+            release();
+        }
+    }
+
+    // Writes code.idx back and lets another process have the directory
+    synchronized void close() {
+        flush();
+        release();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // Hash of what spec's code depends on, into key[0] and key[1]
+    static void keyOf(ClassSpec spec, long[] key) {
+        Hasher h = HASHER.get();
+        h.putInt(CodeGenerator.OUTPUT_VERSION);
+        h.putString(spec.getName());
+        h.putInt(spec.isInterface() ? 1 : 0);
+        DecoratorType[] kinds = spec.getKinds();
+        List<String> types = spec.getDecoratorTypes();
+        h.putInt(kinds.length);
+        for (int i = 0; i < kinds.length; i++) {
+            h.putString(types.get(i));
+            PatternTemplate t = PatternTemplates.forDecorator(kinds[i], types.get(i));
+            h.putLong(t != null ? t.getFingerprint() : 0);
+            // A custom template registered for several types is emitted once
+            // (see CodeGenerator.firstCustom), so which ones share it counts too
+            int first = i;
+            if (kinds[i] == DecoratorType.CUSTOM && t != null) {
+                for (int j = 0; j < i && first == i; j++) {
+                    if (kinds[j] == DecoratorType.CUSTOM && PatternTemplates.forDecorator(kinds[j], types.get(j)) == t) {
+                        first = j;
+                    }
+                }
+            }
+            h.putInt(first);
+        }
+        ConnectionKind[] relations = spec.getTargetKinds();
+        List<String> targets = spec.getTargetNames();
+        h.putInt(relations.length);
+        for (int i = 0; i < relations.length; i++) {
+            h.putInt(relations[i].ordinal());
+            h.putString(targets.get(i));
+            h.putInt(spec.isInterface(targets.get(i)) ? 1 : 0);
+        }
+        h.finish(key);
+    }
+
+    // 64 bits of the hash of parts, any of which may be null
+    static long fingerprint(String... parts) {
+        // Not the thread's hasher: keyOf may be midway through a key when
+        // looking up a template first builds them all
+        Hasher h = new Hasher();
+        h.putInt(parts.length);
+        for (String part : parts) {
+            h.putString(part);
+        }
+        long[] key = new long[2];
+        h.finish(key);
+        return key[0];
+    }
+
+    // Code of the live record with the key, or null
+    private String read(long hi, long lo) {
+        probe.hi = hi;
+        probe.lo = lo;
+        Entry entry = entries.get(probe);
+        if (entry == null) {
+            return null;
+        }
+        orderStale = true;
+        try {
+            ByteBuffer record = record(entry);
+            if (record == null) {
+                drop(entry);
+                return null;
+            }
+            return new String(record.array(), record.arrayOffset() + record.position() + RECORD_HEADER,
+                    entry.length, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            release();
+            return null;
+        }
+    }
+
+    // Buffer positioned at the entry's record, or null if the record there
+    // is not the entry's
+    private ByteBuffer record(Entry entry) throws IOException {
+        long start = entry.offset, end = start + entry.recordBytes();
+        if (end > dataLength) {
+            return null;
+        }
+        ByteBuffer buffer;
+        if (end - start > window.capacity()) {
+            buffer = ByteBuffer.allocate((int) (end - start));
+            readFully(buffer, start);
+        } else {
+            if (windowStart < 0 || start < windowStart || end > windowStart + window.limit()) {
+                window.clear();
+                window.limit((int) Math.min(window.capacity(), dataLength - start));
+                readFully(window, start);
+                windowStart = start;
+            }
+            buffer = window;
+            buffer.position((int) (start - windowStart));
+        }
+        return matches(buffer, entry) ? buffer : null;
+    }
+
+    private boolean matches(ByteBuffer record, Entry entry) {
+        int at = record.position();
+        if (record.getLong(at) != entry.hi || record.getLong(at + 8) != entry.lo
+                || record.getInt(at + 16) != entry.length) {
+            return false;
+        }
+        crc.reset();
+        crc.update(record.array(), record.arrayOffset() + at + RECORD_HEADER, entry.length);
+        return (int) crc.getValue() == record.getInt(at + 20);
+    }
+
+    private void drop(Entry entry) {
+        entries.remove(entry);
+        liveBytes -= entry.recordBytes();
+        deadBytes += entry.recordBytes();
+        indexStale = true;
+    }
+
+    // Drops least recently used records until the live ones fit in maxBytes
+    private void evict() {
+        Iterator<Entry> eldest = entries.keySet().iterator();
+        while (liveBytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            liveBytes -= entry.recordBytes();
+            deadBytes += entry.recordBytes();
+        }
+    }
+
+    // Rewrites code.dat with only the live records, least recently used
+    // first, then writes code.idx for it
+    private void compact() throws IOException {
+        Path temp = dir.resolve(DATA + ".tmp");
+        long position = DATA_HEADER;
+        try (FileChannel out = FileChannel.open(temp, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(DATA_MAGIC).putInt(FORMAT_VERSION);
+            long written = 0;
+            for (Iterator<Entry> it = entries.keySet().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                ByteBuffer record = record(entry);
+                if (record == null) {
+                    it.remove();
+                    liveBytes -= entry.recordBytes();
+                    continue;
+                }
+                int limit = record.limit();
+                record.limit(record.position() + (int) entry.recordBytes());
+                if (buffer.remaining() < record.remaining()) {
+                    written = drain(out, buffer, written);
+                }
+                if (buffer.remaining() < record.remaining()) {
+                    written = writeAt(out, record, written);
+                } else {
+                    buffer.put(record);
+                }
+                record.limit(limit);
+                entry.offset = (int) position;
+                position += entry.recordBytes();
+            }
+            drain(out, buffer, written);
+            out.force(true);
+        }
+        data.close();
+        move(temp, dir.resolve(DATA));
+        data = FileChannel.open(dir.resolve(DATA), READ, WRITE);
+        dataLength = position;
+        deadBytes = 0;
+        windowStart = -1;
+        writeIndex();
+    }
+
+    // Loads code.idx and cuts code.dat back to the records it lists; false if
+    // either file is missing, from another format or damaged
+    private boolean readIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        if (data.read(header, 0) != DATA_HEADER || header.getInt(0) != DATA_MAGIC
+                || header.getInt(4) != FORMAT_VERSION) {
+            return false;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(dir.resolve(INDEX));
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        ByteBuffer index = ByteBuffer.wrap(bytes);
+        if (bytes.length < INDEX_HEADER + 4 || index.getInt(0) != INDEX_MAGIC
+                || index.getInt(4) != FORMAT_VERSION) {
+            return false;
+        }
+        int covered = index.getInt(8);
+        int count = index.getInt(12);
+        if (count < 0 || bytes.length != INDEX_HEADER + (long) count * INDEX_ENTRY + 4
+                || covered < DATA_HEADER || covered > data.size()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != index.getInt(bytes.length - 4)) {
+            return false;
+        }
+        index.position(INDEX_HEADER);
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(index.getLong(), index.getLong());
+            entry.offset = index.getInt();
+            entry.length = index.getInt();
+            if (entry.offset < DATA_HEADER || entry.length < 0 || entry.offset + entry.recordBytes() > covered
+                    || entries.containsKey(entry)) {
+                return false;
+            }
+            entries.put(entry, entry);
+            liveBytes += entry.recordBytes();
+        }
+        deadBytes = covered - DATA_HEADER - liveBytes;
+        if (deadBytes < 0) {
+            return false;
+        }
+        data.truncate(covered);
+        dataLength = covered;
+        evict();
+        return true;
+    }
+
+    // Starts over with no records
+    private void reset() throws IOException {
+        entries.clear();
+        liveBytes = 0;
+        deadBytes = 0;
+        data.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        header.putInt(DATA_MAGIC).putInt(FORMAT_VERSION).flip();
+        dataLength = writeAt(data, header, 0);
+        windowStart = -1;
+        indexStale = true;
+    }
+
+    private void writeIndex() throws IOException {
+        // The records must be on disk before an index that lists them
+        data.force(false);
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER + entries.size() * INDEX_ENTRY + 4);
+        index.putInt(INDEX_MAGIC).putInt(FORMAT_VERSION).putInt((int) dataLength).putInt(entries.size());
+        for (Entry entry : entries.keySet()) {
+            index.putLong(entry.hi).putLong(entry.lo).putInt(entry.offset).putInt(entry.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.position());
+        index.putInt((int) crc.getValue()).flip();
+        Path temp = dir.resolve(INDEX + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            writeAt(out, index, 0);
+            out.force(true);
+        }
+        move(temp, dir.resolve(INDEX));
+        indexStale = false;
+        orderStale = false;
+        lastFlush = System.nanoTime();
+    }
+
+    private void flushIfDue() {
+        if ((indexStale || orderStale) && System.nanoTime() - lastFlush > FLUSH_MILLIS * 1_000_000) {
+            flush();
+        }
+    }
+
+    // Closes the files and lets go of the directory, also after an I/O error;
+    // generation carries on without the cache
+    private void release() {
+        closed = true;
+        try {
+            data.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with it
+        }
+        try {
+            lockChannel.close();
+        } catch (IOException ignored) {
+            // Closing releases the lock either way
+        }
+    }
+
+    // Writes what has been put into buffer at position, empties it and
+    // returns the position after it
+    private static long drain(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        position = writeAt(channel, buffer, position);
+        buffer.clear();
+        return position;
+    }
+
+    private static long writeAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = data.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Code cache truncated");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // MurmurHash3 x64_128 of a stream of longs, fed in through typed puts, so
+    // hashing a spec allocates nothing. Strings go in as their length then
+    // their chars, four to a long, so no two lists of strings feed the same words.
+    private static final class Hasher {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        private long h1, h2;
+        // First long of a block waiting for its second one
+        private long k1;
+        private boolean half;
+        private long words;
+
+        void putInt(int value) {
+            putLong(value);
+        }
+
+        void putLong(long value) {
+            words++;
+            if (!half) {
+                k1 = value;
+                half = true;
+                return;
+            }
+            half = false;
+            long k2 = value;
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+            h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52dce729;
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+            h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495ab5;
+        }
+
+        void putString(String s) {
+            if (s == null) {
+                putInt(-1);
+                return;
+            }
+            int length = s.length();
+            putInt(length);
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                putLong((long) s.charAt(i) << 48 | (long) s.charAt(i + 1) << 32
+                        | (long) s.charAt(i + 2) << 16 | s.charAt(i + 3));
+            }
+            if (i < length) {
+                long word = 0;
+                for (; i < length; i++) {
+                    word = word << 16 | s.charAt(i);
+                }
+                putLong(word);
+            }
+        }
+
+        // Hash of everything put since the last call, into key[0] and key[1]
+        void finish(long[] key) {
+            if (half) {
+                h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+            }
+            long length = words * 8;
+            long a = h1 ^ length, b = h2 ^ length;
+            a += b;
+            b += a;
+            a = mix(a);
+            b = mix(b);
+            a += b;
+            b += a;
+            key[0] = a;
+            key[1] = b;
+            h1 = 0;
+            h2 = 0;
+            half = false;
+            words = 0;
+        }
+
+        private static long mix(long k) {
+            k = (k ^ (k >>> 33)) * 0xff51afd7ed558ccdL;
+            k = (k ^ (k >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return k ^ (k >>> 33);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.lang.model.SourceVersion;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// CodeExporter.java
+// Streams generated classes straight to a directory or a .zip, one class at
+// a time, so only a single class's text is in memory however large the
+// project is. Output matches generateProjectCode: on duplicate class names
+// the later box wins. Box names become file and entry names, so an export
+// with a name that is not a Java identifier (e.g. "../x" from a crafted
+// file) is refused before anything is written.
+class CodeExporter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final StringBuilder text = new StringBuilder(4096);
+
+    // Writes every class of the snapshot and returns the number of files written
+    public int export(BoardSnapshot snapshot, Path output) throws IOException {
+        Path name = output.getFileName();
+        if (name != null && name.toString().toLowerCase().endsWith(".zip")) {
+            return exportZip(snapshot, output);
+        }
+        return exportDirectory(snapshot, output);
+    }
+
+    private int exportDirectory(BoardSnapshot snapshot, Path dir) throws IOException {
+        List<ClassSpec> classes = snapshot.getClasses();
+        Map<String, Integer> lastIndex = lastIndexByFileName(classes);
+        Files.createDirectories(dir);
+        int written = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            ClassSpec spec = classes.get(i);
+            if (lastIndex.get(spec.getFileName()) != i) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(dir.resolve(spec.getFileName()),
+                    CREATE, TRUNCATE_EXISTING, WRITE)) {
+                write(codeOf(spec), channel);
+            }
+            written++;
+        }
+        return written;
+    }
+
+    private int exportZip(BoardSnapshot snapshot, Path zip) throws IOException {
+        Path parent = zip.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        List<ClassSpec> classes = snapshot.getClasses();
+        Map<String, Integer> lastIndex = lastIndexByFileName(classes);
+        int written = 0;
+        try (FileChannel file = FileChannel.open(zip, CREATE, TRUNCATE_EXISTING, WRITE);
+             ZipOutputStream zos = new ZipOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(file), BUFFER_SIZE))) {
+            WritableByteChannel entryChannel = Channels.newChannel(zos);
+            for (int i = 0; i < classes.size(); i++) {
+                ClassSpec spec = classes.get(i);
+                if (lastIndex.get(spec.getFileName()) != i) {
+                    continue;
+                }
+                zos.putNextEntry(new ZipEntry(spec.getFileName()));
+                write(codeOf(spec), entryChannel);
+                zos.closeEntry();
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // Also checks every class name, so a bad one fails the export up front
+    private static Map<String, Integer> lastIndexByFileName(List<ClassSpec> classes) throws IOException {
+        Map<String, Integer> lastIndex = new HashMap<>();
+        for (int i = 0; i < classes.size(); i++) {
+            String name = classes.get(i).getName();
+            if (!SourceVersion.isIdentifier(name) || SourceVersion.isKeyword(name)) {
+                throw new IOException("Not a valid Java class name: \"" + name + "\"");
+            }
+            lastIndex.put(classes.get(i).getFileName(), i);
+        }
+        return lastIndex;
+    }
+
+    // Reuses already memoized code but never memoizes, so rendered text is not retained
+    private CharSequence codeOf(ClassSpec spec) {
+        String code = spec.getRenderedCode();
+        if (code != null) {
+            return code;
+        }
+        text.setLength(0);
+        CodeGenerator.emit(spec, text);
+        return text;
+    }
+
+    private void write(CharSequence text, WritableByteChannel channel) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, buffer, true);
+            drain(channel);
+        } while (result.isOverflow());
+        while (encoder.flush(buffer).isOverflow()) {
+            drain(channel);
+        }
+        drain(channel);
+    }
+
+    private void drain(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
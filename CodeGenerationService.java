@@ -0,0 +1,80 @@
+import javax.swing.*;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// CodeGenerationService.java
+// Runs project code generation off the EDT. Requests arriving in quick
+// succession are coalesced into one run, a newer run cancels an older one,
+// and only the latest result is delivered, on the EDT.
+class CodeGenerationService {
+    private static final int COALESCE_MILLIS = 150;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "code-generation");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Timer coalesceTimer;
+    private final Consumer<Map<String, ClassSpec>> consumer;
+    private CodeGenerator generator;
+    private Future<?> running;
+    private long latestRun;
+
+    public CodeGenerationService(CodeGenerator generator, Consumer<Map<String, ClassSpec>> consumer) {
+        this.generator = generator;
+        this.consumer = consumer;
+        this.coalesceTimer = new Timer(COALESCE_MILLIS, e -> start());
+        this.coalesceTimer.setRepeats(false);
+    }
+
+    public void setGenerator(CodeGenerator generator) {
+        cancel();
+        this.generator = generator;
+    }
+
+    // Schedules a run once edits have paused for a moment
+    public void request() {
+        coalesceTimer.restart();
+    }
+
+    public void runNow() {
+        coalesceTimer.stop();
+        start();
+    }
+
+    // Drops any pending or running generation; its result will never be delivered
+    public void cancel() {
+        coalesceTimer.stop();
+        latestRun++;
+        if (running != null) {
+            running.cancel(true);
+            running = null;
+        }
+    }
+
+    private void start() {
+        cancel();
+        // The snapshot is taken on the EDT, so the worker never touches the live board
+        BoardSnapshot snapshot = generator.snapshot();
+        CodeGenerator.Mode mode = generator.getMode();
+        long run = latestRun;
+        running = executor.submit(() -> {
+            Map<String, ClassSpec> files;
+            try {
+                files = CodeGenerator.renderProject(snapshot, mode);
+            } catch (CancellationException ex) {
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (run == latestRun) {
+                    running = null;
+                    consumer.accept(files);
+                }
+            });
+        });
+    }
+}
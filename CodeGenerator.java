@@ -1,190 +1,636 @@
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 // CodeGenerator.java
 class CodeGenerator {
+    enum Mode { SEQUENTIAL, PARALLEL }
+
+    // Part of the input hash batch exports keep beside their output (see
+    // ExportMain) and of CodeCache keys; bump it whenever the generated code
+    // changes for the same diagram
+    static final int OUTPUT_VERSION = 2;
+
+    // Specs per fork-join leaf; rendering one class is cheap, so leaves batch several
+    private static final int PARALLEL_BATCH = 64;
+
+    private static final String IMPORTS = "import java.util.*;\nimport java.beans.*;\n\n";
+
+    // Per-thread scratch buffer; most generated classes fit without growing
+    private static final ThreadLocal<StringBuilder> RENDER_BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(2048));
+
     private final Board board;
+    private volatile Mode mode = Mode.SEQUENTIAL;
+
+    // Incremental mode: per-box spec (and its memoized code) kept until an edit dirties it
+    private final boolean incremental;
+    private final Map<DrawableBox, ClassSpec> cache = new IdentityHashMap<>();
+    private final Set<DrawableBox> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Incremental mode: specs of boxes a lazily opened board has not paged in,
+    // read from its file, by box index. Such a box is paged in before anything
+    // that changes its spec, renaming or realizing one of its targets included
+    // (see boxRenamed and markRealized), after which its spec comes from the
+    // box like any other.
+    private ClassSpec[] storedSpecs;
+    private final BoardListener invalidator = new BoardListener() {
+        @Override
+        public void boxAdded(DrawableBox box) {
+            dirty.add(box);
+        }
+
+        @Override
+        public void boxRemoved(DrawableBox box) {
+            cache.remove(box);
+            dirty.remove(box);
+        }
+
+        @Override
+        public void boxRenamed(DrawableBox box, String oldName) {
+            dirty.add(box);
+            // Subclasses name this box in their extends clause, and other
+            // connected classes in their fields and constructors
+            for (Connection conn : board.getIncomingConnections(box)) {
+                markSource(conn);
+            }
+        }
+
+        @Override
+        public void decoratorAdded(DrawableBox box, Decorator decorator) {
+            dirty.add(box);
+        }
+
+        @Override
+        public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+            dirty.add(box);
+        }
+
+        @Override
+        public void connectionAdded(Connection connection) {
+            markSource(connection);
+            markRealized(connection);
+        }
+
+        @Override
+        public void connectionRemoved(Connection connection) {
+            markSource(connection);
+            markRealized(connection);
+        }
+
+        // A realization may turn its target into an interface or back into a
+        // class, which changes how every class connected to it uses it
+        private void markRealized(Connection connection) {
+            if (connection.getKind() == ConnectionKind.REALIZATION && isBoxToBox(connection)) {
+                DrawableBox target = (DrawableBox) connection.getTarget();
+                dirty.add(target);
+                for (Connection conn : board.getIncomingConnections(target)) {
+                    markSource(conn);
+                }
+            }
+        }
+
+        private void markSource(Connection connection) {
+            if (connection.getSource() instanceof DrawableBox) {
+                dirty.add((DrawableBox) connection.getSource());
+            }
+        }
+    };
 
     public CodeGenerator(Board board) {
-        this.board = board;
+        this(board, false);
     }
 
-    public String generateCode(DrawableBox box) {
-        StringBuilder code = new StringBuilder();
+    public CodeGenerator(Board board, boolean incremental) {
+        this.board = board;
+        this.incremental = incremental;
+        if (incremental) {
+            board.addBoardListener(invalidator);
+        }
+    }
 
-        // Add imports
-        code.append("import java.util.*;\n");
-        code.append("import java.beans.*;\n\n");
+    // Stops tracking edits; call when the generator is replaced
+    public void dispose() {
+        if (incremental) {
+            board.removeBoardListener(invalidator);
+            cache.clear();
+            dirty.clear();
+            storedSpecs = null;
+        }
+    }
 
-        // Class declaration
-        code.append("public class ").append(box.getName());
+    public String generateCode(DrawableBox box) {
+        return render(specFor(box));
+    }
 
-        // Handle inheritance and implementations
+    // Reads the board; must run on the thread that edits it
+    ClassSpec specFor(DrawableBox box) {
         List<Connection> connections = getConnectionsForBox(box);
-        Set<String> inheritedClasses = new HashSet<>();
-        Set<String> implementedInterfaces = new HashSet<>();
+        List<ConnectionKind> targetKinds = new ArrayList<>(connections.size());
+        List<String> targetNames = new ArrayList<>(connections.size());
+        Set<String> interfaceTargets = null;
 
         // Process connections
         for (Connection conn : connections) {
             if (conn.getTarget() instanceof DrawableBox) {
                 DrawableBox targetBox = (DrawableBox) conn.getTarget();
-                inheritedClasses.add(targetBox.getName());
+                targetKinds.add(conn.getKind());
+                targetNames.add(targetBox.getName());
+                if (board.isRealized(targetBox)) {
+                    if (interfaceTargets == null) {
+                        interfaceTargets = new HashSet<>();
+                    }
+                    interfaceTargets.add(targetBox.getName());
+                }
             }
         }
 
-        // Process decorators for interface implementations
-        for (Decorator decorator : box.getDecorators()) {
-            switch (decorator.getType().toLowerCase()) {
-                case "observer":
-                    implementedInterfaces.add("PropertyChangeListener");
-                    break;
-                case "strategy":
-                    implementedInterfaces.add("Strategy");
-                    break;
-                case "chain member":
-                    implementedInterfaces.add("ChainHandler");
-                    break;
+        List<Decorator> decorators = box.getDecorators();
+        List<String> decoratorTypes = new ArrayList<>(decorators.size());
+        DecoratorType[] kinds = new DecoratorType[decorators.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            decoratorTypes.add(decorators.get(i).getType());
+            kinds[i] = decorators.get(i).getKind();
+        }
+
+        return spec(box.getName(), decoratorTypes, kinds, targetKinds, targetNames,
+                board.isRealized(box), interfaceTargets != null ? interfaceTargets : Collections.<String>emptySet());
+    }
+
+    private static boolean isBoxToBox(Connection conn) {
+        return conn.getSource() instanceof DrawableBox && conn.getTarget() instanceof DrawableBox;
+    }
+
+    // Spec from the raw generation inputs, for readers that never build a Board
+    // (see DiagramIO.readSnapshot). targetNames are the names of the boxes the
+    // box's outgoing connections end on, in creation order, and targetKinds the
+    // kinds of those connections. A box is generated as an interface if a
+    // realization ends on it, and interfaceTargets names the targets that are.
+    static ClassSpec specOf(String name, List<String> decoratorTypes,
+                            List<ConnectionKind> targetKinds, List<String> targetNames,
+                            boolean isInterface, Set<String> interfaceTargets) {
+        DecoratorType[] kinds = new DecoratorType[decoratorTypes.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = DecoratorType.of(decoratorTypes.get(i));
+        }
+        return spec(name, decoratorTypes, kinds, targetKinds, targetNames, isInterface, interfaceTargets);
+    }
+
+    // Only inheritance targets are candidates for the extends clause
+    private static ClassSpec spec(String name, List<String> decoratorTypes, DecoratorType[] kinds,
+                                  List<ConnectionKind> targetKinds, List<String> targetNames,
+                                  boolean isInterface, Set<String> interfaceTargets) {
+        List<String> inherited = new ArrayList<>(targetNames.size());
+        for (int i = 0; i < targetNames.size(); i++) {
+            if (targetKinds.get(i) == ConnectionKind.INHERITANCE) {
+                inherited.add(targetNames.get(i));
             }
         }
+        return new ClassSpec(name, decoratorTypes, kinds, superclassOf(inherited),
+                targetKinds.toArray(new ConnectionKind[0]), targetNames, isInterface, interfaceTargets);
+    }
+
+    // With several targets the class extends whichever a HashSet of their names
+    // yields first, so both spec paths (and ValidationRule) must build the set the same way
+    static String superclassOf(List<String> targetNames) {
+        if (targetNames.isEmpty()) {
+            return null;
+        }
+        // Added one by one: a presized set could iterate in a different order
+        Set<String> inheritedClasses = new HashSet<>();
+        for (String target : targetNames) {
+            inheritedClasses.add(target);
+        }
+        return inheritedClasses.iterator().next();
+    }
+
+    // Pure function of the spec, so it may run off the EDT
+    static String render(ClassSpec spec) {
+        StringBuilder code = RENDER_BUFFER.get();
+        code.setLength(0);
+        emit(spec, code);
+        return code.toString();
+    }
+
+    // Appends the class source for spec. Built-in sections are looked up by the
+    // spec's decorator bitset; decorator-type strings are only consulted for custom types.
+    // Connections other than inheritance add to the class as ConnectionKind describes.
+    //
+    // A realized box becomes an interface so that its realizations compile, and
+    // a class implements rather than extends such a superclass. An interface
+    // only extends the interfaces it inherits from or realizes: fields and
+    // constructors need a class, and a template's interface would leave its
+    // methods to every class that realizes this one.
+    static void emit(ClassSpec spec, StringBuilder code) {
+        String name = spec.getName();
+        DecoratorType[] kinds = spec.getKinds();
+        List<String> types = spec.getDecoratorTypes();
+        ConnectionKind[] relations = spec.getTargetKinds();
+        List<String> targets = spec.getTargetNames();
+        String[] members = memberNames(spec);
+
+        // Add imports
+        code.append(IMPORTS);
+
+        if (spec.isInterface()) {
+            code.append("public interface ").append(name);
+            appendInterfaces(spec, " extends ", false, code);
+            code.append(" {\n}\n");
+            return;
+        }
+
+        // Class declaration
+        code.append("public class ").append(name);
 
         // Add extends if there are inherited classes
-        if (!inheritedClasses.isEmpty()) {
-            code.append(" extends ").append(inheritedClasses.iterator().next());
+        String superclass = spec.getSuperclass();
+        if (superclass != null && !spec.isInterface(superclass)) {
+            code.append(" extends ").append(superclass);
         }
 
         // Add implements if there are interfaces
-        if (!implementedInterfaces.isEmpty()) {
-            code.append(" implements ").append(String.join(", ", implementedInterfaces));
-        }
+        appendInterfaces(spec, " implements ", true, code);
 
         code.append(" {\n");
 
         // Fields for decorators
-        if (hasDecorator(box, "observable")) {
-            code.append("    private PropertyChangeSupport support = new PropertyChangeSupport(this);\n");
-        }
-        if (hasDecorator(box, "singleton")) {
-            code.append("    private static ").append(box.getName()).append(" instance;\n");
-        }
-        if (hasDecorator(box, "factory")) {
-            code.append("    protected Product product;\n");
-        }
-        if (hasDecorator(box, "chain member")) {
-            code.append("    private ChainHandler nextHandler;\n");
+        for (DecoratorType kind : PatternTemplates.FIELD_ORDER) {
+            if (spec.has(kind)) {
+                PatternTemplates.builtin(kind).emitField(code, name);
+            }
         }
-        if (hasDecorator(box, "strategy")) {
-            code.append("    private Strategy strategy;\n");
+        if (spec.has(DecoratorType.CUSTOM)) {
+            for (int i = 0; i < kinds.length; i++) {
+                PatternTemplate t = firstCustom(kinds, types, i);
+                if (t != null) {
+                    t.emitField(code, name);
+                }
+            }
         }
-        if (hasDecorator(box, "decorator")) {
-            code.append("    private Component component;\n");
+
+        // Fields for associations, aggregations and compositions
+        if (members != null) {
+            for (int i = 0; i < relations.length; i++) {
+                String type = targets.get(i);
+                if (relations[i] == ConnectionKind.ASSOCIATION || relations[i] == ConnectionKind.AGGREGATION) {
+                    code.append("    private ").append(type).append(' ').append(members[i]).append(";\n");
+                } else if (relations[i] == ConnectionKind.COMPOSITION && spec.isInterface(type)) {
+                    // Nothing to create: the part is set like an association's
+                    code.append("    private ").append(type).append(' ').append(members[i]).append(";\n");
+                } else if (relations[i] == ConnectionKind.COMPOSITION) {
+                    code.append("    private final ").append(type).append(' ').append(members[i])
+                            .append(" = new ").append(type).append("();\n");
+                }
+            }
         }
 
         // Constructor
-        code.append("\n    public ").append(box.getName()).append("() {\n");
-        if (hasDecorator(box, "observable")) {
-            code.append("        support = new PropertyChangeSupport(this);\n");
+        code.append("\n    public ").append(name).append("() {\n");
+        for (DecoratorType kind : PatternTemplates.FIELD_ORDER) {
+            if (spec.has(kind)) {
+                PatternTemplates.builtin(kind).emitConstructor(code, name);
+            }
+        }
+        if (spec.has(DecoratorType.CUSTOM)) {
+            for (int i = 0; i < kinds.length; i++) {
+                PatternTemplate t = firstCustom(kinds, types, i);
+                if (t != null) {
+                    t.emitConstructor(code, name);
+                }
+            }
         }
         code.append("    }\n\n");
 
+        // Constructor taking aggregated parts and dependencies
+        if (spec.has(ConnectionKind.AGGREGATION) || spec.has(ConnectionKind.DEPENDENCY)) {
+            code.append("    public ").append(name).append('(');
+            String separator = "";
+            for (int i = 0; i < relations.length; i++) {
+                if (relations[i] == ConnectionKind.AGGREGATION || relations[i] == ConnectionKind.DEPENDENCY) {
+                    code.append(separator).append(targets.get(i)).append(' ').append(members[i]);
+                    separator = ", ";
+                }
+            }
+            code.append(") {\n        this();\n");
+            for (int i = 0; i < relations.length; i++) {
+                if (relations[i] == ConnectionKind.AGGREGATION) {
+                    code.append("        this.").append(members[i]).append(" = ").append(members[i]).append(";\n");
+                }
+            }
+            code.append("    }\n\n");
+        }
+
         // Generate methods for each decorator
-        for (Decorator decorator : box.getDecorators()) {
-            switch (decorator.getType().toLowerCase()) {
-                case "observer":
-                    code.append("    @Override\n");
-                    code.append("    public void propertyChange(PropertyChangeEvent evt) {\n");
-                    code.append("        // Handle property change\n");
-                    code.append("    }\n\n");
-                    break;
-
-                case "observable":
-                    code.append("    public void addListener(PropertyChangeListener listener) {\n");
-                    code.append("        support.addPropertyChangeListener(listener);\n");
-                    code.append("    }\n\n");
-                    code.append("    public void removeListener(PropertyChangeListener listener) {\n");
-                    code.append("        support.removePropertyChangeListener(listener);\n");
-                    code.append("    }\n\n");
-                    code.append("    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {\n");
-                    code.append("        support.firePropertyChange(propertyName, oldValue, newValue);\n");
-                    code.append("    }\n\n");
-                    break;
-
-                case "singleton":
-                    code.append("    public static ").append(box.getName()).append(" getInstance() {\n");
-                    code.append("        if (instance == null) {\n");
-                    code.append("            instance = new ").append(box.getName()).append("();\n");
-                    code.append("        }\n");
-                    code.append("        return instance;\n");
-                    code.append("    }\n\n");
-                    break;
-
-                case "factory":
-                    code.append("    public Product createProduct() {\n");
-                    code.append("        // Create product\n");
-                    code.append("        return product;\n");
-                    code.append("    }\n\n");
-                    break;
-
-                case "chain member":
-                    code.append("    public void setNext(ChainHandler handler) {\n");
-                    code.append("        this.nextHandler = handler;\n");
-                    code.append("    }\n\n");
-                    code.append("    public void handleRequest(String request) {\n");
-                    code.append("        if (nextHandler != null) {\n");
-                    code.append("            nextHandler.handleRequest(request);\n");
-                    code.append("        }\n");
-                    code.append("    }\n\n");
-                    break;
-
-                case "strategy":
-                    code.append("    public void setStrategy(Strategy strategy) {\n");
-                    code.append("        this.strategy = strategy;\n");
-                    code.append("    }\n\n");
-                    code.append("    public void executeStrategy() {\n");
-                    code.append("        if (strategy != null) {\n");
-                    code.append("            strategy.execute();\n");
-                    code.append("        }\n");
-                    code.append("    }\n\n");
-                    break;
-
-                case "decorator":
-                    code.append("    public void operation() {\n");
-                    code.append("        if (component != null) {\n");
-                    code.append("            component.operation();\n");
-                    code.append("        }\n");
-                    code.append("        // Add decorator behavior\n");
-                    code.append("    }\n\n");
-                    break;
+        for (int i = 0; i < kinds.length; i++) {
+            PatternTemplate t = PatternTemplates.forDecorator(kinds[i], types.get(i));
+            if (t != null) {
+                t.emitMethods(code, name);
+            }
+        }
+
+        // Setters for associations
+        if (spec.has(ConnectionKind.ASSOCIATION)) {
+            for (int i = 0; i < relations.length; i++) {
+                if (relations[i] == ConnectionKind.ASSOCIATION) {
+                    String member = members[i];
+                    code.append("    public void set").append(Character.toUpperCase(member.charAt(0)))
+                            .append(member, 1, member.length())
+                            .append('(').append(targets.get(i)).append(' ').append(member).append(") {\n")
+                            .append("        this.").append(member).append(" = ").append(member).append(";\n")
+                            .append("    }\n\n");
+                }
             }
         }
 
         code.append("}\n");
-        return code.toString();
     }
 
-    private boolean hasDecorator(DrawableBox box, String type) {
-        return box.getDecorators().stream()
-                .anyMatch(d -> d.getType().equalsIgnoreCase(type));
+    // Appends keyword and the interfaces spec takes on, if any: an inherited
+    // interface, then the realized ones, then, with templates, those of its templates
+    private static void appendInterfaces(ClassSpec spec, String keyword, boolean templates, StringBuilder code) {
+        DecoratorType[] kinds = spec.getKinds();
+        List<String> types = spec.getDecoratorTypes();
+        ConnectionKind[] relations = spec.getTargetKinds();
+        List<String> targets = spec.getTargetNames();
+        String superclass = spec.getSuperclass();
+        boolean first = true;
+        // Only realized and inherited interfaces can repeat, e.g. a target
+        // reached by two realizations, or by one and by inheritance
+        Set<String> named = null;
+        if (superclass != null && spec.isInterface(superclass)) {
+            named = new HashSet<>();
+            named.add(superclass);
+            code.append(keyword).append(superclass);
+            first = false;
+        }
+        if (spec.has(ConnectionKind.REALIZATION)) {
+            if (named == null) {
+                named = new HashSet<>();
+            }
+            for (int i = 0; i < relations.length; i++) {
+                if (relations[i] == ConnectionKind.REALIZATION && named.add(targets.get(i))) {
+                    code.append(first ? keyword : ", ").append(targets.get(i));
+                    first = false;
+                }
+            }
+        }
+        if (!templates) {
+            return;
+        }
+        for (DecoratorType kind : PatternTemplates.INTERFACE_ORDER) {
+            String iface = spec.has(kind) ? PatternTemplates.builtin(kind).getInterfaceName() : null;
+            if (iface != null && (named == null || named.add(iface))) {
+                code.append(first ? keyword : ", ").append(iface);
+                first = false;
+            }
+        }
+        if (spec.has(DecoratorType.CUSTOM)) {
+            for (int i = 0; i < kinds.length; i++) {
+                PatternTemplate t = firstCustom(kinds, types, i);
+                if (t != null && t.getInterfaceName() != null && (named == null || named.add(t.getInterfaceName()))) {
+                    code.append(first ? keyword : ", ").append(t.getInterfaceName());
+                    first = false;
+                }
+            }
+        }
+    }
+
+    // Field or parameter name of each of the spec's connections that becomes
+    // one, parallel to its targets, or null if none does: the target's name
+    // with a lower-case initial, numbered from 2 when several share it or it
+    // is a field of one of the class's templates
+    private static String[] memberNames(ClassSpec spec) {
+        if (!spec.has(ConnectionKind.ASSOCIATION) && !spec.has(ConnectionKind.AGGREGATION)
+                && !spec.has(ConnectionKind.COMPOSITION) && !spec.has(ConnectionKind.DEPENDENCY)) {
+            return null;
+        }
+        ConnectionKind[] relations = spec.getTargetKinds();
+        List<String> targets = spec.getTargetNames();
+        String[] names = new String[relations.length];
+        Set<String> taken = new HashSet<>();
+        for (DecoratorType kind : PatternTemplates.FIELD_ORDER) {
+            if (spec.has(kind)) {
+                taken.addAll(PatternTemplates.builtin(kind).getFieldNames());
+            }
+        }
+        if (spec.has(DecoratorType.CUSTOM)) {
+            DecoratorType[] kinds = spec.getKinds();
+            List<String> types = spec.getDecoratorTypes();
+            for (int i = 0; i < kinds.length; i++) {
+                PatternTemplate t = firstCustom(kinds, types, i);
+                if (t != null) {
+                    taken.addAll(t.getFieldNames());
+                }
+            }
+        }
+        for (int i = 0; i < relations.length; i++) {
+            if (relations[i] == ConnectionKind.INHERITANCE || relations[i] == ConnectionKind.REALIZATION) {
+                continue;
+            }
+            String base = decapitalize(targets.get(i));
+            String member = base;
+            for (int n = 2; !taken.add(member); n++) {
+                member = base + n;
+            }
+            names[i] = member;
+        }
+        return names;
+    }
+
+    // As java.beans.Introspector.decapitalize: "Engine" becomes "engine", "URL" stays
+    private static String decapitalize(String name) {
+        if (name.isEmpty() || name.length() > 1 && Character.isUpperCase(name.charAt(1))
+                && Character.isUpperCase(name.charAt(0))) {
+            return name;
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    // Template of the custom decorator at i, unless an earlier decorator already had it
+    private static PatternTemplate firstCustom(DecoratorType[] kinds, List<String> types, int i) {
+        if (kinds[i] != DecoratorType.CUSTOM) {
+            return null;
+        }
+        PatternTemplate t = PatternTemplates.forDecorator(kinds[i], types.get(i));
+        if (t == null) {
+            return null;
+        }
+        for (int j = 0; j < i; j++) {
+            if (kinds[j] == DecoratorType.CUSTOM
+                    && PatternTemplates.forDecorator(kinds[j], types.get(j)) == t) {
+                return null;
+            }
+        }
+        return t;
     }
 
     private List<Connection> getConnectionsForBox(DrawableBox box) {
-        List<Connection> connections = new ArrayList<>();
-        for (Connection conn : board.getConnections()) {
-            if (conn.getSource() == box) {
-                connections.add(conn);
+        // Outgoing adjacency lists are kept by Board, so this costs only the box's degree
+        return board.getOutgoingConnections(box);
+    }
+
+    private ClassSpec cachedSpec(DrawableBox box) {
+        ClassSpec spec = cache.get(box);
+        if (spec == null || dirty.contains(box)) {
+            spec = specFor(box);
+            cache.put(box, spec);
+        }
+        return spec;
+    }
+
+    // Captures the generation inputs of every box; cheap for clean boxes in incremental mode.
+    // Boxes a lazily opened board has not paged in are read from its file and stay unloaded.
+    public BoardSnapshot snapshot() {
+        List<DrawableBox> boxes = board.getBoxes();
+        MappedDiagram source = board.getSource();
+        SpatialGrid.IntBag targets = new SpatialGrid.IntBag();
+        SpatialGrid.IntBag kinds = new SpatialGrid.IntBag();
+        List<ClassSpec> classes = new ArrayList<>(boxes.size());
+        for (int i = 0; i < boxes.size(); i++) {
+            if (!board.isBoxLoaded(i)) {
+                classes.add(incremental ? cachedStoredSpec(source, i, targets, kinds)
+                        : storedSpec(source, i, targets, kinds));
+            } else {
+                DrawableBox box = boxes.get(i);
+                classes.add(incremental ? cachedSpec(box) : specFor(box));
+            }
+        }
+        dirty.clear();
+        return new BoardSnapshot(classes);
+    }
+
+    // Spec of a box still only in the file. Its targets may have been paged in
+    // and renamed, e.g. while recovering an autosave, so those are asked for
+    // their name and whether they are realized. Nothing ends on the box itself
+    // but what the file has.
+    private ClassSpec storedSpec(MappedDiagram source, int index, SpatialGrid.IntBag targets,
+                                 SpatialGrid.IntBag kinds) {
+        List<DrawableBox> boxes = board.getBoxes();
+        source.readOutgoingTargets(index, targets, kinds);
+        List<ConnectionKind> targetKinds = new ArrayList<>(targets.size());
+        List<String> targetNames = new ArrayList<>(targets.size());
+        Set<String> interfaceTargets = new HashSet<>();
+        for (int k = 0; k < targets.size(); k++) {
+            int target = targets.get(k);
+            boolean loaded = board.isBoxLoaded(target);
+            String targetName = loaded ? boxes.get(target).getName() : source.getBoxName(target);
+            targetKinds.add(ConnectionKind.fromOrdinal(kinds.get(k)));
+            targetNames.add(targetName);
+            if (loaded ? board.isRealized(boxes.get(target)) : source.isRealized(target)) {
+                interfaceTargets.add(targetName);
             }
         }
-        return connections;
+        return specOf(source.getBoxName(index), source.readDecoratorTypes(index), targetKinds, targetNames,
+                source.isRealized(index), interfaceTargets);
+    }
+
+    private ClassSpec cachedStoredSpec(MappedDiagram source, int index, SpatialGrid.IntBag targets,
+                                       SpatialGrid.IntBag kinds) {
+        if (storedSpecs == null) {
+            storedSpecs = new ClassSpec[source.getBoxCount()];
+        }
+        ClassSpec spec = storedSpecs[index];
+        if (spec == null) {
+            spec = storedSpec(source, index, targets, kinds);
+            storedSpecs[index] = spec;
+        }
+        return spec;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
     }
 
     public Map<String, String> generateProjectCode() {
-        Map<String, String> files = new HashMap<>();
+        return generateProjectCode(snapshot(), mode);
+    }
+
+    // Renders a snapshot. Safe off the EDT; stops with CancellationException if interrupted.
+    // Both modes produce the same map: parallel rendering only fills the specs' memoized
+    // code, and files are then collected in board order exactly as the sequential path does.
+    // Completed runs are recorded as Metrics.REGENERATION. With
+    // -Ddpv.codeCache=true, code of classes generated before, in this session
+    // or an earlier one, comes from CodeCache.shared().
+    static Map<String, String> generateProjectCode(BoardSnapshot snapshot, Mode mode) {
+        return generateProjectCode(snapshot, mode, CodeCache.ENABLED ? CodeCache.shared() : null);
+    }
+
+    // As above with the given cache, or none if null
+    static Map<String, String> generateProjectCode(BoardSnapshot snapshot, Mode mode, CodeCache codeCache) {
+        Map<String, ClassSpec> classes = renderProject(snapshot, mode, codeCache);
+        Map<String, String> files = new HashMap<>(classes.size() * 2);
+        for (Map.Entry<String, ClassSpec> entry : classes.entrySet()) {
+            files.put(entry.getKey(), entry.getValue().getCode());
+        }
+        return files;
+    }
+
+    // As generateProjectCode, but maps each file name to its spec, whose code is
+    // rendered and memoized; the caller can drop the text and get it back from the spec
+    static Map<String, ClassSpec> renderProject(BoardSnapshot snapshot, Mode mode) {
+        return renderProject(snapshot, mode, CodeCache.ENABLED ? CodeCache.shared() : null);
+    }
+
+    private static Map<String, ClassSpec> renderProject(BoardSnapshot snapshot, Mode mode, CodeCache codeCache) {
+        long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+        CodeCache.Misses misses = codeCache != null ? codeCache.load(snapshot.getClasses()) : null;
+        if (mode == Mode.PARALLEL) {
+            List<ClassSpec> classes = snapshot.getClasses();
+            Thread caller = Thread.currentThread();
+            ForkJoinPool.commonPool().invoke(new RenderTask(classes, 0, classes.size(), caller));
+            if (caller.isInterrupted()) {
+                throw new CancellationException();
+            }
+        }
+
+        Map<String, ClassSpec> files = new HashMap<>();
 
         // Generate only box classes
-        for (DrawableBox box : board.getBoxes()) {
-            String fileName = box.getName() + ".java";
-            String fileContent = generateCode(box);
-            files.put(fileName, fileContent);
+        for (ClassSpec spec : snapshot.getClasses()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+            spec.getCode();
+            files.put(spec.getFileName(), spec);
+        }
+        if (misses != null) {
+            codeCache.store(misses);
         }
 
+        Metrics.REGENERATION.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
         return files;
     }
-}
\ No newline at end of file
+
+    // Splits the spec list in halves until batches are small enough to render directly
+    private static class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ClassSpec> classes;
+        private final int from, to;
+        private final Thread caller;
+
+        RenderTask(List<ClassSpec> classes, int from, int to, Thread caller) {
+            this.classes = classes;
+            this.from = from;
+            this.to = to;
+            this.caller = caller;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_BATCH) {
+                for (int i = from; i < to && !caller.isInterrupted(); i++) {
+                    classes.get(i).getCode();
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RenderTask(classes, from, mid, caller),
+                    new RenderTask(classes, mid, to, caller));
+        }
+    }
+}
@@ -1,14 +1,76 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Vector;
 
+// CodeViewer.java
+// File tree and source view of the generated project. Each update is diffed
+// against the tree by file name, and only the added and removed nodes are
+// reported to the tree model, so selection, expansion and scroll position
+// survive regeneration however many files there are.
+//
+// Nodes hold the file's ClassSpec rather than its text: the text stays in
+// the spec's memo, which the incremental generator keeps anyway, and is only
+// turned into a Swing document when the file is selected. Documents are kept
+// for switching back and forth, bounded by their total length, least recently
+// viewed first out.
 class CodeViewer extends JPanel {
+    static final int MAX_CACHED_CHARS = Integer.getInteger("dpv.codeViewer.cacheChars", 4 * 1024 * 1024);
+
     private JTree fileTree;
     private JTextArea codeArea;
-    private Map<String, String> generatedFiles;
-    private DefaultMutableTreeNode root;
+    private JScrollPane codeScroll;
+    private final FolderNode root;
+    private final DefaultTreeModel model;
+    // Every file in the tree, by name
+    private final Map<String, FileNode> nodes = new HashMap<>();
+    // Documents of recently viewed files, by file name
+    private final LinkedHashMap<String, Document> documents = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedChars;
+    private FileNode shown;
+
+    // A generated file: its name is the node's label
+    private static final class FileNode extends DefaultMutableTreeNode {
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        transient ClassSpec spec;
+
+        FileNode(String name, ClassSpec spec) {
+            super(name, false);
+            this.name = name;
+            this.spec = spec;
+        }
+    }
+
+    private static final class FolderNode extends DefaultMutableTreeNode {
+        private static final long serialVersionUID = 1L;
+
+        FolderNode(String name) {
+            super(name);
+        }
+
+        // Replaces all children in one pass, where insert and remove would shift the rest each time
+        void setChildren(List<FileNode> nodes) {
+            for (FileNode node : nodes) {
+                node.setParent(this);
+            }
+            children = new Vector<TreeNode>(nodes);
+        }
+    }
 
     public CodeViewer() {
         setLayout(new BorderLayout());
@@ -17,9 +79,13 @@ class CodeViewer extends JPanel {
         JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
 
         // Create file tree
-        root = new DefaultMutableTreeNode("src");
-        fileTree = new JTree(root);
+        root = new FolderNode("src");
+        model = new DefaultTreeModel(root);
+        fileTree = new JTree(model);
         fileTree.setRootVisible(true);
+        // Fixed row heights let the tree lay out only the rows in view
+        fileTree.setRowHeight(Math.max(18, fileTree.getFontMetrics(fileTree.getFont()).getHeight() + 2));
+        fileTree.setLargeModel(true);
         JScrollPane treeScroll = new JScrollPane(fileTree);
         treeScroll.setPreferredSize(new Dimension(200, 0));
 
@@ -29,7 +95,7 @@ class CodeViewer extends JPanel {
         codeArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
         codeArea.setBackground(new Color(45, 45, 45));
         codeArea.setForeground(Color.WHITE);
-        JScrollPane codeScroll = new JScrollPane(codeArea);
+        codeScroll = new JScrollPane(codeArea);
 
         // Add components to split pane
         splitPane.setLeftComponent(treeScroll);
@@ -40,34 +106,140 @@ class CodeViewer extends JPanel {
 
         // Add tree selection listener
         fileTree.addTreeSelectionListener(e -> {
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode)
-                    fileTree.getLastSelectedPathComponent();
-
-            if (node == null || node == root) return;
-
-            String fileName = node.toString();
-            if (generatedFiles != null && generatedFiles.containsKey(fileName)) {
-                codeArea.setText(generatedFiles.get(fileName));
-                codeArea.setCaretPosition(0);
+            Object node = fileTree.getLastSelectedPathComponent();
+            if (node instanceof FileNode) {
+                show((FileNode) node);
+            } else if (node == null) {
+                show(null);
             }
         });
     }
 
-    public void updateGeneratedCode(Map<String, String> files) {
-        this.generatedFiles = files;
-
-        // Clear existing nodes
-        root.removeAllChildren();
+    public void updateGeneratedCode(Map<String, ClassSpec> files) {
+        long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+        // Children stay sorted by name, so only new names need sorting
+        int count = root.getChildCount();
+        List<FileNode> kept = new ArrayList<>(Math.min(count, files.size()));
+        int[] removed = new int[count];
+        int removedCount = 0;
+        boolean shownChanged = false;
+        for (int i = 0; i < count; i++) {
+            FileNode node = (FileNode) root.getChildAt(i);
+            ClassSpec spec = files.get(node.name);
+            if (spec == null) {
+                removed[removedCount++] = i;
+                nodes.remove(node.name);
+                forget(node.name);
+                continue;
+            }
+            // Unchanged classes come back as the same spec; a respecified class
+            // may still render the same, which the replaced spec's memo tells
+            if (spec != node.spec) {
+                String old = node.spec.getRenderedCode();
+                if (old == null || !old.equals(spec.getCode())) {
+                    forget(node.name);
+                    shownChanged |= node == shown;
+                }
+                node.spec = spec;
+            }
+            kept.add(node);
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : files.keySet()) {
+            if (!nodes.containsKey(name)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
 
-        // Add file nodes
-        for (String fileName : files.keySet()) {
-            root.add(new DefaultMutableTreeNode(fileName));
+        // Merge the new names into the kept nodes
+        List<FileNode> next = new ArrayList<>(kept.size() + names.size());
+        int[] added = new int[names.size()];
+        for (int i = 0, j = 0; i < kept.size() || j < names.size(); ) {
+            if (j == names.size() || (i < kept.size() && kept.get(i).name.compareTo(names.get(j)) < 0)) {
+                next.add(kept.get(i++));
+            } else {
+                String name = names.get(j);
+                FileNode node = new FileNode(name, files.get(name));
+                nodes.put(name, node);
+                added[j++] = next.size();
+                next.add(node);
+            }
         }
 
-        // Refresh tree
-        ((DefaultTreeModel)fileTree.getModel()).reload();
+        if (removedCount > 0) {
+            Object[] removedNodes = new Object[removedCount];
+            for (int k = 0; k < removedCount; k++) {
+                removedNodes[k] = root.getChildAt(removed[k]);
+            }
+            root.setChildren(kept);
+            model.nodesWereRemoved(root, Arrays.copyOf(removed, removedCount), removedNodes);
+        }
+        if (added.length > 0) {
+            root.setChildren(next);
+            model.nodesWereInserted(root, added);
+        }
+        if (shownChanged) {
+            reload(shown);
+        }
 
         // Expand root
         fileTree.expandRow(0);
+        Metrics.CODE_VIEW.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
+    }
+
+    // Shows a file from the top, or nothing if node is null
+    private void show(FileNode node) {
+        shown = node;
+        codeArea.setDocument(node != null ? documentOf(node) : new PlainDocument());
+        codeArea.setCaretPosition(0);
+    }
+
+    // Shows the new text of the file on view, keeping the caret and scroll position where possible
+    private void reload(FileNode node) {
+        JViewport viewport = codeScroll.getViewport();
+        Point position = viewport.getViewPosition();
+        int caret = codeArea.getCaretPosition();
+        Document document = documentOf(node);
+        codeArea.setDocument(document);
+        codeArea.setCaretPosition(Math.min(caret, document.getLength()));
+        // Lay out for the new text before scrolling back
+        codeScroll.validate();
+        Dimension view = viewport.getViewSize(), extent = viewport.getExtentSize();
+        position.x = Math.max(0, Math.min(position.x, view.width - extent.width));
+        position.y = Math.max(0, Math.min(position.y, view.height - extent.height));
+        viewport.setViewPosition(position);
+    }
+
+    private Document documentOf(FileNode node) {
+        Document document = documents.get(node.name);
+        if (document == null) {
+            document = new PlainDocument();
+            try {
+                document.insertString(0, node.spec.getCode(), null);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            documents.put(node.name, document);
+            cachedChars += document.getLength();
+            evict();
+        }
+        return document;
+    }
+
+    private void forget(String name) {
+        Document document = documents.remove(name);
+        if (document != null) {
+            cachedChars -= document.getLength();
+        }
+    }
+
+    // The document on view is the most recently used one, so it always stays
+    private void evict() {
+        Iterator<Document> eldest = documents.values().iterator();
+        while (cachedChars > MAX_CACHED_CHARS && documents.size() > 1) {
+            cachedChars -= eldest.next().getLength();
+            eldest.remove();
+        }
     }
 }
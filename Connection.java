@@ -1,4 +1,5 @@
 import java.awt.*;
+import java.awt.geom.Line2D;
 import java.io.Serializable;
 
 class Connection implements Serializable {
@@ -6,13 +7,33 @@ class Connection implements Serializable {
     private final Object target;
     private static final int ARROW_SIZE = 10;
     private static final long serialVersionUID = 1L;
+    // By ConnectionKind ordinal
+    private static final Color[] KIND_COLORS = {
+            Color.BLACK,                 // INHERITANCE
+            new Color(31, 90, 170),      // ASSOCIATION
+            new Color(30, 130, 75),      // AGGREGATION
+            new Color(170, 60, 30),      // COMPOSITION
+            Color.BLACK,                 // REALIZATION
+            new Color(120, 60, 150)      // DEPENDENCY
+    };
 
     private boolean isDecoratorConnection;
-
-    public Connection(Object source, Object target, boolean isDecoratorConnection) {
+    // Null in connections serialized before kinds existed; see getKind()
+    private ConnectionKind kind;
+
+    // Position in the owning Board's connection list
+    private transient int index = -1;
+    // Id in the Board's spatial index, which unlike the position stays put
+    // while other connections are inserted or removed before this one
+    private transient int gridId = -1;
+    // Line as last registered in the Board's spatial index
+    private transient Line2D indexedLine;
+
+    public Connection(Object source, Object target, boolean isDecoratorConnection, ConnectionKind kind) {
         this.source = source;
         this.target = target;
         this.isDecoratorConnection = isDecoratorConnection;
+        this.kind = kind;
     }
 
     // Add getters
@@ -24,26 +45,93 @@ class Connection implements Serializable {
         return target;
     }
 
+    public boolean isDecoratorConnection() {
+        return isDecoratorConnection;
+    }
 
+    public ConnectionKind getKind() {
+        return kind != null ? kind : ConnectionKind.INHERITANCE;
+    }
 
-    public void draw(Graphics g) {
+    // Line colour and whether the line is dashed; realization and dependency
+    // are dashed as in UML, and each kind of box relation has its own colour
+    Color getColor() {
+        return isDecoratorConnection ? Color.GRAY : KIND_COLORS[getKind().ordinal()];
+    }
+
+    boolean isDashed() {
+        return isDecoratorConnection || getKind() == ConnectionKind.REALIZATION
+                || getKind() == ConnectionKind.DEPENDENCY;
+    }
+
+    // Centre line between both endpoints, or null if an endpoint is not drawable
+    public Line2D getLine() {
         Point start = getConnectionPoint(source);
         Point end = getConnectionPoint(target);
-        if (start == null || end == null) return;
+        if (start == null || end == null) return null;
+        return new Line2D.Float(start.x, start.y, end.x, end.y);
+    }
+
+    // Area covered by the line between both endpoints, padded for the stroke width
+    public Rectangle getBounds() {
+        Point start = getConnectionPoint(source);
+        Point end = getConnectionPoint(target);
+        if (start == null || end == null) return new Rectangle();
+
+        Rectangle bounds = new Rectangle(start);
+        bounds.add(end);
+        bounds.grow(2, 2);
+        return bounds;
+    }
+
+
+
+    public void draw(Graphics g) {
+        if (!isDrawable(source) || !isDrawable(target)) return;
 
         Graphics2D g2d = (Graphics2D) g;
-        g2d.setStroke(new BasicStroke(2));
+        g2d.setColor(getColor());
+        g2d.setStroke(isDashed() ? PaintResources.DASHED : PaintResources.LINE);
+        g2d.drawLine(pointX(source), pointY(source), pointX(target), pointY(target));
+    }
 
-        if (isDecoratorConnection) {
-            g2d.setColor(Color.GRAY);
-            g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{10}, 0));
-            g2d.drawLine(start.x, start.y, end.x, end.y);
-        } else {
-            g2d.setColor(Color.BLACK);
-            g2d.drawLine(start.x, start.y, end.x, end.y);
+    // Writes the centre line as x1, y1, x2, y2 into out from offset, for drawing
+    // many lines at once. Returns false if an endpoint is not drawable.
+    boolean getLine(int[] out, int offset) {
+        if (!isDrawable(source) || !isDrawable(target)) return false;
 
+        out[offset] = pointX(source);
+        out[offset + 1] = pointY(source);
+        out[offset + 2] = pointX(target);
+        out[offset + 3] = pointY(target);
+        return true;
+    }
 
+    // Same test as getBounds().intersects(area), without allocating
+    public boolean intersects(Rectangle area) {
+        if (!isDrawable(source) || !isDrawable(target)) {
+            return false;
         }
+        int x1 = pointX(source), y1 = pointY(source), x2 = pointX(target), y2 = pointY(target);
+        int minX = Math.min(x1, x2), minY = Math.min(y1, y2);
+        return area.intersects(minX - 2, minY - 2, Math.abs(x2 - x1) + 4, Math.abs(y2 - y1) + 4);
+    }
+
+    private static boolean isDrawable(Object obj) {
+        return obj instanceof DrawableBox || obj instanceof Decorator;
+    }
+
+    // Connection point of an endpoint, as getConnectionPoint() but without a Point
+    private static int pointX(Object obj) {
+        return obj instanceof DrawableBox
+                ? ((DrawableBox) obj).getX() + DrawableBox.BOX_SIZE / 2
+                : ((Decorator) obj).getX() + Decorator.CIRCLE_SIZE / 2;
+    }
+
+    private static int pointY(Object obj) {
+        return obj instanceof DrawableBox
+                ? ((DrawableBox) obj).getY() + DrawableBox.BOX_SIZE / 2
+                : ((Decorator) obj).getY() + Decorator.CIRCLE_SIZE / 2;
     }
 
     private Point getConnectionPoint(Object obj) {
@@ -73,4 +161,28 @@ class Connection implements Serializable {
         // because we calculate them dynamically in getConnectionPoint
     }
 
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    void setGridId(int gridId) {
+        this.gridId = gridId;
+    }
+
+    int getGridId() {
+        return gridId;
+    }
+
+    void setIndexedLine(Line2D line) {
+        this.indexedLine = line;
+    }
+
+    Line2D getIndexedLine() {
+        return indexedLine;
+    }
+
 }
@@ -0,0 +1,222 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// ConnectionBatch.java
+// The connections of one board area as line coordinates, grouped by style:
+// one group per ConnectionKind of box connection, and one for the dashed
+// decorator connections. Hairlines, drawn when zoomed out and often by the
+// ten thousand, go out as one path per style
+// in a single draw call. The path is kept already scaled by the zoom and
+// drawn with the zoom taken off the transform: drawn under a scaling
+// transform, Java2D copies the whole path into device space every frame.
+// Full-width lines are drawn one by one from the
+// coordinates: drawLine fills a solid one as a parallelogram, which no path
+// can match, and for dashes or any wide stroke the rasterizer sorts every
+// edge of a path on each scan line, so long paths cost more than single lines.
+//
+// Everything is kept until the area changes or a connection in it moves. As
+// a BoardListener, the batch asks a moved box's adjacency lists which
+// connections moved with it, and only rebuilds if one of them was batched or
+// now reaches into the area.
+class ConnectionBatch implements BoardListener {
+    // By ConnectionKind ordinal, then decorator connections last
+    private final Lines[] styles = new Lines[ConnectionKind.values().length + 1];
+    // Board ids of the batched connections, ascending
+    private final SpatialGrid.IntBag members = new SpatialGrid.IntBag();
+    private final List<Connection> connections = new ArrayList<>();
+
+    // What the lines were built for; board is null until the first build
+    private Board board;
+    private final Rectangle area = new Rectangle();
+    private final List<Connection> skipped = new ArrayList<>();
+    private boolean valid;
+
+    ConnectionBatch() {
+        for (int i = 0; i < styles.length; i++) {
+            styles[i] = new Lines();
+        }
+    }
+
+    // Line coordinates of one style, x1 y1 x2 y2 per line, and the same lines as a path
+    private static final class Lines {
+        int[] coords = new int[64];
+        int size;
+        // Style of the first line added, which every other line shares
+        Color color;
+        boolean dashed;
+        // In board coordinates times pathScale
+        final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+        double pathScale;
+        boolean pathBuilt;
+
+        void clear() {
+            size = 0;
+            pathBuilt = false;
+        }
+
+        // The path is only built when first drawn, as it is only needed zoomed
+        // out, and again when the zoom changes
+        void drawPath(Graphics2D g, double scale) {
+            if (!pathBuilt || pathScale != scale) {
+                // reset keeps the arrays, so rebuilding allocates nothing once they have grown
+                path.reset();
+                float s = (float) scale;
+                for (int i = 0; i < size; i += 4) {
+                    path.moveTo(coords[i] * s, coords[i + 1] * s);
+                    path.lineTo(coords[i + 2] * s, coords[i + 3] * s);
+                }
+                pathScale = scale;
+                pathBuilt = true;
+            }
+            g.scale(1 / scale, 1 / scale);
+            g.draw(path);
+            g.scale(scale, scale);
+        }
+
+        void drawLines(Graphics2D g) {
+            for (int i = 0; i < size; i += 4) {
+                g.drawLine(coords[i], coords[i + 1], coords[i + 2], coords[i + 3]);
+            }
+        }
+    }
+
+    // Rebuilds the lines from board's connections in area, leaving out skip,
+    // unless they are still current
+    void update(Board board, Rectangle area, List<Connection> skip) {
+        if (board != this.board) {
+            if (this.board != null) {
+                this.board.removeBoardListener(this);
+            }
+            this.board = board;
+            board.addBoardListener(this);
+            valid = false;
+        }
+        if (valid && area.equals(this.area) && skip.equals(skipped)) {
+            return;
+        }
+        this.area.setBounds(area);
+        skipped.clear();
+        skipped.addAll(skip);
+        clear();
+        board.getConnectionsIn(area, connections);
+        for (int i = 0; i < connections.size(); i++) {
+            Connection conn = connections.get(i);
+            if (!skip.contains(conn)) {
+                add(conn);
+            }
+        }
+        // Keep the capacity, not the references
+        connections.clear();
+        valid = true;
+    }
+
+    // Rebuilds the lines from the connections in the list that intersect area,
+    // e.g. for lines that move every frame
+    void set(List<Connection> list, Rectangle area) {
+        detach();
+        clear();
+        for (int i = 0; i < list.size(); i++) {
+            Connection conn = list.get(i);
+            if (conn.intersects(area)) {
+                add(conn);
+            }
+        }
+    }
+
+    // Draws solid lines, then dashed ones; hairlines are one device pixel wide
+    // whatever the zoom. g scales board coordinates by zoom.
+    void paint(Graphics2D g, boolean hairlines, double zoom) {
+        paintStyles(g, hairlines, zoom, false);
+        paintStyles(g, hairlines, zoom, true);
+    }
+
+    private void paintStyles(Graphics2D g, boolean hairlines, double zoom, boolean dashed) {
+        for (Lines lines : styles) {
+            if (lines.size > 0 && lines.dashed == dashed) {
+                g.setColor(lines.color);
+                g.setStroke(hairlines ? PaintResources.HAIRLINE : dashed ? PaintResources.DASHED : PaintResources.LINE);
+                if (hairlines) {
+                    lines.drawPath(g, zoom);
+                } else {
+                    lines.drawLines(g);
+                }
+            }
+        }
+    }
+
+    // Stops listening to the board and forgets what was built for it
+    void detach() {
+        if (board != null) {
+            board.removeBoardListener(this);
+            board = null;
+        }
+        valid = false;
+        skipped.clear();
+    }
+
+    @Override
+    public void boxMoved(DrawableBox box, int oldX, int oldY) {
+        if (valid && (moved(board.getOutgoingConnections(box)) || moved(board.getIncomingConnections(box))
+                || moved(board.getDecoratorConnections(box)))) {
+            valid = false;
+        }
+    }
+
+    @Override
+    public void boxRemoved(DrawableBox box) {
+        valid = false;
+    }
+
+    @Override
+    public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+        valid = false;
+    }
+
+    @Override
+    public void connectionAdded(Connection connection) {
+        valid = false;
+    }
+
+    @Override
+    public void connectionRemoved(Connection connection) {
+        valid = false;
+    }
+
+    // Whether any of the connections that moved with a box is, or should be, batched
+    private boolean moved(List<Connection> list) {
+        for (int i = 0; i < list.size(); i++) {
+            Connection conn = list.get(i);
+            if (!skipped.contains(conn) && (members.contains(conn.getIndex()) || conn.intersects(area))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(Connection conn) {
+        Lines lines = styles[conn.isDecoratorConnection() ? styles.length - 1 : conn.getKind().ordinal()];
+        if (lines.size == 0) {
+            lines.color = conn.getColor();
+            lines.dashed = conn.isDashed();
+        }
+        if (lines.size + 4 > lines.coords.length) {
+            lines.coords = Arrays.copyOf(lines.coords, lines.coords.length * 2);
+        }
+        if (conn.getLine(lines.coords, lines.size)) {
+            lines.size += 4;
+            members.add(conn.getIndex());
+        }
+    }
+
+    private void clear() {
+        for (Lines lines : styles) {
+            lines.clear();
+        }
+        members.clear();
+    }
+}
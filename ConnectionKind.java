@@ -0,0 +1,61 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// ConnectionKind.java
+// UML relationship a box-to-box connection stands for, and what CodeGenerator
+// makes of it in the source class:
+//
+//   INHERITANCE   extends the target (only one; see CodeGenerator.superclassOf)
+//   REALIZATION   implements the target, which becomes an interface
+//   ASSOCIATION   a field of the target's type with a setter
+//   AGGREGATION   a field set from a constructor parameter: the part exists on its own
+//   COMPOSITION   a final field the class creates itself: it owns the part
+//                 (a plain field if the part is an interface, which it cannot create)
+//   DEPENDENCY    a constructor parameter that is used but not kept
+//
+// Stored in files as its ordinal (see DpvFormat). INHERITANCE comes first, so
+// diagrams saved before connections had a kind read back the way they were
+// generated then.
+enum ConnectionKind {
+    INHERITANCE("Inheritance"),
+    ASSOCIATION("Association"),
+    AGGREGATION("Aggregation"),
+    COMPOSITION("Composition"),
+    REALIZATION("Realization"),
+    DEPENDENCY("Dependency");
+
+    private static final ConnectionKind[] VALUES = values();
+    private static final Map<String, ConnectionKind> BY_NAME = new HashMap<>();
+
+    static {
+        for (ConnectionKind k : VALUES) {
+            BY_NAME.put(k.displayName.toLowerCase(Locale.ROOT), k);
+        }
+    }
+
+    private final String displayName;
+
+    ConnectionKind(String displayName) {
+        this.displayName = displayName;
+    }
+
+    // Kind named by a Connectors menu entry (case-insensitive), or null
+    public static ConnectionKind of(String name) {
+        return BY_NAME.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    // Kind stored as ordinal; throws IndexOutOfBoundsException for an unknown one
+    static ConnectionKind fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    // Single bit for this kind, for packing a class's relationships into an int
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -1,82 +1,66 @@
 // Decorator.java
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 class Decorator {
-    private final String type;
-    private final Color color;
-    private int x, y;
+    // Type, kind, label and colour, shared with every decorator of the same type
+    private final DecoratorStyle style;
     static final int CIRCLE_SIZE = 30;
-    private String label;
     private static final long serialVersionUID = 1L;
 
-    private List<Decorator> connectedDecorators = new ArrayList<>();
+    // Most decorators are never linked, so the list is only allocated on first use
+    private List<Decorator> connectedDecorators = Collections.emptyList();
+    private DrawableBox owner;
+    // Position in the owner's decorator row, which fixes where the circle is drawn
+    private int slot;
 
     public void addConnectedDecorator(Decorator decorator) {
+        if (connectedDecorators.isEmpty()) {
+            connectedDecorators = new ArrayList<>(2);
+        }
         connectedDecorators.add(decorator);
     }
-    public Decorator(String type) {
-        this.type = type;
-        this.color = new Color(255, 198, 92); // Orange color
-        this.label = getDefaultLabel(type);
-    }
-
-    private String getDefaultLabel(String type) {
-        switch (type.toLowerCase()) {
-            case "observer": return "Ob";
-            case "observable": return "Os";
-            case "product": return "P";
-            case "factory": return "F";
-            case "strategy": return "St";
-            case "chain member": return "Ch";
-            case "decorator": return "D";
-            case "singleton": return "Sg";
-            case "decoration": return "Dc";
-            case "decoratable": return "Dt";
-            default: return type.substring(0, Math.min(2, type.length()));
+
+    // Drops the most recent link to decorator, if any
+    void removeConnectedDecorator(Decorator decorator) {
+        int i = connectedDecorators.lastIndexOf(decorator);
+        if (i >= 0) {
+            connectedDecorators.remove(i);
         }
     }
+    public Decorator(String type) {
+        this.style = DecoratorStyle.of(type);
+    }
 
 
-    public void draw(Graphics g, int xPos, int yPos) {
-        this.x = xPos;
-        this.y = yPos;
-
+    public void draw(Graphics g, int x, int y) {
         Graphics2D g2d = (Graphics2D) g;
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        // Draw circle
-        g2d.setColor(color);
-        g2d.fillOval(x, y, CIRCLE_SIZE, CIRCLE_SIZE);
-
-        // Draw border
-        g2d.setColor(Color.BLACK);
-        g2d.setStroke(new BasicStroke(1));
-        g2d.drawOval(x, y, CIRCLE_SIZE, CIRCLE_SIZE);
-
-        // Draw label
-        g2d.setColor(Color.BLACK);
-        FontMetrics fm = g2d.getFontMetrics();
-        int labelX = x + (CIRCLE_SIZE - fm.stringWidth(label)) / 2;
-        int labelY = y + ((CIRCLE_SIZE + fm.getAscent()) / 2);
-        g2d.drawString(label, labelX, labelY);
-
-        for (Decorator connectedDecorator : connectedDecorators) {
-            int x1 = getX();
-            int y1 = getY();
-            int x2 = connectedDecorator.getX();
-            int y2 = connectedDecorator.getY();
-            g.setColor(Color.GRAY);
-            ((Graphics2D) g).setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{10}, 0));
-            g.drawLine(x1, y1, x2, y2);
-        }
+        // Circle, border and label, shared by every decorator of this type
+        style.paint(g2d, x, y);
     }
 
+    // Dashed lines to every connected decorator, drawn after all circles of the box
+    public void drawLinks(Graphics g) {
+        if (connectedDecorators.isEmpty()) {
+            return;
+        }
+        int x1 = getX();
+        int y1 = getY();
+        g.setColor(Color.GRAY);
+        ((Graphics2D) g).setStroke(PaintResources.DASHED);
+        for (int i = 0; i < connectedDecorators.size(); i++) {
+            Decorator connectedDecorator = connectedDecorators.get(i);
+            g.drawLine(x1, y1, connectedDecorator.getX(), connectedDecorator.getY());
+        }
+    }
 
     public boolean contains(int checkX, int checkY) {
         // Adjust the check to account for the box's position
-        int relativeX = checkX - x;
-        int relativeY = checkY - y;
+        int relativeX = checkX - left();
+        int relativeY = checkY - top();
 
         // Check if the point is within the circle
         double centerX = CIRCLE_SIZE / 2.0;
@@ -89,14 +73,44 @@ class Decorator {
     }
 
     public int getX() {
-        return x + CIRCLE_SIZE / 2;
+        return left() + CIRCLE_SIZE / 2;
     }
 
     public int getY() {
-        return y + CIRCLE_SIZE / 2;
+        return top() + CIRCLE_SIZE / 2;
+    }
+
+    // Top-left corner of the circle; derived from the owner, so it never goes stale
+    private int left() {
+        return owner != null ? owner.decoratorX(slot) : 0;
+    }
+
+    private int top() {
+        return owner != null ? owner.decoratorY() : 0;
     }
 
     public String getType() {
-        return type;
+        return style.getType();
+    }
+
+    public DecoratorType getKind() {
+        return style.getKind();
+    }
+
+    DecoratorStyle getStyle() {
+        return style;
+    }
+
+    public List<Decorator> getConnectedDecorators() {
+        return connectedDecorators;
+    }
+
+    public DrawableBox getOwner() {
+        return owner;
+    }
+
+    void setOwner(DrawableBox owner, int slot) {
+        this.owner = owner;
+        this.slot = slot;
     }
 }
@@ -0,0 +1,121 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// DecoratorStyle.java
+// Flyweight for everything decorators of one type have in common: the resolved
+// kind, the circle label, the fill colour, where the label sits inside the
+// circle and the finished circle as an image. Interned by type string, so a
+// board holds one per distinct type no matter how many decorators it has.
+final class DecoratorStyle {
+    static final Color FILL = new Color(255, 198, 92); // Orange color
+    // Antialiased outline pixels reach one pixel past the circle on each side
+    private static final int SPRITE_PAD = 1;
+
+    private static final ConcurrentMap<String, DecoratorStyle> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String type;
+    private final DecoratorType kind;
+    private final String label;
+
+    // Label offset within the circle, measured for labelFont, and the circle
+    // rendered for spriteFont on spriteConfig. Painting is confined to the EDT,
+    // so these are only read and written there.
+    private Font labelFont;
+    private int labelX, labelY;
+    private BufferedImage sprite;
+    private Font spriteFont;
+    private GraphicsConfiguration spriteConfig;
+
+    private DecoratorStyle(String type) {
+        this.type = type;
+        this.kind = DecoratorType.of(type);
+        this.label = kind != DecoratorType.CUSTOM ? kind.getLabel() : type.substring(0, Math.min(2, type.length()));
+    }
+
+    static DecoratorStyle of(String type) {
+        DecoratorStyle style = REGISTRY.get(type);
+        return style != null ? style : REGISTRY.computeIfAbsent(type, DecoratorStyle::new);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public DecoratorType getKind() {
+        return kind;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Color getFill() {
+        return FILL;
+    }
+
+    // Paints the circle with its top-left corner at (x, y). Unless g scales or
+    // rotates, this copies the pre-rendered circle instead of filling and
+    // stroking an oval, which Java2D cannot do without allocating.
+    void paint(Graphics2D g, int x, int y) {
+        // The font render context's transform leaves out translation, and reading
+        // its type allocates nothing, unlike g.getTransform()
+        if (g.getFontRenderContext().getTransformType() != AffineTransform.TYPE_IDENTITY) {
+            paintShape(g, x, y);
+            return;
+        }
+        Font font = g.getFont();
+        GraphicsConfiguration config = g.getDeviceConfiguration();
+        if (sprite == null || font != spriteFont || config != spriteConfig) {
+            sprite = render(g, config);
+            spriteFont = font;
+            spriteConfig = config;
+        }
+        g.drawImage(sprite, x - SPRITE_PAD, y - SPRITE_PAD, null);
+    }
+
+    private BufferedImage render(Graphics2D g, GraphicsConfiguration config) {
+        int size = Decorator.CIRCLE_SIZE + 1 + 2 * SPRITE_PAD;
+        BufferedImage image = config.createCompatibleImage(size, size, Transparency.TRANSLUCENT);
+        Graphics2D ig = image.createGraphics();
+        try {
+            ig.setRenderingHints(g.getRenderingHints());
+            ig.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            ig.setFont(g.getFont());
+            paintShape(ig, SPRITE_PAD, SPRITE_PAD);
+        } finally {
+            ig.dispose();
+        }
+        return image;
+    }
+
+    private void paintShape(Graphics2D g, int x, int y) {
+        g.setColor(FILL);
+        g.fillOval(x, y, Decorator.CIRCLE_SIZE, Decorator.CIRCLE_SIZE);
+        g.setColor(Color.BLACK);
+        g.setStroke(PaintResources.OUTLINE);
+        g.drawOval(x, y, Decorator.CIRCLE_SIZE, Decorator.CIRCLE_SIZE);
+        drawLabel(g, x, y);
+    }
+
+    // Draws the label centred in the circle whose top-left corner is (x, y).
+    // Text is only measured again when the font changes.
+    private void drawLabel(Graphics2D g, int x, int y) {
+        Font font = g.getFont();
+        if (font != labelFont) {
+            FontMetrics fm = g.getFontMetrics(font);
+            labelX = (Decorator.CIRCLE_SIZE - fm.stringWidth(label)) / 2;
+            labelY = (Decorator.CIRCLE_SIZE + fm.getAscent()) / 2;
+            labelFont = font;
+        }
+        g.drawString(label, x + labelX, y + labelY);
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// DecoratorType.java
+// Built-in pattern roles a decorator can play. Resolved once from the
+// decorator's type string so generation and painting never re-parse it.
+enum DecoratorType {
+    OBSERVER("Observer", "Ob"),
+    OBSERVABLE("Observable", "Os"),
+    PRODUCT("Product", "P"),
+    FACTORY("Factory", "F"),
+    STRATEGY("Strategy", "St"),
+    CHAIN_MEMBER("Chain Member", "Ch"),
+    DECORATOR("Decorator", "D"),
+    SINGLETON("Singleton", "Sg"),
+    DECORATION("Decoration", "Dc"),
+    DECORATABLE("Decoratable", "Dt"),
+    // Any type name not listed above
+    CUSTOM(null, null);
+
+    private static final Map<String, DecoratorType> BY_NAME = new HashMap<>();
+
+    static {
+        for (DecoratorType t : values()) {
+            if (t.displayName != null) {
+                BY_NAME.put(t.displayName.toLowerCase(Locale.ROOT), t);
+            }
+        }
+    }
+
+    private final String displayName;
+    private final String label;
+
+    DecoratorType(String displayName, String label) {
+        this.displayName = displayName;
+        this.label = label;
+    }
+
+    public static DecoratorType of(String type) {
+        DecoratorType t = BY_NAME.get(type.toLowerCase(Locale.ROOT));
+        return t != null ? t : CUSTOM;
+    }
+
+    // Single bit for this type, for packing a box's decorator set into a long
+    public long bit() {
+        return 1L << ordinal();
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    // Short text drawn inside the decorator circle; null for CUSTOM
+    public String getLabel() {
+        return label;
+    }
+}
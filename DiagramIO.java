@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+// DiagramIO.java
+// Reads and writes .dpv diagram files; shared by the Swing UI and headless tools.
+// Files are written in the binary format (see DpvFormat); files saved by older
+// versions with Java serialization can still be opened. Large diagrams can be
+// opened lazily: the file is memory-mapped and boxes are paged in as needed.
+class DiagramIO {
+    // First bytes of a Java serialization stream
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    private DiagramIO() {
+    }
+
+    public static Board load(File file) throws IOException {
+        return read(readFully(file));
+    }
+
+    // The generation inputs of a diagram file; see readSnapshot
+    public static BoardSnapshot loadSnapshot(File file) throws IOException {
+        return readSnapshot(readFully(file));
+    }
+
+    // What new CodeGenerator(read(buffer)).snapshot() returns, read without
+    // building a Board, so headless tools never initialize AWT. Files saved with
+    // Java serialization can only be read through a Board.
+    static BoardSnapshot readSnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= 2 && (buffer.getShort(buffer.position()) & 0xFFFF) == LEGACY_MAGIC) {
+            return new CodeGenerator(readLegacy(buffer)).snapshot();
+        }
+        if (MappedDiagram.isIndexed(buffer)) {
+            try {
+                return new MappedDiagram(buffer).readSnapshot();
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException ex) {
+                throw new IOException("Corrupt diagram file", ex);
+            }
+        }
+        return new DpvReader(buffer).readSnapshot();
+    }
+
+    // Opens a diagram for viewing. Indexed files are memory-mapped and only what
+    // the view asks for is materialized; anything else is read in full.
+    public static Board open(File file) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Diagram file too large: " + file.getName());
+            }
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (MappedDiagram.isIndexed(mapped)) {
+            try {
+                return new Board(new MappedDiagram(mapped));
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException ex) {
+                throw new IOException("Corrupt diagram file", ex);
+            }
+        }
+        return read(mapped);
+    }
+
+    // Written beside the target and moved over it, so a diagram mapped from
+    // that file keeps reading the old contents instead of a truncated file.
+    // The file keeps its permissions. Writing pages in every box anyway, so a
+    // lazily opened board is loaded in full first and lets go of its mapping.
+    public static void save(Board board, File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        board.loadAll();
+        Path temp = createTempBeside(target);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                new DpvWriter(channel).write(board);
+            }
+            copyAttributes(target, temp);
+            replace(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Created without attributes, so a new diagram gets the permissions any
+    // new file would rather than those of a private temp file
+    private static Path createTempBeside(Path target) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling(target.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException ex) {
+                // Try another name
+            }
+        }
+    }
+
+    // Gives temp the permissions of target, if target exists
+    private static void copyAttributes(Path target, Path temp) throws IOException {
+        if (!Files.exists(target)) {
+            return;
+        }
+        PosixFileAttributeView posix = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (posix != null) {
+            PosixFileAttributes attributes = Files.readAttributes(target, PosixFileAttributes.class);
+            posix.setPermissions(attributes.permissions());
+            try {
+                posix.setGroup(attributes.group());
+            } catch (IOException ex) {
+                // Only the owner's groups may be set; the permissions still hold
+            }
+            return;
+        }
+        AclFileAttributeView acl = Files.getFileAttributeView(temp, AclFileAttributeView.class);
+        if (acl != null) {
+            acl.setAcl(Files.getFileAttributeView(target, AclFileAttributeView.class).getAcl());
+        }
+        DosFileAttributeView dos = Files.getFileAttributeView(temp, DosFileAttributeView.class);
+        if (dos != null) {
+            DosFileAttributes attributes = Files.readAttributes(target, DosFileAttributes.class);
+            dos.setHidden(attributes.isHidden());
+            dos.setSystem(attributes.isSystem());
+        }
+    }
+
+    // A mapping is only unmapped once its buffer is collected, and until then
+    // Windows will not replace the file. That is reported rather than waited out.
+    private static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {
+            throw ex;
+        } catch (FileSystemException ex) {
+            throw new IOException("Could not replace " + target.getFileName() + " (" + ex.getMessage()
+                    + "); a diagram opened from it may still hold it open. Save under another name.", ex);
+        }
+    }
+
+    public static Board read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, n);
+        }
+        return read(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    public static void write(Board board, OutputStream out) throws IOException {
+        new DpvWriter(Channels.newChannel(out)).write(board);
+    }
+
+    static Board read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= 2 && (buffer.getShort(buffer.position()) & 0xFFFF) == LEGACY_MAGIC) {
+            return readLegacy(buffer);
+        }
+        if (MappedDiagram.isIndexed(buffer)) {
+            try {
+                Board board = new Board(new MappedDiagram(buffer));
+                board.loadAll();
+                return board;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException ex) {
+                throw new IOException("Corrupt diagram file", ex);
+            }
+        }
+        return new DpvReader(buffer).read();
+    }
+
+    private static ByteBuffer readFully(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Diagram file too large: " + file.getName());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until full or end of file
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static Board readLegacy(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Board) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Not a diagram file", ex);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// DiagramValidator.java
+// Checks boxes against every ValidationRule and remembers the result for the
+// canvas to mark. An edit only forgets the results it may have changed, at
+// the cost of the touched boxes' degree; a box is checked again the next time
+// it is asked about, which in practice means the next time it is painted.
+//
+// Which boxes extend themselves can change anywhere on the board after one
+// edit, so that is kept up to date as connections come and go. Every class
+// extends at most one other, the one CodeGenerator picks, so a cycle is found
+// by walking up from the box whose superclass changed: an edit costs the
+// length of that chain, however many connections the board has. On a lazily
+// opened board, boxes still only in the file are followed through the file,
+// so this pages nothing in.
+//
+// Edits are recorded as Metrics.VALIDATION.
+class DiagramValidator {
+    // Longest extends chain spelled out when describing a cycle
+    private static final int MAX_DESCRIBED_CYCLE = 6;
+
+    private final Board board;
+
+    // Rule bits of every box that has been checked since its last edit, by index
+    private int[] problems = new int[0];
+    private final BitSet checked = new BitSet();
+    // Index of the box each box's class extends, or -1
+    private int[] superclass;
+    private final BitSet inCycle = new BitSet();
+    private final SpatialGrid.IntBag targets = new SpatialGrid.IntBag();
+    private final SpatialGrid.IntBag stored = new SpatialGrid.IntBag();
+    private final SpatialGrid.IntBag kinds = new SpatialGrid.IntBag();
+
+    private final BoardListener tracker = new BoardListener() {
+        @Override
+        public void boxAdded(DrawableBox box) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            int index = box.getIndex();
+            if (index >= superclass.length) {
+                superclass = Arrays.copyOf(superclass, Math.max(index + 1, superclass.length + superclass.length / 2));
+            }
+            superclass[index] = -1;
+            stale(box);
+            record(start, allocated);
+        }
+
+        @Override
+        public void boxRemoved(DrawableBox box) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            // It was the last box, and its connections are already gone
+            checked.clear(board.getBoxes().size());
+            record(start, allocated);
+        }
+
+        @Override
+        public void boxRenamed(DrawableBox box, String oldName) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            // A subclass with several targets picks its superclass by name
+            for (Connection conn : board.getIncomingConnections(box)) {
+                sourceChanged(conn);
+            }
+            record(start, allocated);
+        }
+
+        @Override
+        public void decoratorAdded(DrawableBox box, Decorator decorator) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            stale(box);
+            record(start, allocated);
+        }
+
+        @Override
+        public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            stale(box);
+            for (Decorator linked : decorator.getConnectedDecorators()) {
+                stale(linked.getOwner());
+            }
+            record(start, allocated);
+        }
+
+        @Override
+        public void connectionAdded(Connection connection) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            sourceChanged(connection);
+            record(start, allocated);
+        }
+
+        @Override
+        public void connectionRemoved(Connection connection) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            sourceChanged(connection);
+            record(start, allocated);
+        }
+
+        @Override
+        public void decoratorsConnected(Decorator first, Decorator second) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            stale(first.getOwner());
+            stale(second.getOwner());
+            record(start, allocated);
+        }
+
+        @Override
+        public void decoratorsDisconnected(Decorator first, Decorator second) {
+            long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+            stale(first.getOwner());
+            stale(second.getOwner());
+            record(start, allocated);
+        }
+
+        private void sourceChanged(Connection connection) {
+            if (connection.getSource() instanceof DrawableBox) {
+                DrawableBox source = (DrawableBox) connection.getSource();
+                stale(source);
+                setSuperclass(source.getIndex(), findSuperclass(source.getIndex()));
+            }
+        }
+    };
+
+    // Finds the cycles already on the board; on a lazily opened board that
+    // reads the connections of every box, but loads none
+    public DiagramValidator(Board board) {
+        this.board = board;
+        int count = board.getBoxes().size();
+        superclass = new int[count];
+        for (int i = 0; i < count; i++) {
+            superclass[i] = findSuperclass(i);
+        }
+        // Walks up from every box not seen yet; a walk that runs into itself has found a cycle
+        int[] walk = new int[count];
+        for (int i = 0; i < count; i++) {
+            int box = i;
+            while (box >= 0 && walk[box] == 0) {
+                walk[box] = i + 1;
+                box = superclass[box];
+            }
+            if (box >= 0 && walk[box] == i + 1) {
+                int member = box;
+                do {
+                    inCycle.set(member);
+                    member = superclass[member];
+                } while (member != box);
+            }
+        }
+        board.addBoardListener(tracker);
+    }
+
+    // Stops tracking edits; call when the validator is replaced
+    public void dispose() {
+        board.removeBoardListener(tracker);
+    }
+
+    Board getBoard() {
+        return board;
+    }
+
+    // ValidationRule.bit() of every rule box breaks, or-ed together
+    public int getProblems(DrawableBox box) {
+        int index = box.getIndex();
+        if (index < 0) {
+            return 0;
+        }
+        if (!checked.get(index)) {
+            if (index >= problems.length) {
+                problems = Arrays.copyOf(problems, Math.max(index + 1, 2 * problems.length));
+            }
+            int bits = 0;
+            for (ValidationRule rule : ValidationRule.values()) {
+                if (rule.check(this, box) != null) {
+                    bits |= rule.bit();
+                }
+            }
+            problems[index] = bits;
+            checked.set(index);
+        }
+        return problems[index];
+    }
+
+    public boolean hasProblems(DrawableBox box) {
+        return getProblems(box) != 0;
+    }
+
+    // What is wrong with box, one line per broken rule
+    public List<String> describe(DrawableBox box) {
+        List<String> messages = new ArrayList<>();
+        if (box.getIndex() >= 0) {
+            for (ValidationRule rule : ValidationRule.values()) {
+                String message = rule.check(this, box);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    // Whether the class of the box at index ends up extending itself
+    boolean isInCycle(int index) {
+        return inCycle.get(index);
+    }
+
+    // The cycle through the box at index as "A extends B extends A", shortened if long
+    String describeCycle(int index) {
+        StringBuilder text = new StringBuilder(nameOf(index));
+        int box = superclass[index];
+        for (int n = 1; box != index && n < MAX_DESCRIBED_CYCLE; n++) {
+            text.append(" extends ").append(nameOf(box));
+            box = superclass[box];
+        }
+        if (box != index) {
+            text.append(" extends ...");
+        }
+        return text.append(" extends ").append(nameOf(index)).toString();
+    }
+
+    private void stale(DrawableBox box) {
+        if (box != null && box.getIndex() >= 0) {
+            checked.clear(box.getIndex());
+        }
+    }
+
+    private static void record(long start, long allocated) {
+        Metrics.VALIDATION.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
+    }
+
+    // Index of the box whose name CodeGenerator puts in the extends clause of
+    // the box at index, or -1. A box that is still only in the file is read
+    // from it, as in CodeGenerator.storedSpec. Only inheritance connections count.
+    private int findSuperclass(int index) {
+        targets.clear();
+        if (board.isBoxLoaded(index)) {
+            for (Connection conn : board.getOutgoingConnections(board.getBoxes().get(index))) {
+                if (conn.getTarget() instanceof DrawableBox && conn.getKind() == ConnectionKind.INHERITANCE) {
+                    targets.add(((DrawableBox) conn.getTarget()).getIndex());
+                }
+            }
+        } else {
+            board.getSource().readOutgoingTargets(index, stored, kinds);
+            for (int k = 0; k < stored.size(); k++) {
+                if (kinds.get(k) == ConnectionKind.INHERITANCE.ordinal()) {
+                    targets.add(stored.get(k));
+                }
+            }
+        }
+        if (targets.size() == 0) {
+            return -1;
+        }
+        boolean single = true;
+        for (int k = 1; k < targets.size() && single; k++) {
+            single = targets.get(k) == targets.get(0);
+        }
+        if (single) {
+            return targets.get(0);
+        }
+        List<String> names = new ArrayList<>(targets.size());
+        for (int k = 0; k < targets.size(); k++) {
+            names.add(nameOf(targets.get(k)));
+        }
+        return targets.get(names.indexOf(CodeGenerator.superclassOf(names)));
+    }
+
+    private String nameOf(int index) {
+        return board.isBoxLoaded(index) ? board.getBoxes().get(index).getName() : board.getSource().getBoxName(index);
+    }
+
+    // Every cycle is marked before and after: the one the box was on, if
+    // any, ran through its old superclass, and a new one must run through the
+    // new superclass and lead back to the box
+    private void setSuperclass(int index, int next) {
+        if (superclass[index] == next) {
+            return;
+        }
+        if (inCycle.get(index)) {
+            int member = index;
+            do {
+                setInCycle(member, false);
+                member = superclass[member];
+            } while (member != index);
+        }
+        superclass[index] = next;
+        int box = next;
+        while (box >= 0 && box != index && !inCycle.get(box)) {
+            box = superclass[box];
+        }
+        if (box == index) {
+            int member = index;
+            do {
+                setInCycle(member, true);
+                member = superclass[member];
+            } while (member != index);
+        }
+    }
+
+    private void setInCycle(int index, boolean cyclic) {
+        if (inCycle.get(index) != cyclic) {
+            inCycle.set(index, cyclic);
+            checked.clear(index);
+        }
+    }
+}
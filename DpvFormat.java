@@ -0,0 +1,79 @@
+// DpvFormat.java
+// Layout of the binary .dpv diagram format. All integers are unsigned LEB128
+// varints; coordinates are zigzag-encoded first so small negatives stay short.
+//
+//   magic        4 bytes  'D' 'P' 'V' 0x1A
+//   version      varint
+//   strings      count, then per string: UTF-8 byte length, bytes
+//                (box names and decorator types, each stored once)
+//   boxes        count, then per box: name string index, x, y,
+//                decorator count, then per decorator: type string index
+//   connections  count, then per connection: flags, source ref, target ref
+//                (refs are box indices, or global decorator indices when the
+//                matching FLAG_*_DECORATOR bit is set; bits 3-5 of the flags
+//                hold the ConnectionKind ordinal, clear in files written
+//                before connections had a kind, which reads as INHERITANCE)
+//   links        per decorator in global order: link count, then the global
+//                indices of the decorators it is connected to
+//
+// Global decorator indices number decorators box by box, in box order.
+//
+// Version 2 (indexed) is written for large diagrams so they can be memory-mapped
+// and paged in (see MappedDiagram). After the magic and the version byte come
+// fixed-width big-endian ints:
+//
+//   header       box, decorator, connection and string counts, then the offsets
+//                of strings, boxes, records, box cells, connections, decorator
+//                connections, adjacency, connection cells and links
+//   strings      count + 1 absolute offsets into the UTF-8 bytes that follow
+//   boxes        per box: x, y, bounds width, first global decorator index,
+//                absolute record offset
+//   records      per box, as varints: name string index, decorator count, types
+//   box cells    SpatialGrid of box bounds: cell size, cell count, ascending
+//                cell keys (longs), count + 1 run starts, ids
+//   connections  per connection: flags, source ref, target ref
+//   decorator connections  count, then indices of connections with a
+//                decorator at either end
+//   adjacency    outgoing then incoming, each box count + 1 run starts followed
+//                by connection indices in creation order
+//   connection cells  SpatialGrid of connection centre lines, as box cells
+//   links        decorator count + 1 run starts, then global decorator indices
+final class DpvFormat {
+    static final byte[] MAGIC = {'D', 'P', 'V', 0x1A};
+    static final int VERSION = 1;
+    static final int INDEXED_VERSION = 2;
+
+    static final int FLAG_DECORATOR_CONNECTION = 1;
+    static final int FLAG_SOURCE_DECORATOR = 2;
+    static final int FLAG_TARGET_DECORATOR = 4;
+    static final int KIND_SHIFT = 3;
+    static final int KIND_MASK = 7 << KIND_SHIFT;
+
+    private DpvFormat() {
+    }
+
+    // Flags stored for conn, in the file and in the edit journal
+    static int flagsOf(Connection conn) {
+        int flags = conn.isDecoratorConnection() ? FLAG_DECORATOR_CONNECTION : 0;
+        if (conn.getSource() instanceof Decorator) {
+            flags |= FLAG_SOURCE_DECORATOR;
+        }
+        if (conn.getTarget() instanceof Decorator) {
+            flags |= FLAG_TARGET_DECORATOR;
+        }
+        return flags | conn.getKind().ordinal() << KIND_SHIFT;
+    }
+
+    // Throws IndexOutOfBoundsException for a kind this version does not know
+    static ConnectionKind kindOf(int flags) {
+        return ConnectionKind.fromOrdinal((flags & KIND_MASK) >>> KIND_SHIFT);
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// DpvReader.java
+// Rebuilds a Board from the binary format described in DpvFormat, or reads
+// just the code generation inputs without building one.
+class DpvReader {
+    private final ByteBuffer in;
+
+    public DpvReader(ByteBuffer in) {
+        this.in = in;
+    }
+
+    // True if the buffer starts with the binary format's magic bytes
+    static boolean isDpv(ByteBuffer buffer) {
+        if (buffer.remaining() < DpvFormat.MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < DpvFormat.MAGIC.length; i++) {
+            if (buffer.get(buffer.position() + i) != DpvFormat.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Board read() throws IOException {
+        try {
+            return readBoard();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt diagram file", ex);
+        }
+    }
+
+    // What CodeGenerator.snapshot() would return for the board read(). Touches
+    // no AWT classes; decorator links are not needed and not read.
+    public BoardSnapshot readSnapshot() throws IOException {
+        try {
+            return readSpecs();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt diagram file", ex);
+        }
+    }
+
+    private BoardSnapshot readSpecs() throws IOException {
+        String[] strings = readHeader();
+        int boxCount = getCount();
+        String[] names = new String[boxCount];
+        List<List<String>> decoratorTypes = new ArrayList<>(boxCount);
+        int decoratorCount = 0;
+        for (int i = 0; i < boxCount; i++) {
+            names[i] = strings[getVarint()];
+            getVarint(); // x
+            getVarint(); // y
+            int count = getCount();
+            List<String> types = new ArrayList<>(count);
+            for (int k = 0; k < count; k++) {
+                types.add(strings[getVarint()]);
+            }
+            decoratorTypes.add(types);
+            decoratorCount += count;
+        }
+
+        // Boxes each box's connections end on, in creation order, and the
+        // kinds of those connections; and which boxes a realization ends on
+        List<SpatialGrid.IntBag> targetIds =
+                new ArrayList<>(Collections.nCopies(boxCount, (SpatialGrid.IntBag) null));
+        List<List<ConnectionKind>> targetKinds =
+                new ArrayList<>(Collections.nCopies(boxCount, (List<ConnectionKind>) null));
+        boolean[] realized = new boolean[boxCount];
+        int connectionCount = getCount();
+        for (int i = 0; i < connectionCount; i++) {
+            int flags = getVarint();
+            int source = getVarint();
+            int target = getVarint();
+            boolean sourceDecorator = (flags & DpvFormat.FLAG_SOURCE_DECORATOR) != 0;
+            boolean targetDecorator = (flags & DpvFormat.FLAG_TARGET_DECORATOR) != 0;
+            if (source < 0 || source >= (sourceDecorator ? decoratorCount : boxCount)
+                    || target < 0 || target >= (targetDecorator ? decoratorCount : boxCount)) {
+                throw new IOException("Corrupt diagram file");
+            }
+            if (!sourceDecorator && !targetDecorator) {
+                SpatialGrid.IntBag targets = targetIds.get(source);
+                List<ConnectionKind> kinds = targetKinds.get(source);
+                if (targets == null) {
+                    targets = new SpatialGrid.IntBag();
+                    targetIds.set(source, targets);
+                    kinds = new ArrayList<>(2);
+                    targetKinds.set(source, kinds);
+                }
+                targets.add(target);
+                kinds.add(DpvFormat.kindOf(flags));
+                if (DpvFormat.kindOf(flags) == ConnectionKind.REALIZATION) {
+                    realized[target] = true;
+                }
+            }
+        }
+
+        List<ClassSpec> classes = new ArrayList<>(boxCount);
+        for (int i = 0; i < boxCount; i++) {
+            SpatialGrid.IntBag targets = targetIds.get(i);
+            if (targets == null) {
+                classes.add(CodeGenerator.specOf(names[i], decoratorTypes.get(i),
+                        Collections.<ConnectionKind>emptyList(), Collections.<String>emptyList(),
+                        realized[i], Collections.<String>emptySet()));
+                continue;
+            }
+            List<String> targetNames = new ArrayList<>(targets.size());
+            Set<String> interfaceTargets = new HashSet<>();
+            for (int k = 0; k < targets.size(); k++) {
+                targetNames.add(names[targets.get(k)]);
+                if (realized[targets.get(k)]) {
+                    interfaceTargets.add(names[targets.get(k)]);
+                }
+            }
+            classes.add(CodeGenerator.specOf(names[i], decoratorTypes.get(i), targetKinds.get(i), targetNames,
+                    realized[i], interfaceTargets));
+        }
+        return new BoardSnapshot(classes);
+    }
+
+    private Board readBoard() throws IOException {
+        String[] strings = readHeader();
+        Board board = new Board();
+        List<Decorator> decorators = new ArrayList<>();
+        int boxCount = getCount();
+        for (int i = 0; i < boxCount; i++) {
+            String name = strings[getVarint()];
+            int x = DpvFormat.unzigzag(getVarint());
+            int y = DpvFormat.unzigzag(getVarint());
+            DrawableBox box = new DrawableBox(x, y, name);
+            int decoratorCount = getCount();
+            for (int k = 0; k < decoratorCount; k++) {
+                box.addDecorator(strings[getVarint()]);
+            }
+            decorators.addAll(box.getDecorators());
+            board.addBox(box);
+        }
+
+        List<DrawableBox> boxes = board.getBoxes();
+        int connectionCount = getCount();
+        for (int i = 0; i < connectionCount; i++) {
+            int flags = getVarint();
+            int source = getVarint();
+            int target = getVarint();
+            board.addConnection(
+                    (flags & DpvFormat.FLAG_SOURCE_DECORATOR) != 0 ? decorators.get(source) : boxes.get(source),
+                    (flags & DpvFormat.FLAG_TARGET_DECORATOR) != 0 ? decorators.get(target) : boxes.get(target),
+                    (flags & DpvFormat.FLAG_DECORATOR_CONNECTION) != 0,
+                    DpvFormat.kindOf(flags));
+        }
+
+        for (Decorator decorator : decorators) {
+            int links = getCount();
+            for (int k = 0; k < links; k++) {
+                decorator.addConnectedDecorator(decorators.get(getVarint()));
+            }
+        }
+        return board;
+    }
+
+    // Checks the magic bytes and version and returns the string table
+    private String[] readHeader() throws IOException {
+        if (!isDpv(in)) {
+            throw new IOException("Not a diagram file");
+        }
+        in.position(in.position() + DpvFormat.MAGIC.length);
+        int version = getVarint();
+        if (version != DpvFormat.VERSION) {
+            throw new IOException("Unsupported diagram version " + version);
+        }
+
+        String[] strings = new String[getCount()];
+        for (int i = 0; i < strings.length; i++) {
+            int length = getCount();
+            if (in.hasArray()) {
+                strings[i] = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return strings;
+    }
+
+    // A length or count; bounded by the remaining input so corrupt files fail fast
+    private int getCount() throws IOException {
+        int count = getVarint();
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Corrupt diagram file");
+        }
+        return count;
+    }
+
+    private int getVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt diagram file");
+    }
+}
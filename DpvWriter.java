@@ -0,0 +1,435 @@
+import java.awt.geom.Line2D;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// DpvWriter.java
+// Writes a Board in the binary format described in DpvFormat through a
+// fixed-size buffer, flushing to the channel whenever it fills. Large boards
+// get the indexed layout so they can be opened lazily.
+class DpvWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Below this the compact layout wins: such boards load in well under a frame
+    static final int INDEXED_THRESHOLD = 2000;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    public DpvWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void write(Board board) throws IOException {
+        if (board.getBoxes().size() >= INDEXED_THRESHOLD) {
+            writeIndexed(board);
+        } else {
+            writeCompact(board);
+        }
+    }
+
+    public void writeCompact(Board board) throws IOException {
+        writeCompact(Contents.of(board));
+    }
+
+    // What the compact layout stores of a board, copied out of it, so that it
+    // can be written on another thread while the board is edited
+    static final class Contents {
+        private final String[] names;
+        private final int[] xs, ys;
+        // Decorators of box i are decoratorStart[i] to decoratorStart[i + 1]
+        private final int[] decoratorStart;
+        private final String[] decoratorTypes;
+        private final int[] flags, sources, targets;
+        // Links of decorator d are linkStart[d] to linkStart[d + 1]
+        private final int[] linkStart;
+        private final int[] links;
+
+        private Contents(Board board) throws IOException {
+            List<DrawableBox> boxes = board.getBoxes();
+            int boxCount = boxes.size();
+            names = new String[boxCount];
+            xs = new int[boxCount];
+            ys = new int[boxCount];
+            decoratorStart = new int[boxCount + 1];
+            for (int i = 0; i < boxCount; i++) {
+                DrawableBox box = boxes.get(i);
+                names[i] = box.getName();
+                xs[i] = box.getX();
+                ys[i] = box.getY();
+                decoratorStart[i + 1] = decoratorStart[i] + box.getDecorators().size();
+            }
+            decoratorTypes = new String[decoratorStart[boxCount]];
+            linkStart = new int[decoratorTypes.length + 1];
+            int d = 0;
+            for (DrawableBox box : boxes) {
+                for (Decorator decorator : box.getDecorators()) {
+                    decoratorTypes[d] = decorator.getType();
+                    linkStart[d + 1] = linkStart[d] + decorator.getConnectedDecorators().size();
+                    d++;
+                }
+            }
+            links = new int[linkStart[decoratorTypes.length]];
+            int l = 0;
+            for (DrawableBox box : boxes) {
+                for (Decorator decorator : box.getDecorators()) {
+                    for (Decorator other : decorator.getConnectedDecorators()) {
+                        links[l++] = refOf(other, boxes);
+                    }
+                }
+            }
+            List<Connection> connections = board.getConnections();
+            flags = new int[connections.size()];
+            sources = new int[connections.size()];
+            targets = new int[connections.size()];
+            for (int i = 0; i < connections.size(); i++) {
+                Connection conn = connections.get(i);
+                flags[i] = DpvFormat.flagsOf(conn);
+                sources[i] = refOf(conn.getSource(), boxes);
+                targets[i] = refOf(conn.getTarget(), boxes);
+            }
+        }
+
+        // Costs a copy of the board's references and coordinates; nothing is encoded
+        static Contents of(Board board) throws IOException {
+            return new Contents(board);
+        }
+
+        // Box index, or global decorator index
+        private int refOf(Object end, List<DrawableBox> boxes) throws IOException {
+            DrawableBox box = end instanceof Decorator ? ((Decorator) end).getOwner() : (DrawableBox) end;
+            int index = box != null ? box.getIndex() : -1;
+            int slot = end instanceof Decorator ? box.getDecorators().indexOf(end) : 0;
+            if (index < 0 || index >= boxes.size() || boxes.get(index) != box || slot < 0) {
+                throw new IOException("Connection refers to an object that is not on the board");
+            }
+            return end instanceof Decorator ? decoratorStart[index] + slot : index;
+        }
+    }
+
+    public void writeCompact(Contents contents) throws IOException {
+        // String table: every distinct name and decorator type once, in first-use order
+        Map<String, Integer> strings = new HashMap<>();
+        for (int i = 0; i < contents.names.length; i++) {
+            intern(strings, contents.names[i]);
+            for (int d = contents.decoratorStart[i]; d < contents.decoratorStart[i + 1]; d++) {
+                intern(strings, contents.decoratorTypes[d]);
+            }
+        }
+        String[] table = new String[strings.size()];
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            table[e.getValue()] = e.getKey();
+        }
+
+        buffer.clear();
+        buffer.put(DpvFormat.MAGIC);
+        putVarint(DpvFormat.VERSION);
+
+        putVarint(table.length);
+        for (String s : table) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            putBytes(bytes);
+        }
+
+        putVarint(contents.names.length);
+        for (int i = 0; i < contents.names.length; i++) {
+            putVarint(strings.get(contents.names[i]));
+            putVarint(DpvFormat.zigzag(contents.xs[i]));
+            putVarint(DpvFormat.zigzag(contents.ys[i]));
+            putVarint(contents.decoratorStart[i + 1] - contents.decoratorStart[i]);
+            for (int d = contents.decoratorStart[i]; d < contents.decoratorStart[i + 1]; d++) {
+                putVarint(strings.get(contents.decoratorTypes[d]));
+            }
+        }
+
+        putVarint(contents.flags.length);
+        for (int i = 0; i < contents.flags.length; i++) {
+            putVarint(contents.flags[i]);
+            putVarint(contents.sources[i]);
+            putVarint(contents.targets[i]);
+        }
+
+        for (int d = 0; d < contents.decoratorTypes.length; d++) {
+            putVarint(contents.linkStart[d + 1] - contents.linkStart[d]);
+            for (int l = contents.linkStart[d]; l < contents.linkStart[d + 1]; l++) {
+                putVarint(contents.links[l]);
+            }
+        }
+        flush();
+    }
+
+    public void writeIndexed(Board board) throws IOException {
+        List<DrawableBox> boxes = board.getBoxes();
+        List<Connection> connections = board.getConnections();
+        int boxCount = boxes.size();
+        int connectionCount = connections.size();
+
+        Map<String, Integer> strings = new HashMap<>();
+        Map<Decorator, Integer> decoratorIds = new IdentityHashMap<>();
+        int[] decoratorBase = new int[boxCount];
+        int[] recordOffset = new int[boxCount];
+        int recordBytes = 0;
+        SpatialGrid boxCells = new SpatialGrid();
+        for (int i = 0; i < boxCount; i++) {
+            DrawableBox box = boxes.get(i);
+            decoratorBase[i] = decoratorIds.size();
+            recordOffset[i] = recordBytes;
+            intern(strings, box.getName());
+            recordBytes += varintSize(strings.get(box.getName())) + varintSize(box.getDecorators().size());
+            for (Decorator decorator : box.getDecorators()) {
+                intern(strings, decorator.getType());
+                recordBytes += varintSize(strings.get(decorator.getType()));
+                decoratorIds.put(decorator, decoratorIds.size());
+            }
+            boxCells.insert(i, box.getBounds());
+        }
+        int decoratorCount = decoratorIds.size();
+        byte[][] table = new byte[strings.size()][];
+        int stringBytes = 0;
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            table[e.getValue()] = e.getKey().getBytes(StandardCharsets.UTF_8);
+            stringBytes += table[e.getValue()].length;
+        }
+
+        int[] flags = new int[connectionCount];
+        int[] sources = new int[connectionCount];
+        int[] targets = new int[connectionCount];
+        int[] outStart = new int[boxCount + 1];
+        int[] inStart = new int[boxCount + 1];
+        SpatialGrid.IntBag decoratorConnections = new SpatialGrid.IntBag();
+        SpatialGrid connectionCells = new SpatialGrid(Board.CONNECTION_CELL_SIZE);
+        for (int i = 0; i < connectionCount; i++) {
+            Connection conn = connections.get(i);
+            flags[i] = DpvFormat.flagsOf(conn);
+            sources[i] = refOf(conn.getSource(), decoratorIds);
+            targets[i] = refOf(conn.getTarget(), decoratorIds);
+            if ((flags[i] & (DpvFormat.FLAG_SOURCE_DECORATOR | DpvFormat.FLAG_TARGET_DECORATOR)) != 0) {
+                decoratorConnections.add(i);
+            }
+            if ((flags[i] & DpvFormat.FLAG_SOURCE_DECORATOR) == 0) {
+                outStart[sources[i] + 1]++;
+            }
+            if ((flags[i] & DpvFormat.FLAG_TARGET_DECORATOR) == 0) {
+                inStart[targets[i] + 1]++;
+            }
+            Line2D line = conn.getLine();
+            if (line != null) {
+                connectionCells.insertSegment(i, (int) line.getX1(), (int) line.getY1(),
+                        (int) line.getX2(), (int) line.getY2());
+            }
+        }
+        for (int i = 0; i < boxCount; i++) {
+            outStart[i + 1] += outStart[i];
+            inStart[i + 1] += inStart[i];
+        }
+        int[] outIds = new int[outStart[boxCount]];
+        int[] inIds = new int[inStart[boxCount]];
+        int[] outFill = outStart.clone();
+        int[] inFill = inStart.clone();
+        for (int i = 0; i < connectionCount; i++) {
+            if ((flags[i] & DpvFormat.FLAG_SOURCE_DECORATOR) == 0) {
+                outIds[outFill[sources[i]]++] = i;
+            }
+            if ((flags[i] & DpvFormat.FLAG_TARGET_DECORATOR) == 0) {
+                inIds[inFill[targets[i]]++] = i;
+            }
+        }
+
+        int linkCount = 0;
+        for (DrawableBox box : boxes) {
+            for (Decorator decorator : box.getDecorators()) {
+                linkCount += decorator.getConnectedDecorators().size();
+            }
+        }
+
+        int stringsOff = MappedDiagram.headerSize();
+        int boxesOff = stringsOff + 4 * (table.length + 1) + stringBytes;
+        int recordsOff = boxesOff + 20 * boxCount;
+        int boxCellsOff = recordsOff + recordBytes;
+        int connectionsOff = boxCellsOff + gridSize(boxCells);
+        int decoratorConnectionsOff = connectionsOff + 12 * connectionCount;
+        int adjacencyOff = decoratorConnectionsOff + 4 + 4 * decoratorConnections.size();
+        int connectionCellsOff = adjacencyOff + 4 * (2 * (boxCount + 1) + outIds.length + inIds.length);
+        int linksOff = connectionCellsOff + gridSize(connectionCells);
+
+        buffer.clear();
+        buffer.put(DpvFormat.MAGIC);
+        putVarint(DpvFormat.INDEXED_VERSION);
+        for (int v : new int[]{boxCount, decoratorCount, connectionCount, table.length,
+                stringsOff, boxesOff, recordsOff, boxCellsOff, connectionsOff,
+                decoratorConnectionsOff, adjacencyOff, connectionCellsOff, linksOff}) {
+            putInt(v);
+        }
+
+        int stringOffset = stringsOff + 4 * (table.length + 1);
+        for (byte[] bytes : table) {
+            putInt(stringOffset);
+            stringOffset += bytes.length;
+        }
+        putInt(stringOffset);
+        for (byte[] bytes : table) {
+            putBytes(bytes);
+        }
+
+        for (int i = 0; i < boxCount; i++) {
+            DrawableBox box = boxes.get(i);
+            putInt(box.getX());
+            putInt(box.getY());
+            putInt(box.getBounds().width);
+            putInt(decoratorBase[i]);
+            putInt(recordsOff + recordOffset[i]);
+        }
+        for (DrawableBox box : boxes) {
+            putVarint(strings.get(box.getName()));
+            putVarint(box.getDecorators().size());
+            for (Decorator decorator : box.getDecorators()) {
+                putVarint(strings.get(decorator.getType()));
+            }
+        }
+        putGrid(boxCells);
+
+        for (int i = 0; i < connectionCount; i++) {
+            putInt(flags[i]);
+            putInt(sources[i]);
+            putInt(targets[i]);
+        }
+        putInt(decoratorConnections.size());
+        for (int i = 0; i < decoratorConnections.size(); i++) {
+            putInt(decoratorConnections.get(i));
+        }
+        putInts(outStart);
+        putInts(outIds);
+        putInts(inStart);
+        putInts(inIds);
+        putGrid(connectionCells);
+
+        int linkStart = 0;
+        putInt(0);
+        for (DrawableBox box : boxes) {
+            for (Decorator decorator : box.getDecorators()) {
+                linkStart += decorator.getConnectedDecorators().size();
+                putInt(linkStart);
+            }
+        }
+        for (DrawableBox box : boxes) {
+            for (Decorator decorator : box.getDecorators()) {
+                for (Decorator other : decorator.getConnectedDecorators()) {
+                    putInt(refOf(other, decoratorIds));
+                }
+            }
+        }
+        flush();
+    }
+
+    private static int gridSize(SpatialGrid grid) {
+        long[] keys = grid.sortedKeys();
+        int ids = 0;
+        for (long key : keys) {
+            ids += grid.cell(key).size();
+        }
+        return 8 + 8 * keys.length + 4 * (keys.length + 1) + 4 * ids;
+    }
+
+    private void putGrid(SpatialGrid grid) throws IOException {
+        long[] keys = grid.sortedKeys();
+        putInt(grid.getCellSize());
+        putInt(keys.length);
+        for (long key : keys) {
+            putLong(key);
+        }
+        int start = 0;
+        putInt(0);
+        for (long key : keys) {
+            start += grid.cell(key).size();
+            putInt(start);
+        }
+        for (long key : keys) {
+            SpatialGrid.IntBag ids = grid.cell(key);
+            for (int i = 0; i < ids.size(); i++) {
+                putInt(ids.get(i));
+            }
+        }
+    }
+
+    private static int varintSize(int value) {
+        int n = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+
+    private static int refOf(Object end, Map<Decorator, Integer> decoratorIds) throws IOException {
+        if (end instanceof DrawableBox) {
+            return ((DrawableBox) end).getIndex();
+        }
+        Integer id = decoratorIds.get(end);
+        if (id == null) {
+            throw new IOException("Connection refers to an object that is not on the board");
+        }
+        return id;
+    }
+
+    private void putVarint(int value) throws IOException {
+        if (buffer.remaining() < 5) {
+            flush();
+        }
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+        buffer.putInt(value);
+    }
+
+    private void putLong(long value) throws IOException {
+        if (buffer.remaining() < 8) {
+            flush();
+        }
+        buffer.putLong(value);
+    }
+
+    private void putInts(int[] values) throws IOException {
+        for (int value : values) {
+            putInt(value);
+        }
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -1,64 +1,112 @@
 // DrawableBox.java
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 class DrawableBox implements Serializable {
     static final int BOX_SIZE = 50;
+    // Position while detached; an owning Board keeps it in its BoxStore instead
     private int x, y;
     private String name;
     private List<Decorator> decorators;
     private static int boxCounter = 1;
     private static final long serialVersionUID = 1L;
 
+    // Maintained by the owning Board so it can keep its spatial index current
+    private transient Board owner;
+    private transient int index = -1;
+    // Pre-rendered box and name, dropped whenever the name changes
+    private transient SpriteCache.Sprite sprite;
+    // Realizations from other boxes that end on this one, counted by the owning Board
+    private transient int realizations;
+
     public DrawableBox(int x, int y) {
         this.x = x;
         this.y = y;
         this.name = String.format("Class%02d", boxCounter++);
-        this.decorators = new ArrayList<>();
+        this.decorators = new ArrayList<>(0);
+    }
+
+    // Restores a saved box; does not advance the default-name counter
+    DrawableBox(int x, int y, String name) {
+        this.x = x;
+        this.y = y;
+        this.name = name;
+        this.decorators = new ArrayList<>(0);
     }
 
 
     public Decorator getDecoratorAt(int clickX, int clickY) {
         // Calculate relative click position
-        int relX = clickX - x;
-        int relY = clickY - y;
+        int relX = clickX - getX();
+        int relY = clickY - getY();
 
-        // Check each decorator
+        // Decorators sit in a fixed-pitch row, so the candidate slot is computed directly
         int decoratorStartX = BOX_SIZE + 10; // starting position for decorators
         int decoratorY = (BOX_SIZE - Decorator.CIRCLE_SIZE) / 2;
+        int pitch = Decorator.CIRCLE_SIZE + 5;
+        if (relX < decoratorStartX || decorators.isEmpty()) {
+            return null;
+        }
 
-        for (int i = 0; i < decorators.size(); i++) {
-            Decorator d = decorators.get(i);
-            int decoratorX = decoratorStartX + (i * (Decorator.CIRCLE_SIZE + 5));
+        int i = (relX - decoratorStartX) / pitch;
+        if (i >= decorators.size()) {
+            return null;
+        }
 
-            // Check if click is within decorator circle
-            if (relX >= decoratorX && relX <= decoratorX + Decorator.CIRCLE_SIZE &&
-                    relY >= decoratorY && relY <= decoratorY + Decorator.CIRCLE_SIZE) {
-                return d;
-            }
+        // Check if click is within decorator circle
+        int dx = relX - (decoratorStartX + i * pitch) - Decorator.CIRCLE_SIZE / 2;
+        int dy = relY - decoratorY - Decorator.CIRCLE_SIZE / 2;
+        int r = Decorator.CIRCLE_SIZE / 2;
+        return dx * dx + dy * dy <= r * r ? decorators.get(i) : null;
+    }
+
+    // Area covered by the box and its decorator row
+    public Rectangle getBounds() {
+        return new Rectangle(getX(), getY(), widthFor(decorators.size()), BOX_SIZE);
+    }
+
+    static int widthFor(int decoratorCount) {
+        if (decoratorCount == 0) {
+            return BOX_SIZE;
         }
-        return null;
+        return BOX_SIZE + 10 + decoratorCount * (Decorator.CIRCLE_SIZE + 5) - 5;
     }
 
 
     public void draw(Graphics g) {
-        // Draw the main box
+        int x = getX(), y = getY();
+        drawSquare(g, x, y);
+        drawName(g, x, y);
+        drawDecorators(g, x, y);
+        drawLinks(g);
+    }
+
+    // Box outline and fill with the top-left corner at (x, y)
+    void drawSquare(Graphics g, int x, int y) {
         g.setColor(Color.DARK_GRAY);
         g.fillRect(x, y, BOX_SIZE, BOX_SIZE);
         g.setColor(Color.BLACK);
+        // Set explicitly: the stroke left by the previous element may be wide or dashed
+        ((Graphics2D) g).setStroke(PaintResources.OUTLINE);
         g.drawRect(x, y, BOX_SIZE, BOX_SIZE);
+    }
 
-        // Draw name in white
+    // Name in white, centred on the box at (x, y); a long name sticks out on both sides
+    void drawName(Graphics g, int x, int y) {
         g.setColor(Color.WHITE);
         FontMetrics fm = g.getFontMetrics();
         int nameX = x + (BOX_SIZE - fm.stringWidth(name)) / 2;
         int nameY = y + (BOX_SIZE + fm.getAscent()) / 2;
         g.drawString(name, nameX, nameY);
+    }
 
-        // Draw decorators to the right of the box
+    // Decorator circles to the right of the box at (x, y)
+    void drawDecorators(Graphics g, int x, int y) {
         int decoratorStartX = x + BOX_SIZE + 10;
         int decoratorY = y + (BOX_SIZE - Decorator.CIRCLE_SIZE) / 2;
 
@@ -67,40 +115,164 @@ class DrawableBox implements Serializable {
         }
     }
 
+    // Stand-in when zoomed out too far to read text: the square and each
+    // decorator circle as flat fills, without outlines, name or labels
+    void drawFlat(Graphics g) {
+        int x = getX(), y = getY();
+        g.setColor(Color.DARK_GRAY);
+        g.fillRect(x, y, BOX_SIZE, BOX_SIZE);
+        if (!decorators.isEmpty()) {
+            g.setColor(DecoratorStyle.FILL);
+            int decoratorY = decoratorY();
+            for (int i = 0; i < decorators.size(); i++) {
+                g.fillRect(decoratorX(i), decoratorY, Decorator.CIRCLE_SIZE, Decorator.CIRCLE_SIZE);
+            }
+        }
+    }
+
+    void drawLinks(Graphics g) {
+        for (int i = 0; i < decorators.size(); i++) {
+            decorators.get(i).drawLinks(g);
+        }
+    }
+
+    // Top-left corner of the decorator circle in the given slot of the row
+    int decoratorX(int slot) {
+        return getX() + BOX_SIZE + 10 + slot * (Decorator.CIRCLE_SIZE + 5);
+    }
+
+    int decoratorY() {
+        return getY() + (BOX_SIZE - Decorator.CIRCLE_SIZE) / 2;
+    }
+
 
     public void addDecorator(String decoratorType) {
-        decorators.add(new Decorator(decoratorType));
+        addDecorator(new Decorator(decoratorType));
+    }
+
+    // Appends an existing decorator, e.g. when redoing its addition
+    void addDecorator(Decorator decorator) {
+        Rectangle oldBounds = getBounds();
+        decorator.setOwner(this, decorators.size());
+        decorators.add(decorator);
+        if (owner != null) {
+            owner.getGeometry().setDecorators(index, decorators.size(), kindsOf(decorators));
+            owner.boxBoundsChanged(this, oldBounds);
+            owner.fireDecoratorAdded(this, decorator);
+        }
+    }
+
+    // Removes the most recently added decorator, e.g. when undoing its addition
+    Decorator removeLastDecorator() {
+        if (decorators.isEmpty()) {
+            return null;
+        }
+        Rectangle oldBounds = getBounds();
+        Decorator decorator = decorators.remove(decorators.size() - 1);
+        if (owner != null) {
+            owner.getGeometry().setDecorators(index, decorators.size(), kindsOf(decorators));
+            owner.boxBoundsChanged(this, oldBounds);
+            owner.fireDecoratorRemoved(this, decorator);
+        }
+        return decorator;
     }
 
     public boolean contains(int clickX, int clickY) {
+        int x = getX(), y = getY();
         return clickX >= x && clickX <= x + BOX_SIZE &&
                 clickY >= y && clickY <= y + BOX_SIZE;
     }
 
     public void move(int newX, int newY) {
-        this.x = newX;
-        this.y = newY;
+        Rectangle oldBounds = getBounds();
+        if (owner != null) {
+            owner.getGeometry().setPosition(index, newX, newY);
+            owner.boxBoundsChanged(this, oldBounds);
+            owner.fireBoxMoved(this, oldBounds.x, oldBounds.y);
+        } else {
+            this.x = newX;
+            this.y = newY;
+        }
     }
 
     public void changeName(String newName) {
         if (newName != null && !newName.trim().isEmpty()) {
+            String oldName = name;
             this.name = newName.trim();
+            sprite = null;
+            if (owner != null) {
+                owner.fireBoxRenamed(this, oldName);
+            }
         }
     }
 
+    SpriteCache.Sprite getSprite() {
+        return sprite;
+    }
+
+    void setSprite(SpriteCache.Sprite sprite) {
+        this.sprite = sprite;
+    }
+
     public String getName() {
         return name;
     }
 
     public int getX() {
-        return x;
+        return owner != null ? owner.getGeometry().getX(index) : x;
     }
 
     public int getY() {
-        return y;
+        return owner != null ? owner.getGeometry().getY(index) : y;
+    }
+
+    // DecoratorType.bit() of every decorator on the box, or-ed together
+    public long getDecoratorKinds() {
+        return owner != null ? owner.getGeometry().getKinds(index) : kindsOf(decorators);
+    }
+
+    private static long kindsOf(List<Decorator> decorators) {
+        long mask = 0;
+        for (Decorator decorator : decorators) {
+            mask |= decorator.getKind().bit();
+        }
+        return mask;
     }
 
     public List<Decorator> getDecorators() {
         return decorators;
     }
+
+    // Hands the position over to the board's store
+    void attach(Board owner, int index) {
+        owner.getGeometry().put(index, x, y, decorators.size(), kindsOf(decorators));
+        this.owner = owner;
+        this.index = index;
+    }
+
+    // Takes the position back from the board's store
+    void detach() {
+        this.x = getX();
+        this.y = getY();
+        this.owner = null;
+        this.index = -1;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getRealizations() {
+        return realizations;
+    }
+
+    void addRealizations(int delta) {
+        realizations += delta;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        this.x = getX();
+        this.y = getY();
+        out.defaultWriteObject();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// EditJournal.java
+// Append-only log of board edits, replayed on top of a base diagram.
+//
+//   header   magic 'D' 'P' 'V' 'J', version varint, base kind varint, then
+//            the snapshot generation (BASE_SNAPSHOT) or the UTF-8 path of the
+//            diagram file (BASE_FILE) as length + bytes
+//   records  payload length varint, payload, CRC-32 of the payload (4 bytes)
+//
+// A payload is an op code followed by varints. Boxes are referenced by index,
+// decorators by box index and slot, connections by index. A record torn by a
+// crash fails its length or checksum, and replay stops just before it.
+final class EditJournal {
+    static final byte[] MAGIC = {'D', 'P', 'V', 'J'};
+    static final int VERSION = 1;
+
+    static final int BASE_EMPTY = 0;
+    static final int BASE_SNAPSHOT = 1;
+    static final int BASE_FILE = 2;
+
+    static final int ADD_BOX = 1;
+    static final int MOVE_BOX = 2;
+    static final int RENAME_BOX = 3;
+    static final int ADD_DECORATOR = 4;
+    static final int ADD_CONNECTION = 5;
+    static final int REMOVE_CONNECTION = 6;
+    static final int CONNECT_DECORATORS = 7;
+    static final int REMOVE_LAST_BOX = 8;
+    static final int REMOVE_LAST_DECORATOR = 9;
+    static final int INSERT_CONNECTION = 10;
+    static final int DISCONNECT_DECORATORS = 11;
+
+    private EditJournal() {
+    }
+
+    // What a journal is replayed on top of
+    static final class Header {
+        final int baseKind;
+        final long generation;
+        final String basePath;
+        // Offset of the first record
+        final int length;
+
+        Header(int baseKind, long generation, String basePath, int length) {
+            this.baseKind = baseKind;
+            this.generation = generation;
+            this.basePath = basePath;
+            this.length = length;
+        }
+    }
+
+    static byte[] header(int baseKind, long generation, String basePath) {
+        Record r = new Record();
+        r.bytes(MAGIC);
+        r.varint(VERSION);
+        r.varint(baseKind);
+        if (baseKind == BASE_SNAPSHOT) {
+            r.varlong(generation);
+        } else if (baseKind == BASE_FILE) {
+            r.string(basePath);
+        }
+        return r.toArray();
+    }
+
+    static Header readHeader(ByteBuffer in) throws IOException {
+        for (byte b : MAGIC) {
+            if (!in.hasRemaining() || in.get() != b) {
+                throw new IOException("Not an edit journal");
+            }
+        }
+        try {
+            int version = getVarint(in);
+            if (version != VERSION) {
+                throw new IOException("Unsupported journal version " + version);
+            }
+            int kind = getVarint(in);
+            long generation = kind == BASE_SNAPSHOT ? getVarlong(in) : 0;
+            String path = kind == BASE_FILE ? getString(in) : null;
+            if (kind != BASE_EMPTY && kind != BASE_SNAPSHOT && kind != BASE_FILE) {
+                throw new IOException("Corrupt edit journal");
+            }
+            return new Header(kind, generation, path, in.position());
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupt edit journal", ex);
+        }
+    }
+
+    static byte[] addBox(DrawableBox box) {
+        Record r = new Record().varint(ADD_BOX);
+        r.signed(box.getX()).signed(box.getY()).string(box.getName());
+        return r.frame();
+    }
+
+    static byte[] moveBox(DrawableBox box) {
+        return new Record().varint(MOVE_BOX).varint(box.getIndex())
+                .signed(box.getX()).signed(box.getY()).frame();
+    }
+
+    static byte[] renameBox(DrawableBox box) {
+        return new Record().varint(RENAME_BOX).varint(box.getIndex()).string(box.getName()).frame();
+    }
+
+    static byte[] addDecorator(DrawableBox box, Decorator decorator) {
+        return new Record().varint(ADD_DECORATOR).varint(box.getIndex()).string(decorator.getType()).frame();
+    }
+
+    static byte[] removeLastBox() {
+        return new Record().varint(REMOVE_LAST_BOX).frame();
+    }
+
+    static byte[] removeLastDecorator(DrawableBox box) {
+        return new Record().varint(REMOVE_LAST_DECORATOR).varint(box.getIndex()).frame();
+    }
+
+    static byte[] addConnection(Connection conn) {
+        return connection(new Record().varint(ADD_CONNECTION), conn);
+    }
+
+    // A connection put back at its old slot rather than appended
+    static byte[] insertConnection(Connection conn) {
+        return connection(new Record().varint(INSERT_CONNECTION).varint(conn.getIndex()), conn);
+    }
+
+    private static byte[] connection(Record r, Connection conn) {
+        r.varint(DpvFormat.flagsOf(conn));
+        r.ref(conn.getSource());
+        r.ref(conn.getTarget());
+        return r.frame();
+    }
+
+    // The connection still reports the slot it was removed from
+    static byte[] removeConnection(Connection conn) {
+        return new Record().varint(REMOVE_CONNECTION).varint(conn.getIndex()).frame();
+    }
+
+    static byte[] connectDecorators(Decorator first, Decorator second) {
+        return new Record().varint(CONNECT_DECORATORS).ref(first).ref(second).frame();
+    }
+
+    static byte[] disconnectDecorators(Decorator first, Decorator second) {
+        return new Record().varint(DISCONNECT_DECORATORS).ref(first).ref(second).frame();
+    }
+
+    // Applies every intact record after the header to board and returns the
+    // offset just past the last one; anything beyond it is a torn write
+    static int replay(ByteBuffer in, Board board) throws IOException {
+        int end = in.position();
+        CRC32 crc = new CRC32();
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int length;
+            try {
+                length = getVarint(in);
+            } catch (RuntimeException ex) {
+                break;
+            }
+            if (length <= 0 || length > in.remaining() - 4) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            in.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if (in.getInt() != (int) crc.getValue()) {
+                in.position(start);
+                break;
+            }
+            try {
+                apply(ByteBuffer.wrap(payload), board);
+            } catch (RuntimeException ex) {
+                throw new IOException("Journal does not match its base diagram", ex);
+            }
+            end = in.position();
+        }
+        return end;
+    }
+
+    private static void apply(ByteBuffer p, Board board) throws IOException {
+        List<DrawableBox> boxes = board.getBoxes();
+        int op = getVarint(p);
+        switch (op) {
+            case ADD_BOX: {
+                int x = DpvFormat.unzigzag(getVarint(p));
+                int y = DpvFormat.unzigzag(getVarint(p));
+                board.addBox(new DrawableBox(x, y, getString(p)));
+                break;
+            }
+            case MOVE_BOX: {
+                DrawableBox box = boxes.get(getVarint(p));
+                int x = DpvFormat.unzigzag(getVarint(p));
+                int y = DpvFormat.unzigzag(getVarint(p));
+                box.move(x, y);
+                break;
+            }
+            case RENAME_BOX:
+                boxes.get(getVarint(p)).changeName(getString(p));
+                break;
+            case ADD_DECORATOR:
+                boxes.get(getVarint(p)).addDecorator(getString(p));
+                break;
+            case REMOVE_LAST_BOX:
+                board.removeLastBox();
+                break;
+            case REMOVE_LAST_DECORATOR:
+                boxes.get(getVarint(p)).removeLastDecorator();
+                break;
+            case ADD_CONNECTION:
+            case INSERT_CONNECTION: {
+                int index = op == INSERT_CONNECTION ? getVarint(p) : board.getConnections().size();
+                int flags = getVarint(p);
+                Object source = getRef(p, boxes, (flags & DpvFormat.FLAG_SOURCE_DECORATOR) != 0);
+                Object target = getRef(p, boxes, (flags & DpvFormat.FLAG_TARGET_DECORATOR) != 0);
+                board.insertConnection(new Connection(source, target,
+                        (flags & DpvFormat.FLAG_DECORATOR_CONNECTION) != 0, DpvFormat.kindOf(flags)), index);
+                break;
+            }
+            case REMOVE_CONNECTION:
+                board.removeConnection(board.getConnections().get(getVarint(p)));
+                break;
+            case CONNECT_DECORATORS:
+                board.connectDecorators((Decorator) getRef(p, boxes, true), (Decorator) getRef(p, boxes, true));
+                break;
+            case DISCONNECT_DECORATORS:
+                board.disconnectDecorators((Decorator) getRef(p, boxes, true), (Decorator) getRef(p, boxes, true));
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    private static Object getRef(ByteBuffer p, List<DrawableBox> boxes, boolean decorator) {
+        DrawableBox box = boxes.get(getVarint(p));
+        return decorator ? box.getDecorators().get(getVarint(p)) : box;
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        return (int) getVarlong(in);
+    }
+
+    private static long getVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Corrupt edit journal");
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[getVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Small growable payload buffer; records are a few bytes plus a name
+    private static final class Record {
+        private byte[] buf = new byte[32];
+        private int size;
+
+        Record varint(int value) {
+            return varlong(value & 0xFFFFFFFFL);
+        }
+
+        Record varlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+            return this;
+        }
+
+        Record signed(int value) {
+            return varint(DpvFormat.zigzag(value));
+        }
+
+        Record string(String s) {
+            return bytes(s.getBytes(StandardCharsets.UTF_8), true);
+        }
+
+        Record ref(Object end) {
+            if (end instanceof Decorator) {
+                DrawableBox owner = ((Decorator) end).getOwner();
+                return varint(owner.getIndex()).varint(owner.getDecorators().indexOf(end));
+            }
+            return varint(((DrawableBox) end).getIndex());
+        }
+
+        Record bytes(byte[] bytes) {
+            return bytes(bytes, false);
+        }
+
+        private Record bytes(byte[] bytes, boolean withLength) {
+            if (withLength) {
+                varint(bytes.length);
+            }
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        // Length, payload, checksum
+        byte[] frame() {
+            CRC32 crc = new CRC32();
+            crc.update(buf, 0, size);
+            Record framed = new Record();
+            framed.varint(size);
+            framed.bytes(toArray());
+            framed.ensure(4);
+            int value = (int) crc.getValue();
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                framed.buf[framed.size++] = (byte) (value >>> shift);
+            }
+            return framed.toArray();
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// ExportMain.java
+// Headless entry point:
+//
+//   java ExportMain <diagram.dpv> <output-dir | output.zip>
+//   java ExportMain [-j threads] [--zip] [--force] -o <output-root> <diagram.dpv | dir>...
+//
+// The second form is meant to run as a build step. Every diagram given, or
+// found under a directory given, is exported to its own directory (or .zip)
+// under the output root, named after its path without the .dpv extension.
+// Diagrams are exported in parallel, one per thread. Next to each output a
+// .stamp file records a hash of the diagram and CodeGenerator.OUTPUT_VERSION,
+// and outputs whose stamp still matches are skipped unless --force is given.
+//
+// Diagrams are read with DiagramIO.readSnapshot, so no Board is built and AWT
+// is never initialized.
+public class ExportMain {
+    private static final String USAGE = "Usage: java ExportMain <diagram.dpv> <output-dir | output.zip>\n"
+            + "       java ExportMain [-j threads] [--zip] [--force] -o <output-root> <diagram.dpv | dir>...";
+    private static final String EXTENSION = ".dpv";
+    private static final String STAMP_EXTENSION = ".stamp";
+
+    // One diagram of a batch and where it goes
+    private static final class Job {
+        final Path input;
+        final Path output;
+        final Path stamp;
+
+        Job(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+            this.stamp = output.resolveSibling(output.getFileName() + STAMP_EXTENSION);
+        }
+    }
+
+    private static final class Result {
+        // -1 if the output was up to date
+        final int classes;
+        final long nanos;
+
+        Result(int classes, long nanos) {
+            this.classes = classes;
+            this.nanos = nanos;
+        }
+    }
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        System.setProperty("java.awt.headless", "true");
+        if (args.length == 2 && !args[0].startsWith("-")) {
+            exportOne(args[0], args[1]);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean zip = false, force = false;
+        Path root = null;
+        List<Path> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-j":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-o":
+                        root = Paths.get(args[++i]);
+                        break;
+                    case "--zip":
+                        zip = true;
+                        break;
+                    case "--force":
+                        force = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("-")) {
+                            usage();
+                        }
+                        inputs.add(Paths.get(args[i]));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            usage();
+        }
+        if (root == null || inputs.isEmpty() || threads < 1) {
+            usage();
+        }
+
+        List<Job> jobs;
+        try {
+            jobs = collectJobs(inputs, root, zip);
+        } catch (IOException ex) {
+            System.err.println("Export failed: " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.exit(exportAll(jobs, threads, force, start) ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    private static void exportOne(String input, String output) {
+        try {
+            BoardSnapshot snapshot = DiagramIO.loadSnapshot(new File(input));
+            int count = new CodeExporter().export(snapshot, Paths.get(output));
+            System.out.println("Exported " + count + " classes to " + output);
+        } catch (IOException ex) {
+            System.err.println("Export failed: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Expands directories and maps every diagram to its output, refusing two
+    // diagrams that would share one
+    private static List<Job> collectJobs(List<Path> inputs, Path root, boolean zip) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        Map<Path, Path> owners = new HashMap<>();
+        for (Path input : inputs) {
+            Path absolute = input.toAbsolutePath().normalize();
+            List<Path> diagrams;
+            Path base;
+            if (Files.isDirectory(absolute)) {
+                try (Stream<Path> walk = Files.walk(absolute)) {
+                    diagrams = walk.filter(p -> Files.isRegularFile(p) && isDiagram(p))
+                            .sorted().collect(Collectors.toList());
+                }
+                base = absolute;
+            } else if (Files.isRegularFile(absolute)) {
+                diagrams = Collections.singletonList(absolute);
+                base = absolute.getParent();
+            } else {
+                throw new IOException("No such diagram or directory: " + input);
+            }
+            for (Path diagram : diagrams) {
+                String relative = base.relativize(diagram).toString();
+                String name = isDiagram(diagram) ? relative.substring(0, relative.length() - EXTENSION.length()) : relative;
+                Path output = root.resolve(zip ? name + ".zip" : name).normalize();
+                // Reported as given on the command line
+                Path shown = diagram.equals(absolute) ? input : input.resolve(relative);
+                Path other = owners.put(output, shown);
+                if (other != null) {
+                    throw new IOException(other + " and " + shown + " would both export to " + output);
+                }
+                jobs.add(new Job(shown, output));
+            }
+        }
+        return jobs;
+    }
+
+    private static boolean isDiagram(Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+
+    // Runs every job and reports as each finishes, in input order. Returns
+    // false if any failed.
+    private static boolean exportAll(List<Job> jobs, int threads, boolean force, long start) {
+        threads = Math.min(threads, Math.max(1, jobs.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> results = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            results.add(pool.submit(() -> export(job, force)));
+        }
+        pool.shutdown();
+
+        int generated = 0, unchanged = 0, failed = 0;
+        long classes = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            try {
+                Result result = results.get(i).get();
+                if (result.classes < 0) {
+                    unchanged++;
+                    System.out.println(job.input + ": unchanged");
+                } else {
+                    generated++;
+                    classes += result.classes;
+                    System.out.println(String.format(Locale.ROOT, "%s: %d classes to %s in %.1f ms",
+                            job.input, result.classes, job.output, result.nanos / 1e6));
+                }
+            } catch (ExecutionException ex) {
+                failed++;
+                Throwable cause = ex.getCause();
+                System.err.println(job.input + ": export failed: "
+                        + (cause instanceof IOException ? cause.getMessage() : cause.toString()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                return false;
+            }
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%d diagrams: %d exported (%d classes), %d unchanged, %d failed in %.1f ms on %d threads",
+                jobs.size(), generated, classes, unchanged, failed, (System.nanoTime() - start) / 1e6, threads));
+        return failed == 0;
+    }
+
+    private static Result export(Job job, boolean force) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes = Files.readAllBytes(job.input);
+        String hash = hash(bytes);
+        if (!force && Files.exists(job.output) && Files.isRegularFile(job.stamp)
+                && hash.equals(new String(Files.readAllBytes(job.stamp), StandardCharsets.US_ASCII).trim())) {
+            return new Result(-1, System.nanoTime() - start);
+        }
+
+        // A stamp left from an earlier run must not vouch for a half-written output
+        Files.deleteIfExists(job.stamp);
+        BoardSnapshot snapshot = DiagramIO.readSnapshot(ByteBuffer.wrap(bytes));
+        Path parent = job.output.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        int count = new CodeExporter().export(snapshot, job.output);
+        if (Files.isDirectory(job.output)) {
+            deleteStaleSources(job.output, snapshot);
+        }
+        Files.write(job.stamp, hash.getBytes(StandardCharsets.US_ASCII));
+        return new Result(count, System.nanoTime() - start);
+    }
+
+    // Removes classes an earlier version of the diagram had and this one has not
+    private static void deleteStaleSources(Path dir, BoardSnapshot snapshot) throws IOException {
+        Set<String> current = new HashSet<>();
+        for (ClassSpec spec : snapshot.getClasses()) {
+            current.add(spec.getFileName());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.java")) {
+            for (Path file : files) {
+                if (!current.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(0, CodeGenerator.OUTPUT_VERSION));
+        digest.update(bytes);
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
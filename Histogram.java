@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+// Histogram.java
+// Latency histogram in the style of HdrHistogram: log-linear buckets, so every
+// recorded value is kept to within 1/SUB_BUCKET_HALF (about 1.6%) of itself
+// from a nanosecond up to MAX_VALUE, in a fixed array of counts. Recording is
+// constant time and allocates nothing, so it can sit on the paint path.
+//
+// Values are nanoseconds by convention; larger ones are clamped to MAX_VALUE.
+// All methods synchronize, since generation records from a worker thread while
+// the EDT reads for the overlay.
+class Histogram {
+    // 2^7 sub-buckets: the top half of each bucket spans one power of two
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // About 18 minutes in nanoseconds
+    static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int COUNTS_LENGTH = indexOf(MAX_VALUE) + 1;
+
+    private final long[] counts = new long[COUNTS_LENGTH];
+    private long count;
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    synchronized void record(long value) {
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts[indexOf(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    synchronized long getMax() {
+        return max;
+    }
+
+    synchronized double getMean() {
+        return count == 0 ? 0 : total / (double) count;
+    }
+
+    // Smallest value that at least percentile percent of the recorded values do
+    // not exceed, as the upper end of its bucket but never above the maximum
+    synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < COUNTS_LENGTH; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(max, highestValueAt(i));
+            }
+        }
+        return max;
+    }
+
+    // Values below SUB_BUCKET_COUNT are counted exactly. Above, a value whose
+    // highest bit is at position SUB_BUCKET_BITS - 1 + shift keeps its top
+    // SUB_BUCKET_BITS - 1 bits below that one.
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -1,8 +1,11 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
 import java.util.HashMap;
-import java.util.Map;
 
 public class Main extends JFrame {
 	private Board board;
@@ -10,6 +13,7 @@ public class Main extends JFrame {
 	private JTabbedPane tabbedPane;
 	private JTextArea codeArea;
 	private CodeViewer codeViewer;
+	private Autosave autosave;
 
 
 	public Main() {
@@ -33,6 +37,65 @@ public class Main extends JFrame {
 
 		add(tabbedPane);
 		createMenuBar();
+		Metrics.registerMBean();
+
+		if (Autosave.ENABLED) {
+			startAutosave();
+		}
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				exit();
+			}
+		});
+	}
+
+	private void startAutosave() {
+		try {
+			autosave = Autosave.open(Autosave.defaultDirectory());
+		} catch (IOException ex) {
+			JOptionPane.showMessageDialog(this,
+					"Autosave is off: " + ex.getMessage(),
+					"Autosave",
+					JOptionPane.WARNING_MESSAGE);
+		}
+		if (autosave == null) {
+			// Unusable, or every slot is held by another running instance
+			return;
+		}
+		autosave.setFailureHandler(ex -> SwingUtilities.invokeLater(() ->
+				JOptionPane.showMessageDialog(this,
+						"Autosave stopped: " + ex.getMessage() + "\nSave your work to keep it.",
+						"Autosave",
+						JOptionPane.WARNING_MESSAGE)));
+		if (autosave.hasRecoverableSession()) {
+			int answer = JOptionPane.showConfirmDialog(this,
+					"The last session ended with unsaved changes. Recover them?",
+					"Recover Diagram",
+					JOptionPane.YES_NO_OPTION);
+			if (answer == JOptionPane.YES_OPTION) {
+				try {
+					board = autosave.recover();
+					boardPanel.setBoard(board);
+					autosave.resume(board);
+					return;
+				} catch (IOException ex) {
+					JOptionPane.showMessageDialog(this,
+							"Error recovering diagram: " + ex.getMessage(),
+							"Error",
+							JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		}
+		autosave.track(board, null);
+	}
+
+	private void exit() {
+		// A deliberate exit leaves nothing to recover
+		if (autosave != null) {
+			autosave.discard();
+		}
+		System.exit(0);
 	}
 
 	private void createMenuBar() {
@@ -50,7 +113,7 @@ public class Main extends JFrame {
 		openItem.addActionListener(e -> loadDiagram());
 		saveItem.addActionListener(e -> saveDiagram());
 		saveAsItem.addActionListener(e -> saveAsDiagram());
-		exitItem.addActionListener(e -> System.exit(0));
+		exitItem.addActionListener(e -> exit());
 
 		fileMenu.add(newItem);
 		fileMenu.add(openItem);
@@ -59,6 +122,38 @@ public class Main extends JFrame {
 		fileMenu.addSeparator();
 		fileMenu.add(exitItem);
 
+		// Edit Menu
+		JMenu editMenu = new JMenu("Edit");
+		JMenuItem undoItem = new JMenuItem("Undo");
+		JMenuItem redoItem = new JMenuItem("Redo");
+		int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+		undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut));
+		redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut));
+		undoItem.addActionListener(e -> boardPanel.undo());
+		redoItem.addActionListener(e -> boardPanel.redo());
+		editMenu.add(undoItem);
+		editMenu.add(redoItem);
+
+		// View Menu
+		JMenu viewMenu = new JMenu("View");
+		JMenuItem zoomInItem = new JMenuItem("Zoom In");
+		JMenuItem zoomOutItem = new JMenuItem("Zoom Out");
+		JMenuItem actualSizeItem = new JMenuItem("Actual Size");
+		zoomInItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, shortcut));
+		zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, shortcut));
+		actualSizeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, shortcut));
+		zoomInItem.addActionListener(e -> boardPanel.zoomIn());
+		zoomOutItem.addActionListener(e -> boardPanel.zoomOut());
+		actualSizeItem.addActionListener(e -> boardPanel.resetView());
+		viewMenu.add(zoomInItem);
+		viewMenu.add(zoomOutItem);
+		viewMenu.add(actualSizeItem);
+		viewMenu.addSeparator();
+		JCheckBoxMenuItem metricsItem = new JCheckBoxMenuItem("Metrics Overlay");
+		metricsItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_M, shortcut | InputEvent.SHIFT_DOWN_MASK));
+		metricsItem.addActionListener(e -> boardPanel.setMetricsOverlayVisible(metricsItem.isSelected()));
+		viewMenu.add(metricsItem);
+
 		// Connector Menu
 		JMenu connectorMenu = new JMenu("Connectors");
 		String[] connectorTypes = {
@@ -82,16 +177,25 @@ public class Main extends JFrame {
 		JMenu toolsMenu = new JMenu("Tools");
 		JMenuItem generateCodeItem = new JMenuItem("Generate Code");
 		generateCodeItem.addActionListener(e -> {
-			CodeGenerator generator = new CodeGenerator(board);
-			Map<String, String> generatedFiles = generator.generateProjectCode();
-			codeViewer.updateGeneratedCode(generatedFiles);  // Use stored reference
+			boardPanel.generateCodeNow();  // Result is posted to the code viewer when ready
 			tabbedPane.setSelectedComponent(codeViewer);  // Switch to code tab
 		});
 
+		JCheckBoxMenuItem parallelItem = new JCheckBoxMenuItem("Parallel Generation");
+		parallelItem.addActionListener(e -> boardPanel.setParallelCodeGeneration(parallelItem.isSelected()));
+
+		JMenuItem exportMetricsItem = new JMenuItem("Export Metrics...");
+		exportMetricsItem.addActionListener(e -> exportMetrics());
+
 		toolsMenu.add(generateCodeItem);
+		toolsMenu.add(parallelItem);
+		toolsMenu.addSeparator();
+		toolsMenu.add(exportMetricsItem);
 		menuBar.add(toolsMenu);
 
 		menuBar.add(fileMenu);
+		menuBar.add(editMenu);
+		menuBar.add(viewMenu);
 		menuBar.add(connectorMenu);
 		setJMenuBar(menuBar);
 	}
@@ -105,6 +209,9 @@ public class Main extends JFrame {
 		if (confirm == JOptionPane.YES_OPTION) {
 			board = new Board();
 			boardPanel.setBoard(board);  // Add this method to BoardPanel
+			if (autosave != null) {
+				autosave.track(board, null);
+			}
 			codeViewer.updateGeneratedCode(new HashMap<>());
 			repaint();
 		}
@@ -124,9 +231,14 @@ public class Main extends JFrame {
 		int result = fileChooser.showOpenDialog(this);
 		if (result == JFileChooser.APPROVE_OPTION) {
 			File selectedFile = fileChooser.getSelectedFile();
-			try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(selectedFile))) {
-				board = (Board) ois.readObject();
+			try {
+				long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+				board = DiagramIO.open(selectedFile);
+				Metrics.LOAD.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
 				boardPanel.setBoard(board);
+				if (autosave != null) {
+					autosave.track(board, selectedFile);
+				}
 				repaint();
 				JOptionPane.showMessageDialog(this, "Diagram loaded successfully!");
 			} catch (Exception ex) {
@@ -171,8 +283,14 @@ public class Main extends JFrame {
 	}
 
 	private void saveToFile(File file) {
-		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
-			oos.writeObject(board);
+		try {
+			long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+			DiagramIO.save(board, file);
+			Metrics.SAVE.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
+			// The saved file is the new base; earlier journal entries are no longer needed
+			if (autosave != null) {
+				autosave.track(board, file);
+			}
 			JOptionPane.showMessageDialog(this, "Diagram saved successfully!");
 		} catch (IOException ex) {
 			JOptionPane.showMessageDialog(this,
@@ -182,6 +300,23 @@ public class Main extends JFrame {
 		}
 	}
 
+	// Writes every metric as JSON, e.g. to compare a session against an earlier one
+	private void exportMetrics() {
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setSelectedFile(new File("dpv-metrics.json"));
+		if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		try {
+			Metrics.writeJson(fileChooser.getSelectedFile());
+		} catch (IOException ex) {
+			JOptionPane.showMessageDialog(this,
+					"Error exporting metrics: " + ex.getMessage(),
+					"Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
 	public static void main(String[] args) {
 		SwingUtilities.invokeLater(() -> {
 			Main frame = new Main();
@@ -0,0 +1,496 @@
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// MappedDiagram.java
+// Random-access view of an indexed (version 2) .dpv file, normally memory-mapped.
+// Geometry, spatial grids and adjacency are read straight from the buffer, so a
+// Board backed by it only creates the boxes and connections it actually touches.
+// Every table, record and reference is checked once when the file is opened,
+// so a corrupt file fails there with an IOException; the reads after that,
+// which happen while painting or paging in, need no checks of their own.
+class MappedDiagram {
+    private static final int HEADER_INTS = 13;
+    private static final int BOX_ENTRY = 20;
+    private static final int CONNECTION_ENTRY = 12;
+
+    private final ByteBuffer buf;
+    private final int boxCount, decoratorCount, connectionCount, stringCount;
+    private final int stringsOff, boxesOff, connectionsOff, decoratorConnectionsOff;
+    private final int outStartOff, outIdsOff, inStartOff, inIdsOff, linksOff;
+    private final Grid boxCells, connectionCells;
+    // Decoded on first use; decorator types repeat across many boxes
+    private final String[] strings;
+
+    public MappedDiagram(ByteBuffer buffer) throws IOException {
+        buf = buffer.slice();
+        if (!isIndexed(buf) || buf.limit() < headerSize()) {
+            throw new IOException("Not an indexed diagram file");
+        }
+        int p = DpvFormat.MAGIC.length + 1;
+        boxCount = count(p);
+        decoratorCount = count(p + 4);
+        connectionCount = count(p + 8);
+        stringCount = count(p + 12);
+        stringsOff = offset(p + 16);
+        boxesOff = offset(p + 20);
+        offset(p + 24); // records, located through each box entry
+        int boxCellsOff = offset(p + 28);
+        connectionsOff = offset(p + 32);
+        decoratorConnectionsOff = offset(p + 36);
+        outStartOff = offset(p + 40);
+        int connectionCellsOff = offset(p + 44);
+        linksOff = offset(p + 48);
+
+        outIdsOff = outStartOff + 4 * (boxCount + 1);
+        inStartOff = outIdsOff + 4 * checkRuns(outStartOff, boxCount, connectionCount);
+        inIdsOff = inStartOff + 4 * (boxCount + 1);
+        checkRuns(inStartOff, boxCount, connectionCount);
+        checkRuns(linksOff, decoratorCount, decoratorCount);
+        checkStrings();
+        checkBoxes();
+        checkConnections();
+        boxCells = new Grid(boxCellsOff, boxCount);
+        connectionCells = new Grid(connectionCellsOff, connectionCount);
+        strings = new String[stringCount];
+    }
+
+    // True if the buffer starts with the magic bytes and the indexed version
+    static boolean isIndexed(ByteBuffer buffer) {
+        return DpvReader.isDpv(buffer) && buffer.remaining() > DpvFormat.MAGIC.length
+                && buffer.get(buffer.position() + DpvFormat.MAGIC.length) == DpvFormat.INDEXED_VERSION;
+    }
+
+    static int headerSize() {
+        return DpvFormat.MAGIC.length + 1 + 4 * HEADER_INTS;
+    }
+
+    public int getBoxCount() {
+        return boxCount;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    // Builds an unattached box with its decorators; links are resolved by the caller
+    public DrawableBox readBox(int index) {
+        int entry = boxesOff + BOX_ENTRY * index;
+        ByteBuffer record = buf.duplicate();
+        record.position(buf.getInt(entry + 16));
+        DrawableBox box = new DrawableBox(buf.getInt(entry), buf.getInt(entry + 4), string(getVarint(record)));
+        int decorators = getVarint(record);
+        for (int k = 0; k < decorators; k++) {
+            box.addDecorator(string(getVarint(record)));
+        }
+        return box;
+    }
+
+    // What CodeGenerator.snapshot() returns for a Board over this file, read
+    // straight from the records and adjacency without creating any boxes
+    public BoardSnapshot readSnapshot() {
+        List<ClassSpec> classes = new ArrayList<>(boxCount);
+        SpatialGrid.IntBag targets = new SpatialGrid.IntBag();
+        SpatialGrid.IntBag kinds = new SpatialGrid.IntBag();
+        for (int i = 0; i < boxCount; i++) {
+            readOutgoingTargets(i, targets, kinds);
+            List<ConnectionKind> targetKinds = new ArrayList<>(targets.size());
+            List<String> targetNames = new ArrayList<>(targets.size());
+            Set<String> interfaceTargets = new HashSet<>();
+            for (int k = 0; k < targets.size(); k++) {
+                targetKinds.add(ConnectionKind.fromOrdinal(kinds.get(k)));
+                targetNames.add(getBoxName(targets.get(k)));
+                if (isRealized(targets.get(k))) {
+                    interfaceTargets.add(getBoxName(targets.get(k)));
+                }
+            }
+            classes.add(CodeGenerator.specOf(getBoxName(i), readDecoratorTypes(i), targetKinds, targetNames,
+                    isRealized(i), interfaceTargets));
+        }
+        return new BoardSnapshot(classes);
+    }
+
+    public String getBoxName(int index) {
+        return string(getVarint(record(index)));
+    }
+
+    public List<String> readDecoratorTypes(int index) {
+        ByteBuffer record = record(index);
+        getVarint(record); // name
+        int decorators = getVarint(record);
+        List<String> types = new ArrayList<>(decorators);
+        for (int k = 0; k < decorators; k++) {
+            types.add(string(getVarint(record)));
+        }
+        return types;
+    }
+
+    // Whether a stored realization from another box ends on the box, which
+    // CodeGenerator then generates as an interface
+    public boolean isRealized(int box) {
+        int to = buf.getInt(inStartOff + 4 * (box + 1));
+        for (int k = buf.getInt(inStartOff + 4 * box); k < to; k++) {
+            int flags = getConnectionFlags(buf.getInt(inIdsOff + 4 * k));
+            if ((flags & DpvFormat.FLAG_SOURCE_DECORATOR) == 0
+                    && DpvFormat.kindOf(flags) == ConnectionKind.REALIZATION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Boxes that the box's stored connections lead to, in creation order, and
+    // the ConnectionKind ordinal of each connection into kinds; connections
+    // ending on a decorator are left out
+    public void readOutgoingTargets(int box, SpatialGrid.IntBag out, SpatialGrid.IntBag kinds) {
+        out.clear();
+        kinds.clear();
+        int to = buf.getInt(outStartOff + 4 * (box + 1));
+        for (int k = buf.getInt(outStartOff + 4 * box); k < to; k++) {
+            int connection = buf.getInt(outIdsOff + 4 * k);
+            int flags = getConnectionFlags(connection);
+            if ((flags & DpvFormat.FLAG_TARGET_DECORATOR) == 0) {
+                out.add(getConnectionTarget(connection));
+                kinds.add((flags & DpvFormat.KIND_MASK) >>> DpvFormat.KIND_SHIFT);
+            }
+        }
+    }
+
+    private ByteBuffer record(int index) {
+        ByteBuffer record = buf.duplicate();
+        record.position(buf.getInt(boxesOff + BOX_ENTRY * index + 16));
+        return record;
+    }
+
+    public int getDecoratorBase(int box) {
+        return buf.getInt(boxesOff + BOX_ENTRY * box + 12);
+    }
+
+    // Box owning the decorator with the given global index
+    public int findDecoratorOwner(int decorator) {
+        int lo = 0, hi = boxCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (getDecoratorBase(mid) <= decorator) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // Stored position of a box, valid until the box is loaded and moved
+    public int getBoxX(int index) {
+        return buf.getInt(boxesOff + BOX_ENTRY * index);
+    }
+
+    public int getBoxY(int index) {
+        return buf.getInt(boxesOff + BOX_ENTRY * index + 4);
+    }
+
+    public boolean boxIntersects(int index, Rectangle area) {
+        int entry = boxesOff + BOX_ENTRY * index;
+        int x = buf.getInt(entry), y = buf.getInt(entry + 4), width = buf.getInt(entry + 8);
+        return area.intersects(x, y, width, DrawableBox.BOX_SIZE);
+    }
+
+    public boolean boxContains(int index, int px, int py) {
+        int entry = boxesOff + BOX_ENTRY * index;
+        int x = buf.getInt(entry), y = buf.getInt(entry + 4), width = buf.getInt(entry + 8);
+        return px >= x && px <= x + width && py >= y && py <= y + DrawableBox.BOX_SIZE;
+    }
+
+    public void queryBoxes(Rectangle area, SpatialGrid.IntBag out) {
+        boxCells.query(area, out);
+    }
+
+    public void boxIdsAt(int x, int y, SpatialGrid.IntBag out) {
+        boxCells.query(new Rectangle(x, y, 0, 0), out);
+    }
+
+    public int getConnectionFlags(int index) {
+        return buf.getInt(connectionsOff + CONNECTION_ENTRY * index);
+    }
+
+    public int getConnectionSource(int index) {
+        return buf.getInt(connectionsOff + CONNECTION_ENTRY * index + 4);
+    }
+
+    public int getConnectionTarget(int index) {
+        return buf.getInt(connectionsOff + CONNECTION_ENTRY * index + 8);
+    }
+
+    // Whether the stored centre line of a box-to-box connection meets area.
+    // Decorator endpoints are not modelled here and always report a possible hit.
+    public boolean connectionIntersects(int index, Rectangle area) {
+        if ((getConnectionFlags(index) & (DpvFormat.FLAG_SOURCE_DECORATOR | DpvFormat.FLAG_TARGET_DECORATOR)) != 0) {
+            return true;
+        }
+        int source = boxesOff + BOX_ENTRY * getConnectionSource(index);
+        int target = boxesOff + BOX_ENTRY * getConnectionTarget(index);
+        int half = DrawableBox.BOX_SIZE / 2;
+        return area.intersectsLine(buf.getInt(source) + half, buf.getInt(source + 4) + half,
+                buf.getInt(target) + half, buf.getInt(target + 4) + half);
+    }
+
+    public void queryConnections(Rectangle area, SpatialGrid.IntBag out) {
+        connectionCells.query(area, out);
+    }
+
+    // Connections with a decorator at either end, which Board keeps in memory
+    public void readDecoratorConnections(SpatialGrid.IntBag out) {
+        readRun(decoratorConnectionsOff + 4, buf.getInt(decoratorConnectionsOff), out);
+    }
+
+    // Connections whose source is the box, in creation order
+    public void readOutgoing(int box, SpatialGrid.IntBag out) {
+        readSlice(outStartOff, outIdsOff, box, out);
+    }
+
+    // Connections whose target is the box, in creation order
+    public void readIncoming(int box, SpatialGrid.IntBag out) {
+        readSlice(inStartOff, inIdsOff, box, out);
+    }
+
+    // Global indices of the decorators linked to the given one
+    public void readLinks(int decorator, SpatialGrid.IntBag out) {
+        readSlice(linksOff, linksOff + 4 * (decoratorCount + 1), decorator, out);
+    }
+
+    private void readSlice(int startsOff, int idsOff, int i, SpatialGrid.IntBag out) {
+        int from = buf.getInt(startsOff + 4 * i);
+        int to = buf.getInt(startsOff + 4 * (i + 1));
+        readRun(idsOff + 4 * from, to - from, out);
+    }
+
+    private void readRun(int off, int n, SpatialGrid.IntBag out) {
+        out.clear();
+        for (int k = 0; k < n; k++) {
+            out.add(buf.getInt(off + 4 * k));
+        }
+    }
+
+    private String string(int index) {
+        String s = strings[index];
+        if (s == null) {
+            int start = buf.getInt(stringsOff + 4 * index);
+            int length = buf.getInt(stringsOff + 4 * (index + 1)) - start;
+            if (buf.hasArray()) {
+                s = new String(buf.array(), buf.arrayOffset() + start, length, StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[length];
+                ByteBuffer view = buf.duplicate();
+                view.position(start);
+                view.get(bytes);
+                s = new String(bytes, StandardCharsets.UTF_8);
+            }
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Corrupt diagram file");
+    }
+
+    private int count(int pos) throws IOException {
+        int value = buf.getInt(pos);
+        if (value < 0 || value > buf.limit()) {
+            throw new IOException("Corrupt diagram file");
+        }
+        return value;
+    }
+
+    private int offset(int pos) throws IOException {
+        int value = buf.getInt(pos);
+        check(value);
+        return value;
+    }
+
+    private void check(long end) throws IOException {
+        if (end < headerSize() || end > buf.limit()) {
+            throw new IOException("Corrupt diagram file");
+        }
+    }
+
+    // Checks n + 1 run starts at startsOff and the ids after them, which must
+    // be below bound; returns the number of ids
+    private int checkRuns(int startsOff, int n, int bound) throws IOException {
+        check(startsOff + 4L * (n + 1));
+        int previous = 0;
+        for (int i = 0; i <= n; i++) {
+            int start = buf.getInt(startsOff + 4 * i);
+            if (start < previous || (i == 0 && start != 0)) {
+                throw new IOException("Corrupt diagram file");
+            }
+            previous = start;
+        }
+        int idsOff = startsOff + 4 * (n + 1);
+        check(idsOff + 4L * previous);
+        for (int k = 0; k < previous; k++) {
+            checkIndex(buf.getInt(idsOff + 4 * k), bound);
+        }
+        return previous;
+    }
+
+    private void checkStrings() throws IOException {
+        check(stringsOff + 4L * (stringCount + 1));
+        int previous = 0;
+        for (int i = 0; i <= stringCount; i++) {
+            int start = buf.getInt(stringsOff + 4 * i);
+            if (start < previous) {
+                throw new IOException("Corrupt diagram file");
+            }
+            previous = start;
+        }
+        if (previous > buf.limit()) {
+            throw new IOException("Corrupt diagram file");
+        }
+    }
+
+    // Decorator bases must number decorators box by box, as findDecoratorOwner assumes
+    private void checkBoxes() throws IOException {
+        check(boxesOff + (long) BOX_ENTRY * boxCount);
+        int decorators = 0;
+        ByteBuffer record = buf.duplicate();
+        try {
+            for (int i = 0; i < boxCount; i++) {
+                int entry = boxesOff + BOX_ENTRY * i;
+                int recordOff = buf.getInt(entry + 16);
+                if (buf.getInt(entry + 12) != decorators || recordOff < 0 || recordOff >= buf.limit()) {
+                    throw new IOException("Corrupt diagram file");
+                }
+                record.position(recordOff);
+                checkIndex(getVarint(record), stringCount);
+                int count = getVarint(record);
+                checkIndex(count, decoratorCount - decorators + 1);
+                for (int k = 0; k < count; k++) {
+                    checkIndex(getVarint(record), stringCount);
+                }
+                decorators += count;
+            }
+        } catch (BufferUnderflowException | IllegalStateException ex) {
+            throw new IOException("Corrupt diagram file", ex);
+        }
+        if (decorators != decoratorCount) {
+            throw new IOException("Corrupt diagram file");
+        }
+    }
+
+    private void checkConnections() throws IOException {
+        check(connectionsOff + (long) CONNECTION_ENTRY * connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            int flags = getConnectionFlags(i);
+            checkIndex((flags & DpvFormat.KIND_MASK) >>> DpvFormat.KIND_SHIFT, ConnectionKind.values().length);
+            checkIndex(getConnectionSource(i),
+                    (flags & DpvFormat.FLAG_SOURCE_DECORATOR) != 0 ? decoratorCount : boxCount);
+            checkIndex(getConnectionTarget(i),
+                    (flags & DpvFormat.FLAG_TARGET_DECORATOR) != 0 ? decoratorCount : boxCount);
+        }
+        check(decoratorConnectionsOff + 4L);
+        int count = count(decoratorConnectionsOff);
+        check(decoratorConnectionsOff + 4L + 4L * count);
+        for (int k = 0; k < count; k++) {
+            checkIndex(buf.getInt(decoratorConnectionsOff + 4 + 4 * k), connectionCount);
+        }
+    }
+
+    private static void checkIndex(int index, int bound) throws IOException {
+        if (index < 0 || index >= bound) {
+            throw new IOException("Corrupt diagram file");
+        }
+    }
+
+    // Serialized SpatialGrid: cell size, cell count, ascending cell keys, then the
+    // ids of each cell as one run per key
+    private class Grid {
+        private final int cellSize, cellCount, keysOff, startsOff, idsOff;
+
+        // Ids in the grid must be below bound
+        Grid(int off, int bound) throws IOException {
+            check(off + 8L);
+            cellSize = buf.getInt(off);
+            cellCount = count(off + 4);
+            keysOff = off + 8;
+            check(keysOff + 8L * cellCount);
+            startsOff = keysOff + 8 * cellCount;
+            idsOff = startsOff + 4 * (cellCount + 1);
+            if (cellSize <= 0) {
+                throw new IOException("Corrupt diagram file");
+            }
+            // Ascending keys, which find's binary search relies on
+            for (int i = 1; i < cellCount; i++) {
+                if (buf.getLong(keysOff + 8 * i) <= buf.getLong(keysOff + 8 * (i - 1))) {
+                    throw new IOException("Corrupt diagram file");
+                }
+            }
+            checkRuns(startsOff, cellCount, bound);
+        }
+
+        // Same contract as SpatialGrid.query: ascending ids without duplicates
+        void query(Rectangle area, SpatialGrid.IntBag out) {
+            out.clear();
+            int x0 = Math.floorDiv(area.x, cellSize), x1 = Math.floorDiv(area.x + area.width, cellSize);
+            int y0 = Math.floorDiv(area.y, cellSize), y1 = Math.floorDiv(area.y + area.height, cellSize);
+            long spanned = (long) (x1 - x0 + 1) * (y1 - y0 + 1);
+            if (spanned > cellCount) {
+                for (int i = 0; i < cellCount; i++) {
+                    long k = buf.getLong(keysOff + 8 * i);
+                    int cx = (int) (k >> 32), cy = (int) k;
+                    if (cx >= x0 && cx <= x1 && cy >= y0 && cy <= y1) {
+                        addCell(i, out);
+                    }
+                }
+            } else {
+                for (int cy = y0; cy <= y1; cy++) {
+                    for (int cx = x0; cx <= x1; cx++) {
+                        int i = find(SpatialGrid.key(cx, cy));
+                        if (i >= 0) {
+                            addCell(i, out);
+                        }
+                    }
+                }
+            }
+            out.sortUnique();
+        }
+
+        private int find(long key) {
+            int lo = 0, hi = cellCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long k = buf.getLong(keysOff + 8 * mid);
+                if (k < key) {
+                    lo = mid + 1;
+                } else if (k > key) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private void addCell(int i, SpatialGrid.IntBag out) {
+            int from = buf.getInt(startsOff + 4 * i);
+            int to = buf.getInt(startsOff + 4 * (i + 1));
+            for (int k = from; k < to; k++) {
+                out.add(buf.getInt(idsOff + 4 * k));
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.management.ObjectName;
+
+// Metrics.java
+// Process-wide latency and allocation metrics for the interactive paths:
+// painting (and, separately, painting while a box is dragged), mouse handling,
+// hit-testing, code generation, the code viewer, validation and diagram I/O. Callers time themselves and report to a Metric:
+//
+//   long start = System.nanoTime(), allocated = Metrics.allocatedBytes();
+//   ...
+//   Metrics.FRAME.record(System.nanoTime() - start, Metrics.allocatedBytes() - allocated);
+//
+// Recording allocates nothing and costs well under a microsecond, so it is
+// always on. The numbers are shown by View > Metrics Overlay, exported over JMX
+// as dpv:type=Metrics and written as JSON by Tools > Export Metrics.
+final class Metrics {
+    static final Metric FRAME = new Metric("frame", "BoardPanel.paintComponent");
+    // Frames painted while a box is being dragged; also counted in FRAME
+    static final Metric DRAG_FRAME = new Metric("dragFrame", "BoardPanel.paintComponent, dragging");
+    static final Metric INPUT = new Metric("input", "BoardPanel mouse handlers");
+    static final Metric HIT_TEST = new Metric("hitTest", "Board.getObjectAt");
+    static final Metric REGENERATION = new Metric("regeneration", "CodeGenerator.generateProjectCode");
+    static final Metric CODE_VIEW = new Metric("codeView", "CodeViewer.updateGeneratedCode");
+    static final Metric VALIDATION = new Metric("validation", "DiagramValidator, per edit");
+    static final Metric LOAD = new Metric("load", "Main.loadDiagram");
+    static final Metric SAVE = new Metric("save", "Main.saveToFile");
+    static final List<Metric> ALL = Collections.unmodifiableList(Arrays.asList(
+            FRAME, DRAG_FRAME, INPUT, HIT_TEST, REGENERATION, CODE_VIEW, VALIDATION, LOAD, SAVE));
+
+    static final String MBEAN_NAME = "dpv:type=Metrics";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_TRACKING = allocationTracking();
+
+    private Metrics() {
+    }
+
+    // One measured operation: a latency histogram plus what the operations allocated
+    static final class Metric {
+        private final String name;
+        private final String source;
+        private final Histogram latency = new Histogram();
+        // Stay zero when the JVM cannot track allocation
+        private long allocatedBytes;
+        private long allocationSamples;
+
+        Metric(String name, String source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getSource() {
+            return source;
+        }
+
+        Histogram getLatency() {
+            return latency;
+        }
+
+        // allocated is ignored when the JVM cannot track allocation
+        void record(long nanos, long allocated) {
+            latency.record(nanos);
+            if (ALLOCATION_TRACKING) {
+                synchronized (this) {
+                    allocatedBytes += allocated;
+                    allocationSamples++;
+                }
+            }
+        }
+
+        // Mean bytes allocated per operation, or -1 if never measured
+        synchronized double getAllocatedPerOp() {
+            return allocationSamples == 0 ? -1 : allocatedBytes / (double) allocationSamples;
+        }
+
+        synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        void reset() {
+            latency.reset();
+            synchronized (this) {
+                allocatedBytes = 0;
+                allocationSamples = 0;
+            }
+        }
+    }
+
+    // Bytes allocated so far by the calling thread, or -1 when the JVM cannot
+    // tell. Work the thread hands to others, e.g. parallel generation, is not
+    // counted.
+    static long allocatedBytes() {
+        if (!ALLOCATION_TRACKING) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void reset() {
+        for (Metric metric : ALL) {
+            metric.reset();
+        }
+    }
+
+    // One line per metric for the overlay
+    static String summary(Metric metric) {
+        Histogram h = metric.getLatency();
+        String line = String.format(Locale.ROOT, "%-12s %7d  p50 %8.2f  p99 %8.2f  max %8.2f ms",
+                metric.getName(), h.getCount(), millis(h.getValueAtPercentile(50)),
+                millis(h.getValueAtPercentile(99)), millis(h.getMax()));
+        double perOp = metric.getAllocatedPerOp();
+        return perOp < 0 ? line : line + String.format(Locale.ROOT, "  %9.1f KB/op", perOp / 1024);
+    }
+
+    static String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"uptimeMillis\": ").append(ManagementFactory.getRuntimeMXBean().getUptime()).append(",\n");
+        json.append("  \"allocationTracking\": ").append(ALLOCATION_TRACKING).append(",\n");
+        json.append("  \"metrics\": {");
+        for (int i = 0; i < ALL.size(); i++) {
+            Metric metric = ALL.get(i);
+            Histogram h = metric.getLatency();
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(metric.getName()).append("\": {");
+            json.append("\"source\": \"").append(metric.getSource()).append('"');
+            json.append(", \"count\": ").append(h.getCount());
+            appendMillis(json, "min", h.getMin());
+            json.append(String.format(Locale.ROOT, ", \"meanMillis\": %.3f", h.getMean() / 1e6));
+            for (double p : PERCENTILES) {
+                String label = p == Math.rint(p) ? Integer.toString((int) p) : Double.toString(p).replace(".", "");
+                appendMillis(json, "p" + label, h.getValueAtPercentile(p));
+            }
+            appendMillis(json, "max", h.getMax());
+            double perOp = metric.getAllocatedPerOp();
+            if (perOp >= 0) {
+                json.append(String.format(Locale.ROOT, ", \"allocatedBytesPerOp\": %.1f", perOp));
+                json.append(", \"allocatedBytes\": ").append(metric.getAllocatedBytes());
+            }
+            json.append('}');
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    static void writeJson(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            out.write(toJson());
+        }
+    }
+
+    // Makes the metrics visible to JConsole and other JMX clients. Does nothing
+    // if already registered; a platform without JMX only loses the export.
+    static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+            }
+        } catch (Exception | LinkageError ex) {
+            System.err.println("Metrics not exported over JMX: " + ex);
+        }
+    }
+
+    private static void appendMillis(StringBuilder json, String key, long nanos) {
+        json.append(String.format(Locale.ROOT, ", \"%sMillis\": %.3f", key, millis(nanos)));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static boolean allocationTracking() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+    }
+
+    private static final class Bean implements MetricsMXBean {
+        @Override
+        public String getJson() {
+            return toJson();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+
+        @Override
+        public void dump(String path) throws IOException {
+            writeJson(new File(path));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+// MetricsMXBean.java
+// JMX view of Metrics, registered as dpv:type=Metrics. JMX needs the interface
+// to be public.
+public interface MetricsMXBean {
+    // Every metric as the JSON that Tools > Export Metrics writes
+    String getJson();
+
+    void reset();
+
+    // Writes getJson() to a file on the application's host
+    void dump(String path) throws IOException;
+}
@@ -0,0 +1,59 @@
+import javax.swing.*;
+import java.awt.*;
+
+// MetricsOverlay.java
+// Box in the corner of the board listing every metric, refreshed once a second
+// while shown. It is opaque, so refreshing it repaints only the box and not
+// the board underneath, and its own painting never shows up as a board frame.
+class MetricsOverlay extends JComponent {
+    private static final long serialVersionUID = 1L;
+    private static final int REFRESH_MILLIS = 1000;
+    private static final int PADDING = 6;
+    private static final Color BACKGROUND = new Color(32, 32, 32);
+
+    private final Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> refresh());
+    private String[] lines = new String[0];
+
+    public MetricsOverlay() {
+        setOpaque(true);
+        setFont(new Font("Monospaced", Font.PLAIN, 11));
+        setVisible(false);
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        super.setVisible(visible);
+        if (visible) {
+            refresh();
+            refreshTimer.start();
+        } else {
+            refreshTimer.stop();
+        }
+    }
+
+    private void refresh() {
+        lines = new String[Metrics.ALL.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = Metrics.summary(Metrics.ALL.get(i));
+        }
+        FontMetrics fm = getFontMetrics(getFont());
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        setSize(width + 2 * PADDING, lines.length * fm.getHeight() + 2 * PADDING);
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, getWidth(), getHeight());
+        g.setColor(Color.WHITE);
+        g.setFont(getFont());
+        FontMetrics fm = g.getFontMetrics();
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], PADDING, PADDING + i * fm.getHeight() + fm.getAscent());
+        }
+    }
+}
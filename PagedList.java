@@ -0,0 +1,134 @@
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+// PagedList.java
+// List whose leading elements may still live in a backing file. Empty slots are
+// filled by the loader the first time they are read; appended elements are
+// always in memory. Iterating the list therefore pages in everything.
+class PagedList<E> extends AbstractList<E> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    interface Loader<E> {
+        // Builds element index; may call store() early to break reference cycles
+        E load(int index);
+    }
+
+    private Object[] items;
+    private int size;
+    private int loaded;
+    private transient Loader<E> loader;
+
+    public PagedList() {
+        items = new Object[10];
+    }
+
+    public PagedList(Collection<? extends E> elements) {
+        items = elements.toArray();
+        size = items.length;
+        loaded = size;
+    }
+
+    public PagedList(int size, Loader<E> loader) {
+        this.items = new Object[Math.max(size, 10)];
+        this.size = size;
+        this.loader = loader;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        rangeCheck(index);
+        Object e = items[index];
+        if (e == null) {
+            e = loader.load(index);
+            if (items[index] == null) {
+                store(index, (E) e);
+            }
+        }
+        return (E) e;
+    }
+
+    // Element at index if it is already in memory, otherwise null
+    @SuppressWarnings("unchecked")
+    E peek(int index) {
+        rangeCheck(index);
+        return (E) items[index];
+    }
+
+    boolean isLoaded(int index) {
+        return peek(index) != null;
+    }
+
+    boolean isFullyLoaded() {
+        return loaded == size;
+    }
+
+    int loadedCount() {
+        return loaded;
+    }
+
+    void store(int index, E element) {
+        if (items[index] == null) {
+            loaded++;
+        }
+        items[index] = element;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size + (size >> 1) + 1);
+        }
+        items[size++] = element;
+        loaded++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        // Slots from index on shift up, so they can no longer be found by file position
+        for (int i = index; i < size; i++) {
+            get(i);
+        }
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size + (size >> 1) + 1);
+        }
+        System.arraycopy(items, index, items, index + 1, size - index);
+        items[index] = element;
+        size++;
+        loaded++;
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E removed = get(index);
+        // Slots after index shift down, so they can no longer be found by file position
+        for (int i = index + 1; i < size; i++) {
+            get(i);
+        }
+        System.arraycopy(items, index + 1, items, index, size - index - 1);
+        items[--size] = null;
+        loaded--;
+        modCount++;
+        return removed;
+    }
+
+    private void rangeCheck(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import java.awt.BasicStroke;
+import java.awt.Stroke;
+
+// PaintResources.java
+// Strokes shared by every paint call. They are immutable, so building them once
+// keeps element painting free of per-frame allocation.
+final class PaintResources {
+    // Box and decorator outlines
+    static final Stroke OUTLINE = new BasicStroke(1);
+    // Connection lines
+    static final Stroke LINE = new BasicStroke(2);
+    // One device pixel wide whatever the zoom, for zoomed-out overviews
+    static final Stroke HAIRLINE = new BasicStroke(0);
+    // Decorator links and decorator connections
+    static final Stroke DASHED = new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0,
+            new float[]{10}, 0);
+
+    private PaintResources() {
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.lang.model.SourceVersion;
+
+// PatternTemplate.java
+// Code a decorator type contributes to its class: an optional interface,
+// a field block and constructor statements (once per class) and a method
+// block (once per decorator). Fragments may contain {name} for the class
+// name; they are split once here so emitting is a plain run of appends.
+// The names the field block declares are kept too, so that CodeGenerator can
+// keep the fields it adds for connections from clashing with them, and a
+// hash of the fragments, which CodeCache keys the code of their classes by.
+final class PatternTemplate {
+    static final String NAME_PLACEHOLDER = "{name}";
+    private static final String[] EMPTY = new String[0];
+
+    private final String interfaceName;
+    private final String[] field;
+    private final String[] constructor;
+    private final String[] methods;
+    private final List<String> fieldNames;
+    private final long fingerprint;
+
+    public PatternTemplate(String interfaceName, String field, String constructor, String methods) {
+        this.interfaceName = interfaceName;
+        this.field = compile(field);
+        this.constructor = compile(constructor);
+        this.methods = compile(methods);
+        this.fieldNames = declaredNames(field);
+        this.fingerprint = CodeCache.fingerprint(interfaceName, field, constructor, methods);
+    }
+
+    // Interface the class implements, or null
+    public String getInterfaceName() {
+        return interfaceName;
+    }
+
+    // Names of the fields the field block declares, in order
+    List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    // Same for templates with the same fragments
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    void emitField(StringBuilder out, String className) {
+        emit(field, out, className);
+    }
+
+    void emitConstructor(StringBuilder out, String className) {
+        emit(constructor, out, className);
+    }
+
+    void emitMethods(StringBuilder out, String className) {
+        emit(methods, out, className);
+    }
+
+    private static String[] compile(String fragment) {
+        if (fragment == null || fragment.isEmpty()) {
+            return EMPTY;
+        }
+        return fragment.split(Pattern.quote(NAME_PLACEHOLDER), -1);
+    }
+
+    // Each declaration names the identifiers that end its declarators, the
+    // parts between commas outside brackets, before any "=": "int a, b = 1;"
+    // declares a and b. Words that are not identifiers are skipped.
+    private static List<String> declaredNames(String fragment) {
+        if (fragment == null) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (String statement : fragment.split(";")) {
+            int depth = 0, from = 0;
+            for (int i = 0; i <= statement.length(); i++) {
+                char c = i < statement.length() ? statement.charAt(i) : ',';
+                if (c == '(' || c == '<' || c == '[' || c == '{') {
+                    depth++;
+                } else if (c == ')' || c == '>' || c == ']' || c == '}') {
+                    depth--;
+                } else if (c == ',' && depth == 0) {
+                    addDeclaredName(statement.substring(from, i), names);
+                    from = i + 1;
+                }
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    private static void addDeclaredName(String declarator, List<String> names) {
+        int init = declarator.indexOf('=');
+        String[] words = (init < 0 ? declarator : declarator.substring(0, init)).trim().split("\\s+");
+        String name = words[words.length - 1];
+        if (SourceVersion.isIdentifier(name) && !SourceVersion.isKeyword(name)) {
+            names.add(name);
+        }
+    }
+
+    private static void emit(String[] parts, StringBuilder out, String className) {
+        if (parts.length == 0) {
+            return;
+        }
+        out.append(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            out.append(className).append(parts[i]);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// PatternTemplates.java
+// Registry of the templates CodeGenerator emits for each decorator type.
+// Built-in types can be overridden and new types added with register();
+// lookups are safe from generation threads.
+final class PatternTemplates {
+    // Section order for built-in types; keeps the historical layout of generated classes
+    static final DecoratorType[] INTERFACE_ORDER = {
+            DecoratorType.OBSERVER, DecoratorType.CHAIN_MEMBER, DecoratorType.STRATEGY,
+            DecoratorType.OBSERVABLE, DecoratorType.PRODUCT, DecoratorType.FACTORY,
+            DecoratorType.DECORATOR, DecoratorType.SINGLETON, DecoratorType.DECORATION,
+            DecoratorType.DECORATABLE
+    };
+    static final DecoratorType[] FIELD_ORDER = {
+            DecoratorType.OBSERVABLE, DecoratorType.SINGLETON, DecoratorType.FACTORY,
+            DecoratorType.CHAIN_MEMBER, DecoratorType.STRATEGY, DecoratorType.DECORATOR,
+            DecoratorType.OBSERVER, DecoratorType.PRODUCT, DecoratorType.DECORATION,
+            DecoratorType.DECORATABLE
+    };
+
+    private static volatile PatternTemplate[] builtins = createBuiltins();
+    private static final ConcurrentMap<String, PatternTemplate> custom =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private PatternTemplates() {
+    }
+
+    // Registers the code emitted for decorators of the given type (case-insensitive)
+    public static synchronized void register(String decoratorType, PatternTemplate template) {
+        DecoratorType kind = DecoratorType.of(decoratorType);
+        if (kind == DecoratorType.CUSTOM) {
+            custom.put(decoratorType, template);
+        } else {
+            PatternTemplate[] copy = builtins.clone();
+            copy[kind.ordinal()] = template;
+            builtins = copy;
+        }
+    }
+
+    // Template for a built-in type; never null
+    static PatternTemplate builtin(DecoratorType kind) {
+        return builtins[kind.ordinal()];
+    }
+
+    // Template for one decorator, or null for an unregistered custom type
+    static PatternTemplate forDecorator(DecoratorType kind, String type) {
+        return kind == DecoratorType.CUSTOM ? custom.get(type) : builtins[kind.ordinal()];
+    }
+
+    private static PatternTemplate[] createBuiltins() {
+        Map<DecoratorType, PatternTemplate> t = new EnumMap<>(DecoratorType.class);
+        t.put(DecoratorType.OBSERVER, new PatternTemplate("PropertyChangeListener", null, null,
+                "    @Override\n" +
+                "    public void propertyChange(PropertyChangeEvent evt) {\n" +
+                "        // Handle property change\n" +
+                "    }\n\n"));
+        t.put(DecoratorType.OBSERVABLE, new PatternTemplate(null,
+                "    private PropertyChangeSupport support = new PropertyChangeSupport(this);\n",
+                "        support = new PropertyChangeSupport(this);\n",
+                "    public void addListener(PropertyChangeListener listener) {\n" +
+                "        support.addPropertyChangeListener(listener);\n" +
+                "    }\n\n" +
+                "    public void removeListener(PropertyChangeListener listener) {\n" +
+                "        support.removePropertyChangeListener(listener);\n" +
+                "    }\n\n" +
+                "    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {\n" +
+                "        support.firePropertyChange(propertyName, oldValue, newValue);\n" +
+                "    }\n\n"));
+        t.put(DecoratorType.SINGLETON, new PatternTemplate(null,
+                "    private static {name} instance;\n",
+                null,
+                "    public static {name} getInstance() {\n" +
+                "        if (instance == null) {\n" +
+                "            instance = new {name}();\n" +
+                "        }\n" +
+                "        return instance;\n" +
+                "    }\n\n"));
+        t.put(DecoratorType.FACTORY, new PatternTemplate(null,
+                "    protected Product product;\n",
+                null,
+                "    public Product createProduct() {\n" +
+                "        // Create product\n" +
+                "        return product;\n" +
+                "    }\n\n"));
+        t.put(DecoratorType.CHAIN_MEMBER, new PatternTemplate("ChainHandler",
+                "    private ChainHandler nextHandler;\n",
+                null,
+                "    public void setNext(ChainHandler handler) {\n" +
+                "        this.nextHandler = handler;\n" +
+                "    }\n\n" +
+                "    public void handleRequest(String request) {\n" +
+                "        if (nextHandler != null) {\n" +
+                "            nextHandler.handleRequest(request);\n" +
+                "        }\n" +
+                "    }\n\n"));
+        t.put(DecoratorType.STRATEGY, new PatternTemplate("Strategy",
+                "    private Strategy strategy;\n",
+                null,
+                "    public void setStrategy(Strategy strategy) {\n" +
+                "        this.strategy = strategy;\n" +
+                "    }\n\n" +
+                "    public void executeStrategy() {\n" +
+                "        if (strategy != null) {\n" +
+                "            strategy.execute();\n" +
+                "        }\n" +
+                "    }\n\n"));
+        t.put(DecoratorType.DECORATOR, new PatternTemplate(null,
+                "    private Component component;\n",
+                null,
+                "    public void operation() {\n" +
+                "        if (component != null) {\n" +
+                "            component.operation();\n" +
+                "        }\n" +
+                "        // Add decorator behavior\n" +
+                "    }\n\n"));
+
+        PatternTemplate none = new PatternTemplate(null, null, null, null);
+        PatternTemplate[] result = new PatternTemplate[DecoratorType.values().length];
+        for (DecoratorType kind : DecoratorType.values()) {
+            result[kind.ordinal()] = t.getOrDefault(kind, none);
+        }
+        return result;
+    }
+}
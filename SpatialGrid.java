@@ -0,0 +1,410 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+// SpatialGrid.java
+// Uniform grid over integer ids (box or connection indices). Each id is
+// registered in every cell its bounds overlap, so a point lookup only has to
+// look at the handful of ids stored in a single cell.
+class SpatialGrid {
+    static final int DEFAULT_CELL_SIZE = 256;
+
+    private final int cellSize;
+    private final CellMap cells = new CellMap();
+
+    public SpatialGrid() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public SpatialGrid(int cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void insert(int id, Rectangle bounds) {
+        int x0 = cellOf(bounds.x), x1 = cellOf(bounds.x + bounds.width);
+        int y0 = cellOf(bounds.y), y1 = cellOf(bounds.y + bounds.height);
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                cells.getOrCreate(key(cx, cy)).add(id);
+            }
+        }
+    }
+
+    public void remove(int id, Rectangle bounds) {
+        int x0 = cellOf(bounds.x), x1 = cellOf(bounds.x + bounds.width);
+        int y0 = cellOf(bounds.y), y1 = cellOf(bounds.y + bounds.height);
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                long k = key(cx, cy);
+                IntBag bag = cells.get(k);
+                if (bag != null && bag.remove(id) && bag.size() == 0) {
+                    cells.remove(k);
+                }
+            }
+        }
+    }
+
+    // Registers id only in the cells a line segment passes through. Long diagonal
+    // connections would otherwise occupy every cell of their bounding box.
+    public void insertSegment(int id, int x0, int y0, int x1, int y1) {
+        forEachSegmentCell(x0, y0, x1, y1,
+                (cx, cy) -> cells.getOrCreate(key(cx, cy)).add(id));
+    }
+
+    public void removeSegment(int id, int x0, int y0, int x1, int y1) {
+        forEachSegmentCell(x0, y0, x1, y1, (cx, cy) -> {
+            long k = key(cx, cy);
+            IntBag bag = cells.get(k);
+            if (bag != null && bag.remove(id) && bag.size() == 0) {
+                cells.remove(k);
+            }
+        });
+    }
+
+    private interface CellVisitor {
+        void visit(int cx, int cy);
+    }
+
+    // Grid traversal (Amanatides & Woo). A segment crossing exactly through a cell
+    // corner also visits both side cells, so no touched cell is skipped.
+    private void forEachSegmentCell(int x0, int y0, int x1, int y1, CellVisitor visitor) {
+        int cx = cellOf(x0), cy = cellOf(y0);
+        int ex = cellOf(x1), ey = cellOf(y1);
+        int stepX = Integer.signum(x1 - x0), stepY = Integer.signum(y1 - y0);
+        double dx = x1 - x0, dy = y1 - y0;
+        double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY
+                : ((stepX > 0 ? (cx + 1) * (double) cellSize : cx * (double) cellSize) - x0) / dx;
+        double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY
+                : ((stepY > 0 ? (cy + 1) * (double) cellSize : cy * (double) cellSize) - y0) / dy;
+        double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : cellSize / Math.abs(dx);
+        double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : cellSize / Math.abs(dy);
+
+        visitor.visit(cx, cy);
+        int remaining = Math.abs(ex - cx) + Math.abs(ey - cy);
+        while (remaining > 0) {
+            if (tMaxX < tMaxY) {
+                cx += stepX;
+                tMaxX += tDeltaX;
+                remaining--;
+            } else if (tMaxY < tMaxX) {
+                cy += stepY;
+                tMaxY += tDeltaY;
+                remaining--;
+            } else {
+                visitor.visit(cx + stepX, cy);
+                visitor.visit(cx, cy + stepY);
+                cx += stepX;
+                cy += stepY;
+                tMaxX += tDeltaX;
+                tMaxY += tDeltaY;
+                remaining -= 2;
+            }
+            visitor.visit(cx, cy);
+        }
+    }
+
+    public void update(int id, Rectangle oldBounds, Rectangle newBounds) {
+        if (oldBounds != null) {
+            remove(id, oldBounds);
+        }
+        insert(id, newBounds);
+    }
+
+    public void clear() {
+        cells.clear();
+    }
+
+    // Fills out with every id registered in a cell overlapping area, in
+    // ascending order without duplicates. Callers still check exact bounds.
+    public void query(Rectangle area, IntBag out) {
+        out.clear();
+        int x0 = cellOf(area.x), x1 = cellOf(area.x + area.width);
+        int y0 = cellOf(area.y), y1 = cellOf(area.y + area.height);
+        if (cellsSpanned(area) > cells.size()) {
+            // Area is larger than the populated part of the grid; walk occupied cells instead
+            for (int i = 0; i < cells.capacity(); i++) {
+                IntBag bag = cells.valueAt(i);
+                if (bag == null) {
+                    continue;
+                }
+                long k = cells.keyAt(i);
+                int cx = (int) (k >> 32), cy = (int) k;
+                if (cx >= x0 && cx <= x1 && cy >= y0 && cy <= y1) {
+                    out.addAll(bag);
+                }
+            }
+        } else {
+            for (int cy = y0; cy <= y1; cy++) {
+                for (int cx = x0; cx <= x1; cx++) {
+                    IntBag bag = cells.get(key(cx, cy));
+                    if (bag != null) {
+                        out.addAll(bag);
+                    }
+                }
+            }
+        }
+        out.sortUnique();
+    }
+
+    // Ids registered in the cell containing (x, y); may be empty, never null.
+    public IntBag idsAt(int x, int y) {
+        IntBag bag = cells.get(key(cellOf(x), cellOf(y)));
+        return bag != null ? bag : IntBag.EMPTY;
+    }
+
+    // Number of cells, occupied or not, that area overlaps
+    long cellsSpanned(Rectangle area) {
+        long columns = cellOf(area.x + area.width) - (long) cellOf(area.x) + 1;
+        long rows = cellOf(area.y + area.height) - (long) cellOf(area.y) + 1;
+        return columns * rows;
+    }
+
+    int occupiedCells() {
+        return cells.size();
+    }
+
+    int getCellSize() {
+        return cellSize;
+    }
+
+    // Occupied cell keys in ascending order, e.g. for writing the grid to a file
+    long[] sortedKeys() {
+        long[] keys = new long[cells.size()];
+        int n = 0;
+        for (int i = 0; i < cells.capacity(); i++) {
+            if (cells.valueAt(i) != null) {
+                keys[n++] = cells.keyAt(i);
+            }
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    IntBag cell(long key) {
+        IntBag bag = cells.get(key);
+        return bag != null ? bag : IntBag.EMPTY;
+    }
+
+    private int cellOf(int coord) {
+        return Math.floorDiv(coord, cellSize);
+    }
+
+    static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    // Open-addressing map from packed cell key to bag. A HashMap<Long, ...> would
+    // hash a packed (cx, cy) key to cx ^ cy, piling whole diagonals into one bucket.
+    static class CellMap {
+        private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+        private long[] keys = new long[64];
+        private IntBag[] values = new IntBag[64];
+        private int shift = 64 - 6;
+        private int size;
+
+        IntBag get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        IntBag getOrCreate(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            IntBag bag = new IntBag();
+            keys[i] = key;
+            values[i] = bag;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return bag;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == null) {
+                return;
+            }
+            values[i] = null;
+            size--;
+            // Shift later entries of the probe run back so lookups do not stop early
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                boolean between = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+                if (!between) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        // Raw slot access for full scans; empty slots have a null value
+        int capacity() {
+            return keys.length;
+        }
+
+        long keyAt(int i) {
+            return keys[i];
+        }
+
+        IntBag valueAt(int i) {
+            return values[i];
+        }
+
+        private int slot(long key) {
+            return (int) ((key * GOLDEN) >>> shift);
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            IntBag[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new IntBag[oldKeys.length * 2];
+            shift--;
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = slot(oldKeys[j]);
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    // Minimal growable int list so cells do not box their ids.
+    static class IntBag {
+        static final IntBag EMPTY = new IntBag();
+        // Below this Arrays.sort runs an insertion sort, which needs no buffer
+        private static final int RADIX_MIN_SIZE = 44;
+
+        private int[] items = new int[4];
+        private int size;
+        // Radix sort buffers, kept so a bag reused for queries sorts without allocating
+        private int[] scratch;
+        private int[] counts;
+
+        void add(int value) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = value;
+        }
+
+        boolean remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == value) {
+                    items[i] = items[--size];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addAll(IntBag other) {
+            if (size + other.size > items.length) {
+                items = Arrays.copyOf(items, Math.max(items.length * 2, size + other.size));
+            }
+            System.arraycopy(other.items, 0, items, size, other.size);
+            size += other.size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void sortUnique() {
+            if (size < RADIX_MIN_SIZE) {
+                Arrays.sort(items, 0, size);
+            } else {
+                radixSort();
+            }
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || items[n - 1] != items[i]) {
+                    items[n++] = items[i];
+                }
+            }
+            size = n;
+        }
+
+        // LSD radix sort on bytes. Ids are non-negative, so only the bytes up to
+        // the highest set bit need a pass. Arrays.sort would allocate a merge
+        // buffer here, as a query result is a concatenation of sorted runs.
+        private void radixSort() {
+            int max = 0;
+            for (int i = 0; i < size; i++) {
+                max |= items[i];
+            }
+            if (scratch == null || scratch.length < items.length) {
+                scratch = new int[items.length];
+            }
+            if (counts == null) {
+                counts = new int[256];
+            }
+            for (int shift = 0; shift < 32 && (max >>> shift) != 0; shift += 8) {
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < size; i++) {
+                    counts[(items[i] >>> shift) & 0xFF]++;
+                }
+                for (int d = 0, start = 0; d < 256; d++) {
+                    int c = counts[d];
+                    counts[d] = start;
+                    start += c;
+                }
+                for (int i = 0; i < size; i++) {
+                    int v = items[i];
+                    scratch[counts[(v >>> shift) & 0xFF]++] = v;
+                }
+                int[] sorted = scratch;
+                scratch = items;
+                items = sorted;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return items[i];
+        }
+
+        // Removes and returns the last value added; the bag must not be empty
+        int pop() {
+            return items[--size];
+        }
+
+        // Only for a bag in ascending order, e.g. after sortUnique()
+        boolean contains(int value) {
+            return Arrays.binarySearch(items, 0, size, value) >= 0;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// SpriteCache.java
+// Pre-rendered, antialiased box tiles: the filled square, its outline and the
+// name, keyed by name and zoom level. Painting a box with a tile is one opaque
+// image copy plus its decorator circles, which DecoratorStyle already keeps as
+// sprites per type.
+//
+// Tiles are opaque because Java2D's software loops blend translucent images
+// pixel by pixel; a translucent sprite of the whole decorator row costs more
+// than drawing the shapes. So the decorator row stays out of the tile, and
+// where a long name sticks out of the square only those ends are kept as small
+// translucent strips.
+//
+// Bounded by total image bytes, least recently used first out. Each box keeps a
+// reference to its tile, so a hit needs no key; renaming a box drops that
+// reference and the old tile ages out. A box only gets a tile once it is
+// painted in two consecutive frames, e.g. while scrolling or when the layer is
+// repainted in place. Jumping around a board too large for the budget would
+// otherwise render and evict a tile for nearly every box of every frame.
+class SpriteCache {
+    static final long DEFAULT_MAX_BYTES = Long.getLong("dpv.sprites.maxBytes", 16L * 1024 * 1024);
+    // The outline is drawn one pixel past the fill on the right and bottom
+    private static final int TILE_SIZE = DrawableBox.BOX_SIZE + 1;
+
+    static final class Sprite {
+        final String key;
+        final SpriteCache cache;
+        final double zoom;
+        final long bytes;
+        BufferedImage image;
+        // Ends of the name outside the tile, or null; sizes are in user space
+        BufferedImage left, right;
+        final int leftWidth, rightWidth, stripY, stripHeight;
+
+        Sprite(String key, SpriteCache cache, double zoom, BufferedImage image, BufferedImage left,
+               BufferedImage right, int leftWidth, int rightWidth, int stripY, int stripHeight) {
+            this.key = key;
+            this.cache = cache;
+            this.zoom = zoom;
+            this.image = image;
+            this.left = left;
+            this.right = right;
+            this.leftWidth = leftWidth;
+            this.rightWidth = rightWidth;
+            this.stripY = stripY;
+            this.stripHeight = stripHeight;
+            this.bytes = bytesOf(image) + bytesOf(left) + bytesOf(right);
+        }
+
+        private static long bytesOf(BufferedImage image) {
+            return image == null ? 0 : 4L * image.getWidth() * image.getHeight();
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Sprite> sprites = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    // Everything a tile's pixels depend on besides its key; a change empties the cache
+    private Font font;
+    private GraphicsConfiguration config;
+    // Scale of the last font render context seen, or 0 if it also rotates or shears
+    private FontRenderContext context;
+    private double zoom;
+    // Markers left on boxes painted without a tile in this and the previous frame
+    private Sprite seenThisFrame, seenLastFrame;
+
+    public SpriteCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public SpriteCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    void nextFrame() {
+        seenLastFrame = seenThisFrame;
+        seenThisFrame = null;
+    }
+
+    // Paints box without its decorator links, which depend on other boxes
+    void paint(Graphics2D g, DrawableBox box) {
+        int x = box.getX(), y = box.getY();
+        Sprite sprite = validate(g) ? tileOf(g, box) : null;
+        if (sprite == null) {
+            box.drawSquare(g, x, y);
+            box.drawName(g, x, y);
+        } else if (zoom == 1) {
+            g.drawImage(sprite.image, x, y, null);
+            if (sprite.left != null) {
+                g.drawImage(sprite.left, x - sprite.leftWidth, y + sprite.stripY, null);
+            }
+            if (sprite.right != null) {
+                g.drawImage(sprite.right, x + TILE_SIZE, y + sprite.stripY, null);
+            }
+        } else {
+            g.drawImage(sprite.image, x, y, TILE_SIZE, TILE_SIZE, null);
+            if (sprite.left != null) {
+                g.drawImage(sprite.left, x - sprite.leftWidth, y + sprite.stripY,
+                        sprite.leftWidth, sprite.stripHeight, null);
+            }
+            if (sprite.right != null) {
+                g.drawImage(sprite.right, x + TILE_SIZE, y + sprite.stripY,
+                        sprite.rightWidth, sprite.stripHeight, null);
+            }
+        }
+        box.drawDecorators(g, x, y);
+    }
+
+    public int size() {
+        return sprites.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void clear() {
+        for (Sprite sprite : sprites.values()) {
+            release(sprite);
+        }
+        sprites.clear();
+        bytes = 0;
+    }
+
+    // Checks g against what the cached tiles were rendered for. Returns false
+    // if g rotates or shears, which tiles cannot reproduce.
+    private boolean validate(Graphics2D g) {
+        // The render context is reused until the transform's scale changes, and
+        // unlike g.getTransform() reading it allocates nothing
+        FontRenderContext frc = g.getFontRenderContext();
+        if (frc != context) {
+            AffineTransform t = frc.getTransform();
+            boolean scaleOnly = (t.getType() & ~(AffineTransform.TYPE_UNIFORM_SCALE | AffineTransform.TYPE_TRANSLATION)) == 0;
+            context = frc;
+            zoom = scaleOnly && t.getScaleX() > 0 ? t.getScaleX() : 0;
+        }
+        if (zoom == 0) {
+            return false;
+        }
+        // Compared by value: a panel may hand out equal fonts in new instances
+        if (!g.getFont().equals(font) || g.getDeviceConfiguration() != config) {
+            clear();
+            font = g.getFont();
+            config = g.getDeviceConfiguration();
+        }
+        return true;
+    }
+
+    // The box's tile, or null if it has not been painted often enough to get one
+    private Sprite tileOf(Graphics2D g, DrawableBox box) {
+        Sprite sprite = box.getSprite();
+        if (sprite != null && sprite.cache == this && sprite.image != null && sprite.zoom == zoom) {
+            // Refresh its LRU position; the key is the tile's own, so nothing is allocated
+            sprites.get(sprite.key);
+            return sprite;
+        }
+        if (sprite != null && (sprite == seenThisFrame || sprite == seenLastFrame)) {
+            sprite = lookup(g, box);
+        } else {
+            if (seenThisFrame == null) {
+                seenThisFrame = new Sprite(null, this, 0, null, null, null, 0, 0, 0, 0);
+            }
+            sprite = seenThisFrame;
+        }
+        box.setSprite(sprite);
+        return sprite.image != null ? sprite : null;
+    }
+
+    private Sprite lookup(Graphics2D g, DrawableBox box) {
+        String key = box.getName() + "\0@" + zoom;
+        Sprite sprite = sprites.get(key);
+        if (sprite == null) {
+            sprite = render(g.getFontMetrics(), box, key);
+            sprites.put(key, sprite);
+            bytes += sprite.bytes;
+            evict();
+        }
+        return sprite;
+    }
+
+    private Sprite render(FontMetrics fm, DrawableBox box, String key) {
+        BufferedImage image = image(TILE_SIZE, TILE_SIZE, Transparency.OPAQUE);
+        draw(image, box, 0, 0, true);
+
+        // Where drawName puts the text, plus a pixel of antialiasing on each side
+        int width = fm.stringWidth(box.getName());
+        int nameX = (DrawableBox.BOX_SIZE - width) / 2 - 1;
+        int leftWidth = Math.max(0, -nameX);
+        int rightWidth = Math.max(0, nameX + width + 2 - TILE_SIZE);
+        int stripY = Math.max(0, (DrawableBox.BOX_SIZE + fm.getAscent()) / 2 - fm.getAscent() - 1);
+        int stripHeight = Math.min(TILE_SIZE - stripY, fm.getAscent() + fm.getDescent() + 2);
+        BufferedImage left = null, right = null;
+        if (leftWidth > 0) {
+            left = image(leftWidth, stripHeight, Transparency.TRANSLUCENT);
+            draw(left, box, leftWidth, -stripY, false);
+        }
+        if (rightWidth > 0) {
+            right = image(rightWidth, stripHeight, Transparency.TRANSLUCENT);
+            draw(right, box, -TILE_SIZE, -stripY, false);
+        }
+        return new Sprite(key, this, zoom, image, left, right, leftWidth, rightWidth, stripY, stripHeight);
+    }
+
+    // An image covering width x height in user space at the current zoom
+    private BufferedImage image(int width, int height, int transparency) {
+        return config.createCompatibleImage((int) Math.ceil(width * zoom), (int) Math.ceil(height * zoom),
+                transparency);
+    }
+
+    // Draws the box with its top-left corner at (x, y) of image, the square only if asked
+    private void draw(BufferedImage image, DrawableBox box, int x, int y, boolean square) {
+        Graphics2D ig = image.createGraphics();
+        try {
+            ig.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            ig.setFont(font);
+            if (zoom != 1) {
+                ig.scale(zoom, zoom);
+            }
+            if (square) {
+                box.drawSquare(ig, x, y);
+            }
+            box.drawName(ig, x, y);
+        } finally {
+            ig.dispose();
+        }
+    }
+
+    private static void release(Sprite sprite) {
+        sprite.image = null;
+        sprite.left = null;
+        sprite.right = null;
+    }
+
+    private void evict() {
+        Iterator<Sprite> eldest = sprites.values().iterator();
+        while (bytes > maxBytes && sprites.size() > 1) {
+            Sprite sprite = eldest.next();
+            eldest.remove();
+            bytes -= sprite.bytes;
+            release(sprite);
+        }
+    }
+}
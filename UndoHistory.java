@@ -0,0 +1,389 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// UndoHistory.java
+// Undo/redo for one board. Edits are recorded from BoardListener events as small
+// deltas (a moved box with its old and new position, a renamed box with both
+// names, ...), never as board snapshots. Undo and redo replay a step's deltas
+// through the Board API, so the spatial indexes, the autosave journal and the
+// incremental code cache each see an ordinary edit and update only what it
+// touched.
+//
+// Steps are undone strictly last-in first-out, so an added box or decorator
+// being undone is always the last one on the board or box.
+class UndoHistory {
+    static final int DEFAULT_MAX_STEPS = Integer.getInteger("dpv.undo.maxSteps", 1000);
+    static final long DEFAULT_MAX_BYTES = Long.getLong("dpv.undo.maxBytes", 4L * 1024 * 1024);
+
+    private final Board board;
+    private final int maxSteps;
+    private final long maxBytes;
+    private final ArrayDeque<Step> undoSteps = new ArrayDeque<>();
+    private final ArrayDeque<Step> redoSteps = new ArrayDeque<>();
+    // Estimated footprint of both stacks
+    private long bytes;
+    // Compound step being recorded, e.g. during a drag
+    private Step open;
+    private int openDepth;
+    private boolean replaying;
+
+    private final BoardListener recorder = new BoardListener() {
+        @Override
+        public void boxAdded(DrawableBox box) {
+            record(new AddBox(box, true));
+        }
+
+        @Override
+        public void boxRemoved(DrawableBox box) {
+            record(new AddBox(box, false));
+        }
+
+        @Override
+        public void boxMoved(DrawableBox box, int oldX, int oldY) {
+            record(new Move(box, oldX, oldY, box.getX(), box.getY()));
+        }
+
+        @Override
+        public void boxRenamed(DrawableBox box, String oldName) {
+            record(new Rename(box, oldName, box.getName()));
+        }
+
+        @Override
+        public void decoratorAdded(DrawableBox box, Decorator decorator) {
+            record(new AddDecorator(box, decorator, true));
+        }
+
+        @Override
+        public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+            record(new AddDecorator(box, decorator, false));
+        }
+
+        @Override
+        public void connectionAdded(Connection connection) {
+            record(new AddConnection(connection, connection.getIndex(), true));
+        }
+
+        @Override
+        public void connectionRemoved(Connection connection) {
+            record(new AddConnection(connection, connection.getIndex(), false));
+        }
+
+        @Override
+        public void decoratorsConnected(Decorator first, Decorator second) {
+            record(new Link(first, second, true));
+        }
+
+        @Override
+        public void decoratorsDisconnected(Decorator first, Decorator second) {
+            record(new Link(first, second, false));
+        }
+    };
+
+    public UndoHistory(Board board) {
+        this(board, DEFAULT_MAX_STEPS, DEFAULT_MAX_BYTES);
+    }
+
+    public UndoHistory(Board board, int maxSteps, long maxBytes) {
+        this.board = board;
+        this.maxSteps = maxSteps;
+        this.maxBytes = maxBytes;
+        board.addBoardListener(recorder);
+    }
+
+    // Stops recording; call when the history is replaced
+    public void dispose() {
+        board.removeBoardListener(recorder);
+        undoSteps.clear();
+        redoSteps.clear();
+        bytes = 0;
+    }
+
+    // Edits until the matching endCompound() form one step. Successive moves of
+    // the same box inside it collapse into a single delta.
+    public void beginCompound() {
+        if (openDepth++ == 0) {
+            open = new Step();
+        }
+    }
+
+    public void endCompound() {
+        if (openDepth == 0 || --openDepth > 0) {
+            return;
+        }
+        Step step = open;
+        open = null;
+        if (!step.deltas.isEmpty()) {
+            push(step);
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoSteps.isEmpty() && open == null;
+    }
+
+    public boolean canRedo() {
+        return !redoSteps.isEmpty() && open == null;
+    }
+
+    public void undo() {
+        if (!canUndo()) {
+            return;
+        }
+        Step step = undoSteps.removeLast();
+        replaying = true;
+        try {
+            for (int i = step.deltas.size() - 1; i >= 0; i--) {
+                step.deltas.get(i).undo(board);
+            }
+        } finally {
+            replaying = false;
+        }
+        redoSteps.addLast(step);
+    }
+
+    public void redo() {
+        if (!canRedo()) {
+            return;
+        }
+        Step step = redoSteps.removeLast();
+        replaying = true;
+        try {
+            for (Delta delta : step.deltas) {
+                delta.redo(board);
+            }
+        } finally {
+            replaying = false;
+        }
+        undoSteps.addLast(step);
+    }
+
+    private void record(Delta delta) {
+        if (replaying) {
+            return;
+        }
+        if (open != null) {
+            open.add(delta);
+            return;
+        }
+        Step step = new Step();
+        step.add(delta);
+        push(step);
+    }
+
+    private void push(Step step) {
+        // A new edit forks history: whatever was undone can no longer be redone
+        for (Step dropped : redoSteps) {
+            bytes -= dropped.bytes();
+        }
+        redoSteps.clear();
+        undoSteps.addLast(step);
+        bytes += step.bytes();
+        while (undoSteps.size() > maxSteps || (bytes > maxBytes && undoSteps.size() > 1)) {
+            bytes -= undoSteps.removeFirst().bytes();
+        }
+    }
+
+    private static final class Step {
+        final List<Delta> deltas = new ArrayList<>(1);
+
+        void add(Delta delta) {
+            if (delta instanceof Move && !deltas.isEmpty()) {
+                Delta last = deltas.get(deltas.size() - 1);
+                if (last instanceof Move && ((Move) last).box == ((Move) delta).box) {
+                    ((Move) last).toX = ((Move) delta).toX;
+                    ((Move) last).toY = ((Move) delta).toY;
+                    return;
+                }
+            }
+            deltas.add(delta);
+        }
+
+        long bytes() {
+            long total = 32;
+            for (Delta delta : deltas) {
+                total += delta.bytes();
+            }
+            return total;
+        }
+    }
+
+    private abstract static class Delta {
+        abstract void undo(Board board);
+
+        abstract void redo(Board board);
+
+        // Rough heap cost of the delta itself; referenced model objects are not counted
+        long bytes() {
+            return 32;
+        }
+    }
+
+    // Adding and removing are each other's inverse, so one class covers both
+    private static final class AddBox extends Delta {
+        final DrawableBox box;
+        final boolean added;
+
+        AddBox(DrawableBox box, boolean added) {
+            this.box = box;
+            this.added = added;
+        }
+
+        @Override
+        void undo(Board board) {
+            apply(board, !added);
+        }
+
+        @Override
+        void redo(Board board) {
+            apply(board, added);
+        }
+
+        private void apply(Board board, boolean add) {
+            if (add) {
+                board.addBox(box);
+            } else {
+                board.removeLastBox();
+            }
+        }
+    }
+
+    private static final class Move extends Delta {
+        final DrawableBox box;
+        final int fromX, fromY;
+        int toX, toY;
+
+        Move(DrawableBox box, int fromX, int fromY, int toX, int toY) {
+            this.box = box;
+            this.fromX = fromX;
+            this.fromY = fromY;
+            this.toX = toX;
+            this.toY = toY;
+        }
+
+        @Override
+        void undo(Board board) {
+            box.move(fromX, fromY);
+        }
+
+        @Override
+        void redo(Board board) {
+            box.move(toX, toY);
+        }
+    }
+
+    private static final class Rename extends Delta {
+        final DrawableBox box;
+        final String oldName, newName;
+
+        Rename(DrawableBox box, String oldName, String newName) {
+            this.box = box;
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+
+        @Override
+        void undo(Board board) {
+            box.changeName(oldName);
+        }
+
+        @Override
+        void redo(Board board) {
+            box.changeName(newName);
+        }
+
+        @Override
+        long bytes() {
+            return 32 + 2L * (oldName.length() + newName.length());
+        }
+    }
+
+    private static final class AddDecorator extends Delta {
+        final DrawableBox box;
+        final Decorator decorator;
+        final boolean added;
+
+        AddDecorator(DrawableBox box, Decorator decorator, boolean added) {
+            this.box = box;
+            this.decorator = decorator;
+            this.added = added;
+        }
+
+        @Override
+        void undo(Board board) {
+            apply(!added);
+        }
+
+        @Override
+        void redo(Board board) {
+            apply(added);
+        }
+
+        private void apply(boolean add) {
+            if (add) {
+                box.addDecorator(decorator);
+            } else {
+                box.removeLastDecorator();
+            }
+        }
+    }
+
+    private static final class AddConnection extends Delta {
+        final Connection connection;
+        final int index;
+        final boolean added;
+
+        AddConnection(Connection connection, int index, boolean added) {
+            this.connection = connection;
+            this.index = index;
+            this.added = added;
+        }
+
+        @Override
+        void undo(Board board) {
+            apply(board, !added);
+        }
+
+        @Override
+        void redo(Board board) {
+            apply(board, added);
+        }
+
+        private void apply(Board board, boolean add) {
+            if (add) {
+                board.insertConnection(connection, index);
+            } else {
+                board.removeConnection(connection);
+            }
+        }
+    }
+
+    private static final class Link extends Delta {
+        final Decorator first, second;
+        final boolean linked;
+
+        Link(Decorator first, Decorator second, boolean linked) {
+            this.first = first;
+            this.second = second;
+            this.linked = linked;
+        }
+
+        @Override
+        void undo(Board board) {
+            apply(board, !linked);
+        }
+
+        @Override
+        void redo(Board board) {
+            apply(board, linked);
+        }
+
+        private void apply(Board board, boolean link) {
+            if (link) {
+                board.connectDecorators(first, second);
+            } else {
+                board.disconnectDecorators(first, second);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// ValidationRule.java
+// Structural and pattern rules a box is checked against; see DiagramValidator.
+// A rule looks at the box, its outgoing connections and the links of its
+// decorators, and nothing further, except INHERITANCE_CYCLE, whose answer the
+// validator keeps up to date itself.
+enum ValidationRule {
+    // Generated code extends just one of the targets; see CodeGenerator.superclassOf
+    MULTIPLE_INHERITANCE {
+        @Override
+        String check(DiagramValidator validator, DrawableBox box) {
+            List<Connection> connections = validator.getBoard().getOutgoingConnections(box);
+            if (connections.size() < 2) {
+                return null;
+            }
+            List<String> targetNames = new ArrayList<>(connections.size());
+            Set<String> distinct = new LinkedHashSet<>();
+            for (Connection conn : connections) {
+                if (conn.getTarget() instanceof DrawableBox && conn.getKind() == ConnectionKind.INHERITANCE) {
+                    String name = ((DrawableBox) conn.getTarget()).getName();
+                    targetNames.add(name);
+                    distinct.add(name);
+                }
+            }
+            if (distinct.size() < 2) {
+                return null;
+            }
+            String superclass = CodeGenerator.superclassOf(targetNames);
+            distinct.remove(superclass);
+            return "Extends " + superclass + " only; inheritance from " + String.join(", ", distinct) + " is ignored";
+        }
+    },
+    INHERITANCE_CYCLE {
+        @Override
+        String check(DiagramValidator validator, DrawableBox box) {
+            int index = box.getIndex();
+            return validator.isInCycle(index) ? "Inherits from itself: " + validator.describeCycle(index) : null;
+        }
+    },
+    // A chain member hands requests on, so it needs a neighbour in the chain
+    ORPHAN_CHAIN_MEMBER {
+        @Override
+        String check(DiagramValidator validator, DrawableBox box) {
+            for (Decorator decorator : box.getDecorators()) {
+                if (decorator.getKind() == DecoratorType.CHAIN_MEMBER
+                        && !isLinkedToOtherBox(decorator, DecoratorType.CHAIN_MEMBER)) {
+                    return "Chain Member is not linked to a Chain Member of another class";
+                }
+            }
+            return null;
+        }
+    },
+    // A decorator wraps a component, i.e. the class at the other end of one of its links
+    DECORATOR_WITHOUT_COMPONENT {
+        @Override
+        String check(DiagramValidator validator, DrawableBox box) {
+            for (Decorator decorator : box.getDecorators()) {
+                if (decorator.getKind() == DecoratorType.DECORATOR && !isLinkedToOtherBox(decorator, null)) {
+                    return "Decorator has no Component: link it to a decorator of the class it wraps";
+                }
+            }
+            return null;
+        }
+    };
+
+    // Describes how box breaks this rule, or returns null if it does not
+    abstract String check(DiagramValidator validator, DrawableBox box);
+
+    // Single bit for this rule, for packing a box's problems into an int
+    int bit() {
+        return 1 << ordinal();
+    }
+
+    // Whether decorator is linked to one on another box, of the given kind unless kind is null
+    private static boolean isLinkedToOtherBox(Decorator decorator, DecoratorType kind) {
+        for (Decorator linked : decorator.getConnectedDecorators()) {
+            if (linked.getOwner() != decorator.getOwner() && (kind == null || linked.getKind() == kind)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+
+// Viewport.java
+// Maps board coordinates to panel pixels: scale by the zoom level, then shift by
+// the pan offset. Painting applies getTransform() to the Graphics, and mouse
+// positions go back through its inverse before any hit-testing.
+//
+// Zoom moves in fixed steps of STEP, so zooming in and out again lands on exactly
+// the same levels and the sprite tiles rendered for a level stay reusable.
+class Viewport {
+    static final double STEP = 1.25;
+    static final int MIN_LEVEL = -20; // about 1%
+    static final int MAX_LEVEL = 6;   // about 380%
+
+    private int level;
+    private double zoom = 1;
+    // Board coordinate shown at the panel's top-left corner
+    private double originX, originY;
+    private final AffineTransform transform = new AffineTransform();
+    private final AffineTransform inverse = new AffineTransform();
+    private final Point2D.Double scratch = new Point2D.Double();
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    // Board to panel coordinates; shared, so callers must not modify it
+    AffineTransform getTransform() {
+        return transform;
+    }
+
+    // Changes the zoom level by steps, keeping the board point under the panel
+    // position (anchorX, anchorY) where it is. Returns false if already at the limit.
+    public boolean zoomBy(int steps, int anchorX, int anchorY) {
+        int target = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level + steps));
+        if (target == level) {
+            return false;
+        }
+        Point2D anchor = inverse.transform(setScratch(anchorX, anchorY), scratch);
+        double boardX = anchor.getX(), boardY = anchor.getY();
+        level = target;
+        zoom = Math.pow(STEP, level);
+        originX = boardX - anchorX / zoom;
+        originY = boardY - anchorY / zoom;
+        update();
+        return true;
+    }
+
+    // Moves the view by a distance in panel pixels
+    public void panBy(int dx, int dy) {
+        originX += dx / zoom;
+        originY += dy / zoom;
+        update();
+    }
+
+    public void reset() {
+        level = 0;
+        zoom = 1;
+        originX = 0;
+        originY = 0;
+        update();
+    }
+
+    // Board point under the panel position (x, y)
+    public Point toBoard(int x, int y) {
+        Point2D p = inverse.transform(setScratch(x, y), scratch);
+        return new Point((int) Math.floor(p.getX()), (int) Math.floor(p.getY()));
+    }
+
+    // Smallest board area covering the panel area; fills and returns out
+    Rectangle toBoard(Rectangle panel, Rectangle out) {
+        return map(inverse, panel, out);
+    }
+
+    // Smallest panel area covering the board area; fills and returns out
+    Rectangle toPanel(Rectangle board, Rectangle out) {
+        return map(transform, board, out);
+    }
+
+    // Both transforms only scale and translate, so two corners fix the result
+    private Rectangle map(AffineTransform t, Rectangle r, Rectangle out) {
+        t.transform(setScratch(r.x, r.y), scratch);
+        double x0 = scratch.x, y0 = scratch.y;
+        t.transform(setScratch((double) r.x + r.width, (double) r.y + r.height), scratch);
+        int x = (int) Math.floor(x0), y = (int) Math.floor(y0);
+        out.setBounds(x, y, (int) Math.ceil(scratch.x) - x, (int) Math.ceil(scratch.y) - y);
+        return out;
+    }
+
+    private Point2D.Double setScratch(double x, double y) {
+        scratch.setLocation(x, y);
+        return scratch;
+    }
+
+    private void update() {
+        transform.setTransform(zoom, 0, 0, zoom, -originX * zoom, -originY * zoom);
+        inverse.setTransform(1 / zoom, 0, 0, 1 / zoom, originX, originY);
+    }
+}
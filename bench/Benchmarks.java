@@ -0,0 +1,335 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Benchmarks.java
+// Headless micro-benchmarks for the hot paths: code generation (rendered, and
+// read back from a CodeCache in a temporary directory), hit-testing,
+// viewport culling and painting (zoomed in and zoomed out), connection updates, diagram save/load and lazily opening a diagram up to its
+// first viewport. Each benchmark runs timed warmup
+// and measurement iterations and reports throughput and allocation rate.
+// The paintAllocation checks fail the run if repainting an unchanged frame
+// allocates anything, at each level of detail.
+//
+// JMH is not used: its generated harness must live in a named package and
+// cannot reach this project's default-package classes. The runner follows
+// the same warmup/measure/blackhole scheme.
+//
+//   ant bench                               (all benchmarks, default sizes)
+//   java -Ddpv.bench.boxes=50000 Benchmarks hitTest
+//
+// Sizes: dpv.bench.boxes, dpv.bench.connections, dpv.bench.decorators.
+// Timing: dpv.bench.warmup / dpv.bench.iterations (count), dpv.bench.millis (per iteration).
+public class Benchmarks {
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    private static final int BOXES = Integer.getInteger("dpv.bench.boxes", 10_000);
+    private static final int CONNECTIONS = Integer.getInteger("dpv.bench.connections", BOXES / 2);
+    private static final int DECORATORS = Integer.getInteger("dpv.bench.decorators", 2);
+    private static final int WARMUP = Integer.getInteger("dpv.bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("dpv.bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("dpv.bench.millis", 1000);
+    // Frames painted, once warm, by each paintAllocation check
+    private static final int ALLOCATION_FRAMES = 200;
+    // Rounds of those frames a paintAllocation check tries before it fails
+    private static final int ALLOCATION_ROUNDS = 20;
+
+    // Results are folded in here so the JIT cannot drop the measured work
+    private static volatile int sink;
+
+    private static String[] filters = new String[0];
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        filters = args;
+
+        System.out.printf(Locale.ROOT, "boxes=%d connections=%d decorators/box=%d%n%n",
+                BOXES, CONNECTIONS, DECORATORS);
+        System.out.printf(Locale.ROOT, "%-28s %14s %10s %12s %12s%n",
+                "benchmark", "ops/s", "+-", "B/op", "MB/s alloc");
+
+        Board board = SyntheticBoards.create(BOXES, CONNECTIONS, DECORATORS, 42);
+        List<DrawableBox> boxes = board.getBoxes();
+
+        bench("generateProjectCode", () -> new CodeGenerator(board).generateProjectCode());
+        bench("generateProjectCode.parallel", () -> {
+            CodeGenerator generator = new CodeGenerator(board);
+            generator.setMode(CodeGenerator.Mode.PARALLEL);
+            return generator.generateProjectCode();
+        });
+        // Every class read back, as when reopening an unchanged diagram
+        Path cacheDir = Files.createTempDirectory("dpv-bench-cache");
+        CodeCache codeCache = CodeCache.open(cacheDir, CodeCache.DEFAULT_MAX_BYTES);
+        CodeGenerator.generateProjectCode(new CodeGenerator(board).snapshot(), CodeGenerator.Mode.SEQUENTIAL, codeCache);
+        bench("generateProjectCode.cached", () -> CodeGenerator.generateProjectCode(
+                new CodeGenerator(board).snapshot(), CodeGenerator.Mode.SEQUENTIAL, codeCache));
+        codeCache.close();
+        deleteDirectory(cacheDir);
+
+        int side = SyntheticBoards.extent(BOXES);
+        Random random = new Random(7);
+        int[] points = new int[2048];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(side);
+        }
+        int[] cursor = new int[1];
+        bench("getBoxAt", () -> {
+            int i = cursor[0] = (cursor[0] + 2) & (points.length - 1);
+            return board.getBoxAt(points[i], points[i + 1]);
+        });
+
+        bench("getBoxesIn.viewport", () -> {
+            int i = cursor[0] = (cursor[0] + 2) & (points.length - 1);
+            return board.getBoxesIn(new Rectangle(points[i], points[i + 1], 800, 600)).size();
+        });
+        Rectangle everything = new Rectangle(0, 0, side, side);
+        bench("getBoxesIn.all", () -> board.getBoxesIn(everything).size());
+
+        // Paints into an offscreen image the way BoardPanel rebuilds its layer;
+        // B/op is what one frame allocates
+        BufferedImage frame = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D canvas = frame.createGraphics();
+        BoardRenderer renderer = new BoardRenderer();
+        Rectangle area = new Rectangle(0, 0, frame.getWidth(), frame.getHeight());
+        bench("paintViewport", () -> {
+            int i = cursor[0] = (cursor[0] + 2) & (points.length - 1);
+            area.setLocation(points[i], points[i + 1]);
+            paint(renderer, canvas, board, area);
+            return frame;
+        });
+        // Moves a few pixels per frame like scrolling does, so most box tiles are reused
+        int[] scroll = {0};
+        bench("paintViewport.scroll", () -> {
+            scroll[0] = (scroll[0] + 7) % Math.max(1, side - area.width);
+            area.setLocation(scroll[0], side / 2);
+            paint(renderer, canvas, board, area);
+            return frame;
+        });
+
+        // The same area again, as when the layer is repainted after an edit elsewhere
+        bench("paintViewport.repaint", () -> {
+            area.setLocation(side / 3, side / 3);
+            paint(renderer, canvas, board, area);
+            return frame;
+        });
+        // Zoomed out to where boxes are flat and connections hairlines, with thousands of lines in view
+        Graphics2D zoomed = frame.createGraphics();
+        double flat = (BoardRenderer.FLAT_BELOW + BoardRenderer.CLUSTER_BELOW) / 2;
+        zoomed.scale(flat, flat);
+        BoardRenderer zoomedRenderer = new BoardRenderer();
+        zoomedRenderer.setZoom(flat);
+        Rectangle wide = new Rectangle(0, 0, (int) (frame.getWidth() / flat), (int) (frame.getHeight() / flat));
+        bench("paintZoomedOut", () -> {
+            int i = cursor[0] = (cursor[0] + 2) & (points.length - 1);
+            wide.setLocation(points[i], points[i + 1]);
+            paint(zoomedRenderer, zoomed, board, wide);
+            return frame;
+        });
+
+        // The whole board scaled into the frame, painted at the level of detail for that zoom
+        Graphics2D overview = frame.createGraphics();
+        double fit = Math.min(frame.getWidth(), frame.getHeight()) / (double) side;
+        overview.scale(fit, fit);
+        BoardRenderer overviewRenderer = new BoardRenderer();
+        overviewRenderer.setZoom(fit);
+        bench("paintOverview", () -> {
+            overviewRenderer.paint(overview, board, everything, Collections.<DrawableBox>emptyList(),
+                    Collections.<Connection>emptyList());
+            return frame;
+        });
+
+        // The same frames again, which must not allocate at all
+        checkNoAllocation("paintAllocation.viewport", () -> {
+            area.setLocation(side / 3, side / 3);
+            paintArea(renderer, canvas, board, area);
+            return frame;
+        });
+        checkNoAllocation("paintAllocation.zoomedOut", () -> {
+            wide.setLocation(side / 3, side / 3);
+            paintArea(zoomedRenderer, zoomed, board, wide);
+            return frame;
+        });
+        checkNoAllocation("paintAllocation.overview", () -> {
+            overviewRenderer.paint(overview, board, everything, Collections.<DrawableBox>emptyList(),
+                    Collections.<Connection>emptyList());
+            return frame;
+        });
+
+        bench("updateConnections", () -> {
+            DrawableBox box = boxes.get(cursor[0] = (cursor[0] + 1) % boxes.size());
+            board.updateConnections(box);
+            return box;
+        });
+
+        byte[] saved = save(board);
+        bench("save", () -> save(board));
+        bench("load", () -> DiagramIO.read(new ByteArrayInputStream(saved)));
+
+        ByteArrayOutputStream indexed = new ByteArrayOutputStream();
+        new DpvWriter(Channels.newChannel(indexed)).writeIndexed(board);
+        ByteBuffer mapped = ByteBuffer.wrap(indexed.toByteArray());
+        Rectangle viewport = new Rectangle(side / 2, side / 2, 800, 600);
+        bench("openFirstViewport", () -> {
+            Board lazy = new Board(new MappedDiagram(mapped));
+            return lazy.getBoxesIn(viewport).size() + lazy.getConnectionsIn(viewport).size();
+        });
+        System.out.printf(Locale.ROOT, "%nsaved diagram size: %d bytes%n", saved.length);
+    }
+
+    private static void paint(BoardRenderer renderer, Graphics2D canvas, Board board, Rectangle area) {
+        canvas.setColor(Color.WHITE);
+        canvas.fillRect(0, 0, area.width, area.height);
+        // BoardPanel paints each layer with a fresh Graphics, so no hint carries over
+        canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_DEFAULT);
+        paintArea(renderer, canvas, board, area);
+    }
+
+    // Just the renderer's part of paint: setting a hint allocates inside Java2D
+    private static void paintArea(BoardRenderer renderer, Graphics2D canvas, Board board, Rectangle area) {
+        canvas.translate(-area.x, -area.y);
+        renderer.paint(canvas, board, area, Collections.<DrawableBox>emptyList(),
+                Collections.<Connection>emptyList());
+        canvas.translate(area.x, area.y);
+    }
+
+    private static void deleteDirectory(Path dir) throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static byte[] save(Board board) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DiagramIO.write(board, out);
+        return out.toByteArray();
+    }
+
+    private static void bench(String name, Op op) throws Exception {
+        if (!selected(name)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(op);
+        }
+        double[] rates = new double[ITERATIONS];
+        long totalOps = 0, totalBytes = 0, totalNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long[] r = iteration(op);
+            rates[i] = r[0] * 1e9 / r[2];
+            totalOps += r[0];
+            totalBytes += r[1];
+            totalNanos += r[2];
+        }
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate;
+        }
+        mean /= rates.length;
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean);
+        }
+        double error = rates.length > 1 ? Math.sqrt(variance / (rates.length - 1)) : 0;
+
+        if (totalBytes < 0) {
+            System.out.printf(Locale.ROOT, "%-28s %14.2f %10.2f %12s %12s%n", name, mean, error, "n/a", "n/a");
+        } else {
+            System.out.printf(Locale.ROOT, "%-28s %14.2f %10.2f %12.1f %12.1f%n", name, mean, error,
+                    totalBytes / (double) totalOps,
+                    totalBytes / 1048576.0 / (totalNanos / 1e9));
+        }
+    }
+
+    // Runs the warmup iterations, then throws AssertionError unless some round of
+    // ALLOCATION_FRAMES calls of op leaves Metrics.allocatedBytes() unchanged.
+    // Allocations only vanish once the JIT has compiled the paint path, which
+    // may take more than the warmup, while a real one shows in every round.
+    private static void checkNoAllocation(String name, Op op) throws Exception {
+        if (!selected(name)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(op);
+        }
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < ALLOCATION_ROUNDS && least > 0; round++) {
+            long before = Metrics.allocatedBytes();
+            if (before < 0) {
+                System.out.printf(Locale.ROOT, "%-28s %14s%n", name, "n/a");
+                return;
+            }
+            for (int i = 0; i < ALLOCATION_FRAMES; i++) {
+                sink += System.identityHashCode(op.run());
+            }
+            least = Math.min(least, Metrics.allocatedBytes() - before);
+        }
+        System.out.printf(Locale.ROOT, "%-28s %14s %10s %12.1f%n", name, "", "",
+                least / (double) ALLOCATION_FRAMES);
+        if (least != 0) {
+            throw new AssertionError(name + ": " + least + " bytes allocated over "
+                    + ALLOCATION_FRAMES + " frames");
+        }
+    }
+
+    // Returns {operations, bytes allocated (or -1), elapsed nanos}
+    private static long[] iteration(Op op) throws Exception {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_MILLIS * 1_000_000L;
+        long ops = 0;
+        long now;
+        do {
+            Object result = op.run();
+            sink += result == null ? 0 : System.identityHashCode(result);
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocatedAfter = allocatedBytes();
+        long allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        return new long[]{ops, allocated, now - start};
+    }
+
+    // Bytes allocated by the calling thread, or -1 when the JVM cannot report it.
+    // Work forked onto other threads (parallel generation) is not counted.
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static boolean selected(String name) {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String f : filters) {
+            if (name.contains(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,321 @@
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Checks.java
+// Headless end-to-end checks of what a diagram has to survive: a .dpv round
+// trip in both layouts, including a lazy open of the indexed one; undoing and
+// redoing a random edit sequence; and recovering an autosave journal cut off
+// at every byte, as a crash mid-write would leave it. Boards are compared
+// through describe(), which covers names, positions, decorators and their
+// links, and connections with their ends, kinds and order. The run stops with
+// exit status 1 at the first mismatch.
+//
+//   ant test
+public class Checks {
+    private static final String[] DECORATOR_TYPES = {"Observer", "Singleton", "Decorator", "Chain Member"};
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        roundTrip();
+        undoRedo();
+        journalReplay();
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void roundTrip() throws Exception {
+        Board board = SyntheticBoards.create(3000, 4000, 2, 11);
+        Random random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            edit(board, random);
+        }
+        String expected = describe(board);
+        Map<String, String> code = new CodeGenerator(board).generateProjectCode();
+
+        byte[] compact = bytes(board, false);
+        check("compact round trip", describe(DiagramIO.read(ByteBuffer.wrap(compact))), expected);
+        byte[] indexed = bytes(board, true);
+        check("indexed round trip", describe(DiagramIO.read(ByteBuffer.wrap(indexed))), expected);
+        check("indexed snapshot", CodeGenerator.generateProjectCode(
+                DiagramIO.readSnapshot(ByteBuffer.wrap(indexed)), CodeGenerator.Mode.SEQUENTIAL), code);
+
+        // Saved over itself while open lazily, as the UI does on File > Save
+        Path dir = Files.createTempDirectory("dpv-check");
+        File file = dir.resolve("board.dpv").toFile();
+        try {
+            DiagramIO.save(board, file);
+            Board lazy = DiagramIO.open(file);
+            lazy.getBoxesIn(new Rectangle(0, 0, 800, 600));
+            lazy.getConnectionsIn(new Rectangle(0, 0, 800, 600));
+            DiagramIO.save(lazy, file);
+            check("lazy open", describe(lazy), expected);
+            check("save over lazy open", describe(DiagramIO.load(file)), expected);
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.delete(dir);
+        }
+    }
+
+    private static void undoRedo() {
+        Board board = SyntheticBoards.create(200, 300, 1, 12);
+        UndoHistory history = new UndoHistory(board);
+        Random random = new Random(12);
+        String before = describe(board);
+        for (int i = 0; i < 400; i++) {
+            edit(board, random);
+        }
+        String after = describe(board);
+        while (history.canUndo()) {
+            history.undo();
+        }
+        check("undo all", describe(board), before);
+        while (history.canRedo()) {
+            history.redo();
+        }
+        check("redo all", describe(board), after);
+    }
+
+    private static void journalReplay() throws Exception {
+        Path dir = Files.createTempDirectory("dpv-check-autosave");
+        Autosave autosave = Autosave.open(dir);
+        Board board = new Board();
+        autosave.track(board, null);
+        // Every event is journaled as one record, so states.get(k) is the
+        // board after k + 1 records; registered after autosave's own listener
+        List<String> states = new ArrayList<>();
+        board.addBoardListener(new BoardListener() {
+            @Override
+            public void boxAdded(DrawableBox box) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void boxRemoved(DrawableBox box) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void boxMoved(DrawableBox box, int oldX, int oldY) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void boxRenamed(DrawableBox box, String oldName) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void decoratorAdded(DrawableBox box, Decorator decorator) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void decoratorRemoved(DrawableBox box, Decorator decorator) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void connectionAdded(Connection connection) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void connectionRemoved(Connection connection) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void decoratorsConnected(Decorator first, Decorator second) {
+                states.add(describe(board));
+            }
+
+            @Override
+            public void decoratorsDisconnected(Decorator first, Decorator second) {
+                states.add(describe(board));
+            }
+        });
+        UndoHistory history = new UndoHistory(board);
+        Random random = new Random(13);
+        for (int i = 0; i < 30; i++) {
+            board.addBox(random.nextInt(2000), random.nextInt(2000));
+        }
+        for (int i = 0; i < 200; i++) {
+            int op = random.nextInt(8);
+            if (op == 0 && history.canUndo()) {
+                history.undo();
+            } else if (op == 1 && history.canRedo()) {
+                history.redo();
+            } else {
+                edit(board, random);
+            }
+        }
+        try {
+            if (!autosave.awaitWritten(10_000)) {
+                check("journal written", "timed out", "written");
+                return;
+            }
+            check("recover", describe(autosave.recover()), describe(board));
+
+            byte[] journal = Files.readAllBytes(dir.resolve("journal.dpvj"));
+            int start = EditJournal.readHeader(ByteBuffer.wrap(journal)).length;
+            List<Integer> ends = recordEnds(journal, start);
+            check("one record per event", ends.size(), states.size());
+            String empty = describe(new Board());
+            int complete = 0;
+            for (int cut = start; cut <= journal.length && failures == 0; cut++) {
+                while (complete < ends.size() && ends.get(complete) <= cut) {
+                    complete++;
+                }
+                ByteBuffer in = ByteBuffer.wrap(journal, 0, cut);
+                in.position(start);
+                Board replayed = new Board();
+                int end = EditJournal.replay(in, replayed);
+                check("replay end at " + cut, end, complete == 0 ? start : ends.get(complete - 1));
+                check("replay cut at " + cut, describe(replayed), complete == 0 ? empty : states.get(complete - 1));
+            }
+
+            // A damaged last record is dropped, not applied
+            byte[] damaged = journal.clone();
+            damaged[damaged.length - 5] ^= 0x40;
+            ByteBuffer in = ByteBuffer.wrap(damaged);
+            in.position(start);
+            Board replayed = new Board();
+            check("damaged record end", EditJournal.replay(in, replayed), ends.get(ends.size() - 2));
+            check("damaged record", describe(replayed), states.get(states.size() - 2));
+        } finally {
+            autosave.discard();
+            Files.deleteIfExists(dir.resolve("session.lock"));
+            Files.delete(dir);
+        }
+    }
+
+    // One random edit through the same API the UI uses
+    private static void edit(Board board, Random random) {
+        List<DrawableBox> boxes = board.getBoxes();
+        int op = boxes.isEmpty() ? 0 : random.nextInt(8);
+        if (op == 0) {
+            board.addBox(random.nextInt(4000), random.nextInt(4000));
+            return;
+        }
+        DrawableBox box = boxes.get(random.nextInt(boxes.size()));
+        DrawableBox other = boxes.get(random.nextInt(boxes.size()));
+        ConnectionKind kind = ConnectionKind.values()[random.nextInt(ConnectionKind.values().length)];
+        switch (op) {
+            case 1:
+                box.move(random.nextInt(4000), random.nextInt(4000));
+                break;
+            case 2:
+                box.changeName("Class" + random.nextInt(1000));
+                break;
+            case 3:
+                box.addDecorator(DECORATOR_TYPES[random.nextInt(DECORATOR_TYPES.length)]);
+                break;
+            case 4:
+                board.addConnection(box, other, false, kind);
+                break;
+            case 5:
+                List<Connection> connections = board.getConnections();
+                if (!connections.isEmpty()) {
+                    board.removeConnection(connections.get(random.nextInt(connections.size())));
+                }
+                break;
+            default:
+                if (!box.getDecorators().isEmpty() && !other.getDecorators().isEmpty()) {
+                    Decorator first = box.getDecorators().get(random.nextInt(box.getDecorators().size()));
+                    Decorator second = other.getDecorators().get(random.nextInt(other.getDecorators().size()));
+                    if (first == second) {
+                        break;
+                    }
+                    if (first.getConnectedDecorators().contains(second)) {
+                        board.disconnectDecorators(first, second);
+                    } else if (op == 6) {
+                        board.connectDecorators(first, second);
+                    } else {
+                        board.addConnection(first, random.nextBoolean() ? second : other, true, kind);
+                    }
+                }
+                break;
+        }
+    }
+
+    static String describe(Board board) {
+        Map<Decorator, Integer> ids = new IdentityHashMap<>();
+        for (DrawableBox box : board.getBoxes()) {
+            for (Decorator decorator : box.getDecorators()) {
+                ids.put(decorator, ids.size());
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (DrawableBox box : board.getBoxes()) {
+            text.append(box.getName()).append(' ').append(box.getX()).append(',').append(box.getY());
+            for (Decorator decorator : box.getDecorators()) {
+                text.append(' ').append(decorator.getType()).append('[');
+                for (Decorator linked : decorator.getConnectedDecorators()) {
+                    text.append(ids.get(linked)).append(',');
+                }
+                text.append(']');
+            }
+            text.append('\n');
+        }
+        for (Connection conn : board.getConnections()) {
+            text.append(end(conn.getSource(), ids)).append(" -> ").append(end(conn.getTarget(), ids))
+                    .append(' ').append(conn.getKind()).append(conn.isDecoratorConnection() ? " decorator" : "")
+                    .append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String end(Object end, Map<Decorator, Integer> ids) {
+        return end instanceof DrawableBox ? "b" + ((DrawableBox) end).getIndex() : "d" + ids.get(end);
+    }
+
+    private static byte[] bytes(Board board, boolean indexed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DpvWriter writer = new DpvWriter(Channels.newChannel(out));
+        if (indexed) {
+            writer.writeIndexed(board);
+        } else {
+            writer.writeCompact(board);
+        }
+        return out.toByteArray();
+    }
+
+    // Offset just past each record: length varint, payload, 4-byte checksum
+    private static List<Integer> recordEnds(byte[] journal, int start) {
+        List<Integer> ends = new ArrayList<>();
+        int p = start;
+        while (p < journal.length) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = journal[p++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            p += length + 4;
+            ends.add(p);
+        }
+        return ends;
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            failures++;
+            System.out.println("FAILED " + name);
+        }
+    }
+}
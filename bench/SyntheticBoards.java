@@ -0,0 +1,41 @@
+import java.util.List;
+import java.util.Random;
+
+// SyntheticBoards.java
+// Deterministic boards for benchmarks: boxes scattered over a square sized
+// for roughly constant density, random box-to-box connections and k
+// decorators per box cycling through the built-in types.
+class SyntheticBoards {
+    private static final String[] DECORATOR_TYPES = {
+            "Observer", "Observable", "Singleton", "Decoration",
+            "Decorator", "Chain Member", "Strategy", "Factory", "Product"
+    };
+
+    private SyntheticBoards() {
+    }
+
+    static Board create(int boxes, int connections, int decoratorsPerBox, long seed) {
+        Random random = new Random(seed);
+        int side = extent(boxes);
+        Board board = new Board();
+        for (int i = 0; i < boxes; i++) {
+            board.addBox(random.nextInt(side), random.nextInt(side));
+        }
+        List<DrawableBox> list = board.getBoxes();
+        for (int i = 0; i < boxes; i++) {
+            for (int k = 0; k < decoratorsPerBox; k++) {
+                list.get(i).addDecorator(DECORATOR_TYPES[random.nextInt(DECORATOR_TYPES.length)]);
+            }
+        }
+        for (int i = 0; i < connections && boxes > 0; i++) {
+            board.addConnection(list.get(random.nextInt(boxes)), list.get(random.nextInt(boxes)), false,
+                    ConnectionKind.INHERITANCE);
+        }
+        return board;
+    }
+
+    // Side of the square the boxes are spread over: about one box per 150x150 px
+    static int extent(int boxes) {
+        return Math.max(800, (int) Math.sqrt((double) boxes) * 150);
+    }
+}